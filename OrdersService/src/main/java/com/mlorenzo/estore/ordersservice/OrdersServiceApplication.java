@@ -1,33 +1,196 @@
 package com.mlorenzo.estore.ordersservice;
 
+import java.time.Duration;
+import java.util.UUID;
+
+import org.axonframework.common.jpa.EntityManagerProvider;
 import org.axonframework.config.Configuration;
 import org.axonframework.config.ConfigurationScopeAwareProvider;
-import org.axonframework.deadline.DeadlineManager;
-import org.axonframework.deadline.SimpleDeadlineManager;
+import org.axonframework.disruptor.commandhandling.DisruptorCommandBus;
+import org.axonframework.eventhandling.EventMessage;
+import org.axonframework.eventhandling.async.SequencingPolicy;
+import org.axonframework.eventsourcing.GenericAggregateFactory;
+import org.axonframework.eventsourcing.eventstore.EventStore;
+import org.axonframework.messaging.annotation.HandlerDefinition;
+import org.axonframework.messaging.annotation.ParameterResolverFactory;
+import org.axonframework.modelling.command.Repository;
+import org.axonframework.modelling.saga.repository.CachingSagaStore;
+import org.axonframework.modelling.saga.repository.SagaStore;
+import org.axonframework.modelling.saga.repository.jpa.JpaSagaStore;
+import org.axonframework.serialization.upcasting.event.EventUpcaster;
+import org.axonframework.serialization.upcasting.event.EventUpcasterChain;
 import org.axonframework.spring.messaging.unitofwork.SpringTransactionManager;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.cloud.netflix.eureka.EnableEurekaClient;
 import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Import;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import com.mlorenzo.estore.core.caching.CaffeineCacheAdapter;
+import com.mlorenzo.estore.core.caching.rest.AggregateCacheController;
+import com.mlorenzo.estore.core.commandhandling.DisruptorCommandBusConfiguration;
+import com.mlorenzo.estore.core.eventhandling.PropertySequencingPolicy;
+import com.mlorenzo.estore.core.eventhandling.rest.EventProcessorSegmentsController;
+import com.mlorenzo.estore.core.eventstore.FileEventStoreConfiguration;
+import com.mlorenzo.estore.core.monitoring.MetricsConfiguration;
+import com.mlorenzo.estore.core.serialization.CompactSerializer;
+import com.mlorenzo.estore.core.serialization.CompactSerializerConfiguration;
+import com.mlorenzo.estore.core.serialization.SerializedTypeAliases;
+import com.mlorenzo.estore.ordersservice.commandapi.ApproveOrderCommand;
+import com.mlorenzo.estore.ordersservice.commandapi.CreateOrderCommand;
+import com.mlorenzo.estore.ordersservice.commandapi.OrderAggregate;
+import com.mlorenzo.estore.ordersservice.commandapi.RejectOrderCommand;
+import com.mlorenzo.estore.ordersservice.core.events.OrderApprovedEvent;
+import com.mlorenzo.estore.ordersservice.core.events.OrderCreatedEvent;
+import com.mlorenzo.estore.ordersservice.core.events.OrderRejectedEvent;
+import com.mlorenzo.estore.ordersservice.core.models.OrderDetails;
+import com.mlorenzo.estore.ordersservice.core.models.OrderSummary;
+import com.mlorenzo.estore.ordersservice.core.models.OrdersPage;
+import com.mlorenzo.estore.ordersservice.core.queries.FindOrderQuery;
+import com.mlorenzo.estore.ordersservice.core.queries.FindOrdersByStatusQuery;
+import com.mlorenzo.estore.ordersservice.core.queries.FindOrdersQuery;
+import com.mlorenzo.estore.ordersservice.core.queries.FindUserOrdersQuery;
+import com.mlorenzo.estore.ordersservice.core.queries.OrderCursor;
+import com.mlorenzo.estore.ordersservice.core.deadline.JdbcDeadlineManager;
+import com.mlorenzo.estore.ordersservice.queryapi.OrderQueryUpdateEmitter;
+import com.mlorenzo.estore.ordersservice.saga.OrderSagaMetrics;
+
+import io.micrometer.core.instrument.MeterRegistry;
 
 // Opcional ya que basta con tener la dependencia "spring-cloud-starter-netflix-eureka-client" en el classpath para que este microservicio se registre en el servidor Eureka
 @EnableEurekaClient
 @SpringBootApplication
+// Los mensajes, eventos y snapshots se serializan con el serializador binario CompactSerializer del módulo "core". El Event Store embebido en ficheros se activa con la propiedad "estore.event-store.type=file"
+// y el Command Bus DisruptorCommandBus con la propiedad "estore.command-bus.type=disruptor". Las métricas propias se añaden a las del framework Axon con la configuración MetricsConfiguration.
+// Los endpoints de gestión de los segmentos de los procesadores de eventos son los de la clase EventProcessorSegmentsController del módulo "core"
+@Import({CompactSerializerConfiguration.class, FileEventStoreConfiguration.class, DisruptorCommandBusConfiguration.class, MetricsConfiguration.class, EventProcessorSegmentsController.class})
 public class OrdersServiceApplication {
 
 	public static void main(String[] args) {
 		SpringApplication.run(OrdersServiceApplication.class, args);
 	}
 	
-	// Este bean de Spring crea un programador de Deadlines de tipo SimpleDeadlineManager(Los Deadlines programados con este tipo de programador se crean en memoria y no se persisten.
-	// Por lo tanto, si se reinicia la aplicación, los Deadlines programados se perderán).
+	// Identificadores de tipo con los que se serializan los Commands, eventos, Queries y respuestas propios de este microservicio(ver clase SerializedTypeAliases del módulo "core")
+	@Bean
+	public SerializedTypeAliases ordersSerializedTypeAliases() {
+		return SerializedTypeAliases.of(
+				ApproveOrderCommand.class, CreateOrderCommand.class, RejectOrderCommand.class,
+				OrderApprovedEvent.class, OrderCreatedEvent.class, OrderRejectedEvent.class,
+				FindOrderQuery.class, OrderSummary.class,
+				FindUserOrdersQuery.class, FindOrdersByStatusQuery.class, FindOrdersQuery.class, OrderCursor.class, OrdersPage.class, OrderDetails.class);
+	}
+	
+	// Este bean de Spring crea un programador de Deadlines de tipo JdbcDeadlineManager que sustituye al programador SimpleDeadlineManager del framework Axon.
+	// Los Deadlines programados con el programador SimpleDeadlineManager se crean en memoria y no se persisten, por lo que si se reinicia la aplicación, los Deadlines programados se pierden.
+	// El programador JdbcDeadlineManager guarda los Deadlines en la base de datos y los reparte entre las instancias de este microservicio(ver clase JdbcDeadlineManager).
 	// Un Deadline nos permite establecer un timeout para ejecutar un proceso y, en caso de cumplirse, nos permite ejecutar un manejador de Deadlines.
 	// En nuestro caso, vamos a usar Deadlines para establecer timeouts en procesos del componente SAGA pero también es posible usarlos en procesos del Aggregate.
 	@Bean
-	public DeadlineManager deadlineManager(Configuration configuration, SpringTransactionManager transactionManager) {
-		return SimpleDeadlineManager.builder()
+	public JdbcDeadlineManager deadlineManager(Configuration configuration, SpringTransactionManager transactionManager, JdbcTemplate jdbcTemplate,
+			@Value("${spring.application.name}") String applicationName,
+			@Value("${orders.deadlines.bucket-size:10s}") Duration bucketSize,
+			@Value("${orders.deadlines.poll-interval:1s}") Duration pollInterval,
+			@Value("${orders.deadlines.lookahead:30s}") Duration lookahead,
+			@Value("${orders.deadlines.lease-duration:2m}") Duration leaseDuration,
+			@Value("${orders.deadlines.tick:100ms}") Duration tick,
+			@Value("${orders.deadlines.max-in-memory:10000}") int maxInMemory,
+			@Value("${orders.deadlines.thread-count:4}") int threadCount) {
+		return JdbcDeadlineManager.builder()
 				.scopeAwareProvider(new ConfigurationScopeAwareProvider(configuration))
 				.transactionManager(transactionManager)
+				.jdbcTemplate(jdbcTemplate)
+				.serializer(configuration::serializer)
+				.ownerId(applicationName + ":" + UUID.randomUUID())
+				.bucketSize(bucketSize)
+				.pollInterval(pollInterval)
+				.lookahead(lookahead)
+				.leaseDuration(leaseDuration)
+				.tick(tick)
+				.maxInMemory(maxInMemory)
+				.threadCount(threadCount)
+				.build();
+	}
+	
+	// Este bean de Spring define el almacén de instancias SAGA del componente OrderSaga(ver atributo "sagaStore" de su anotación @Saga).
+	// Por defecto, el framework Axon lee y escribe en la base de datos, con el serializador XStream(XML), el estado de la instancia SAGA en cada evento que maneja. Con este almacén:
+	// - El estado se serializa con nuestro serializador binario CompactSerializer, que sigue pudiendo leer las instancias SAGA guardadas previamente en XML.
+	// - Opcionalmente, con un valor mayor que 0 en la propiedad "orders.saga-cache.maximum-size", las instancias SAGA activas y sus valores de asociación(Por ejemplo, orderId) se guardan en cachés en memoria,
+	//   así que localizar y cargar una instancia SAGA no requiere consultar la base de datos. Las escrituras siguen llegando a la base de datos.
+	// Importante: Las cachés son locales a cada instancia de este microservicio y el almacén CachingSagaStore no comprueba ninguna versión al leer de ellas. Cada instancia SAGA se procesa en el segmento
+	// que le corresponde según su identificador(ver método "matchesSegment" de la clase AbstractSagaManager), pero si ese segmento pasa a otra instancia del microservicio y después vuelve, la caché
+	// de la primera instancia contiene un estado anterior de la instancia SAGA(se perderían sus cambios) o una instancia SAGA que ya ha terminado(seguiría recibiendo eventos). Por eso, las cachés
+	// están desactivadas por defecto y sólo deben activarse cuando el procesador del componente SAGA se ejecuta en una única instancia del microservicio.
+	@Bean
+	public SagaStore<Object> orderSagaStore(EntityManagerProvider entityManagerProvider, @Value("${orders.saga-cache.maximum-size:0}") long sagaCacheMaximumSize) {
+		SagaStore<Object> jpaSagaStore = JpaSagaStore.builder()
+				.entityManagerProvider(entityManagerProvider)
+				.serializer(CompactSerializer.defaultSerializer())
 				.build();
+		if(sagaCacheMaximumSize <= 0)
+			return jpaSagaStore;
+		return CachingSagaStore.builder()
+				.delegateSagaStore(jpaSagaStore)
+				.sagaCache(new CaffeineCacheAdapter(sagaCacheMaximumSize))
+				.associationsCache(new CaffeineCacheAdapter(sagaCacheMaximumSize))
+				.build();
+	}
+	
+	// Este bean de Spring define la caché de instancias del Aggregate OrderAggregate(ver atributo "cache" de su anotación @Aggregate). Con ella, los Commands ApproveOrderCommand y RejectOrderCommand
+	// que envía el componente SAGA reutilizan la orden en memoria en lugar de recrearla desde el Event Store. Si el Command falla y se deshace su unidad de trabajo, el framework Axon elimina la orden
+	// de la caché. Al alcanzar el tamaño máximo, se desalojan las órdenes menos usadas.
+	// Nota: Axon Server enruta los Commands mediante un hash consistente del campo anotado con @TargetAggregateIdentifier(el id de la orden), así que con varias instancias de este microservicio
+	// los Commands de una orden llegan siempre a la misma instancia. Si cambian las instancias y una orden de la caché ha quedado desactualizada, al guardar sus eventos se produce un error
+	// de concurrencia y la orden se elimina de la caché.
+	@Bean
+	public CaffeineCacheAdapter orderAggregateCache(@Value("${orders.aggregate-cache.maximum-size:10000}") long maximumSize) {
+		return new CaffeineCacheAdapter(maximumSize);
+	}
+	
+	// Este bean de Spring define el endpoint de gestión de la caché "orderAggregateCache"(ver clase AggregateCacheController del módulo "core"). Sus aciertos y fallos se consultan en /management/aggregate-cache/stats
+	@Bean
+	public AggregateCacheController aggregateCacheController(CaffeineCacheAdapter orderAggregateCache) {
+		return new AggregateCacheController(orderAggregateCache);
+	}
+	
+	// Con la propiedad "estore.command-bus.type=disruptor", el Aggregate OrderAggregate usa un repositorio del Command Bus DisruptorCommandBus(ver clase DisruptorCommandBusConfiguration del módulo "core")
+	// en lugar del repositorio que crea el framework Axon a partir de su anotación @Aggregate. Las órdenes se mantienen en memoria en el propio bus, por lo que no se usa la caché "orderAggregateCache".
+	@Bean
+	@ConditionalOnProperty(name = "estore.command-bus.type", havingValue = "disruptor")
+	public Repository<OrderAggregate> orderAggregateRepository(DisruptorCommandBus commandBus, EventStore eventStore, ParameterResolverFactory parameterResolverFactory,
+			HandlerDefinition handlerDefinition, Configuration configuration) {
+		return commandBus.createRepository(eventStore, new GenericAggregateFactory<>(OrderAggregate.class), parameterResolverFactory, handlerDefinition, configuration::repository);
+	}
+	
+	// Este bean de Spring sustituye al emisor de actualizaciones de Subscription Queries por defecto del framework Axon(SimpleQueryUpdateEmitter) por nuestro emisor OrderQueryUpdateEmitter,
+	// que indexa las Subscription Queries de tipo FindOrderQuery por el id de la orden para que el componente SAGA pueda emitir el resultado de una orden sin recorrer todas las suscripciones abiertas.
+	@Bean
+	public OrderQueryUpdateEmitter queryUpdateEmitter() {
+		return new OrderQueryUpdateEmitter();
+	}
+	
+	// Este bean de Spring define las métricas de los pasos y de la duración total del componente SAGA OrderSaga, que se inyectan en cada una de sus instancias
+	@Bean
+	public OrderSagaMetrics orderSagaMetrics(MeterRegistry meterRegistry) {
+		return new OrderSagaMetrics(meterRegistry);
+	}
+	
+	// Este bean de Spring define una política de secuenciación de eventos por el id de la orden. Se asocia a los procesadores de eventos mediante la propiedad
+	// "axon.eventhandling.processors.<nombre_procesador>.sequencing-policy" del archivo de propiedades.
+	// Se usa en el procesador del lado del Query API para que los eventos de una misma orden se procesen siempre en orden y en el mismo segmento, aunque los publique un Aggregate distinto de OrderAggregate.
+	// Nota: No se asocia al procesador del componente SAGA OrderSaga porque el framework Axon no aplica la política de secuenciación a los componentes SAGA: cada instancia SAGA se asigna a un segmento
+	// según su propio identificador(ver método "matchesSegment" de la clase AbstractSagaManager), así que todos los eventos de una instancia SAGA se procesan ya en orden y en el mismo segmento.
+	@Bean
+	public SequencingPolicy<EventMessage<?>> orderIdSequencingPolicy() {
+		return new PropertySequencingPolicy("orderId");
+	}
+	
+	// Cadena de upcasters de los eventos propios de este microservicio(ver clase JsonEventUpcaster del módulo "core"). Cuando cambie la forma de uno de estos eventos(Por ejemplo, OrderCreatedEvent),
+	// su upcaster se añade aquí, en el orden de sus revisiones
+	@Bean
+	public EventUpcaster ordersEventUpcasters() {
+		return new EventUpcasterChain();
 	}
 }
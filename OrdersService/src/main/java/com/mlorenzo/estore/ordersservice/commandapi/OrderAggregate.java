@@ -12,7 +12,8 @@ import com.mlorenzo.estore.ordersservice.core.events.OrderRejectedEvent;
 import com.mlorenzo.estore.ordersservice.core.models.OrderStatus;
 
 //Anotación que hace que esta clase sea un Aggregate
-@Aggregate
+// Mediante el atributo "cache", asociamos el bean de Spring "orderAggregateCache" con este Aggregate para mantener en memoria sus instancias entre Commands.
+@Aggregate(cache = "orderAggregateCache")
 public class OrderAggregate {
 	
 	// Esta anotación es para asociar Commands con Aggregates usando la anotación @TargetAggregateIdentifier que se establece en las clases de los Commands.
@@ -0,0 +1,23 @@
+package com.mlorenzo.estore.ordersservice.commandapi.rest;
+
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import com.mlorenzo.estore.ordersservice.core.deadline.DeadlineManagerStats;
+import com.mlorenzo.estore.ordersservice.core.deadline.JdbcDeadlineManager;
+
+import lombok.AllArgsConstructor;
+
+@AllArgsConstructor
+@RestController
+@RequestMapping("/management/deadlines")
+public class DeadlinesController {
+	private final JdbcDeadlineManager deadlineManager;
+	
+	// Devuelve los Deadlines pendientes y los Deadlines programados, disparados y cancelados por esta instancia
+	@GetMapping("/stats")
+	public DeadlineManagerStats getStats() {
+		return deadlineManager.stats();
+	}
+}
@@ -1,5 +1,7 @@
 package com.mlorenzo.estore.ordersservice.commandapi.rest;
 
+import java.net.URI;
+import java.time.Duration;
 import java.util.UUID;
 
 import javax.validation.Valid;
@@ -8,18 +10,22 @@ import org.axonframework.commandhandling.gateway.CommandGateway;
 import org.axonframework.messaging.responsetypes.ResponseTypes;
 import org.axonframework.queryhandling.QueryGateway;
 import org.axonframework.queryhandling.SubscriptionQueryResult;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
-import org.springframework.web.bind.annotation.ResponseStatus;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
 
 import com.mlorenzo.estore.ordersservice.commandapi.CreateOrderCommand;
+import com.mlorenzo.estore.ordersservice.core.models.OrderStatus;
 import com.mlorenzo.estore.ordersservice.core.models.OrderSummary;
 import com.mlorenzo.estore.ordersservice.core.queries.FindOrderQuery;
 
 import lombok.RequiredArgsConstructor;
+import reactor.core.publisher.Mono;
 
 @RequiredArgsConstructor
 @RestController
@@ -30,10 +36,15 @@ public class OrdersCommandController {
 	private final CommandGateway commandGateway;
 	private final QueryGateway queryGateway;
 	
+	// Tiempo máximo que esperamos a que el componente SAGA emita el resultado final de la orden antes de responder al cliente con un 202(Accepted) y la URL de consulta de la orden
+	@Value("${orders.creation.timeout:10s}")
+	private Duration creationTimeout;
+	
 	// Nota: Puede usarse tanto la anotación @Valid de JPA como la anotación @Validated de Spring para realizar las validaciones
-	@ResponseStatus(HttpStatus.CREATED)
+	// Este método no bloquea el hilo de la petición: devuelve un flujo reactivo de tipo Mono y Spring MVC procesa la petición de forma asíncrona, liberando el hilo del servidor mientras el componente SAGA
+	// completa la orden. Si el resultado final no llega dentro del timeout configurado, respondemos con un 202(Accepted) y la cabecera "Location" apuntando al endpoint de consulta de la orden.
 	@PostMapping
-	public OrderSummary createOrder(@Valid @RequestBody CreateOrderRestModel createOrderRestModel) {
+	public Mono<ResponseEntity<OrderSummary>> createOrder(@Valid @RequestBody CreateOrderRestModel createOrderRestModel) {
 		String orderId = UUID.randomUUID().toString();
 		CreateOrderCommand createOrderCommand = CreateOrderCommand.builder()
 				.orderId(orderId)
@@ -42,6 +53,11 @@ public class OrdersCommandController {
 				.addressId(createOrderRestModel.getAddressId())
 				.quantity(createOrderRestModel.getQuantity())
 				.build();
+		// Calculamos aquí la URL de consulta porque el contexto de la petición sólo está disponible en el hilo que la atiende y la respuesta 202 puede construirse desde otro hilo
+		URI orderLocation = ServletUriComponentsBuilder.fromCurrentRequest()
+				.path("/{orderId}")
+				.buildAndExpand(orderId)
+				.toUri();
 		SubscriptionQueryResult<OrderSummary, OrderSummary> queryResult = queryGateway.subscriptionQuery(new FindOrderQuery(orderId),
 				ResponseTypes.instanceOf(OrderSummary.class),
 				ResponseTypes.instanceOf(OrderSummary.class));
@@ -52,21 +68,19 @@ public class OrdersCommandController {
 		// Podemos usamos las Subscription Queries para responder al cliente desde el componente SAGA en vez desde la ejecución del Command. En nuestro caso en concreto, emitimos las respuestas al
 		// cliente en aquellos eventos del flujo del componente SAGA que son finales y, como son finales, los datos ya se encontrarían actualizados en la base de datos del lado del Query API(ver
 		// clase OrderSaga).
-		try {
-			// Método que hace que el Command Gateway despache o envíe un command(En este caso de tipo CreateOrderCommand) al Command Bus.
-			// Operación bloqueante. Existe otro método llamado "send" que es no bloqueante.
-			commandGateway.sendAndWait(createOrderCommand);
-			// El método "updates" devuelve un flujo reactivo de tipo Flux con las actualizaciones emitidas a la Subscription Query, es decir, en nuestro caso sería un flujo reactivo Flux con los datos
-			// emitidos desde los eventos finales de nuestro componente SAGA(ver clase OrderSaga).
-			// NOTA: Este método no tiene en cuenta la respuesta incial que se obtiene de la consulta a la base de datos de lectura del lado del Query API.
-			return queryResult.updates().blockFirst();
-			// A diferencia del método  "updates", el método "initialResult" devuelve un flujo reactivo de tipo Mono con los datos de la respuesta inicial, es decir, en nuestro caso sería un flujo
-			// reactivo de tipo Mono con la respuesta de la consulta FindOrderQuery a la base de datos de lectura del lado del Query API(ver clase OrderQueryHandler).
-			// NOTA: Este método no tiene en cuenta las actualizaciones que se emiten a la Subscription Query.
-			//return queryResult.initialResult().block();
-		}
-		finally {
-			queryResult.close();
-		}
+		// Método que hace que el Command Gateway despache o envíe un command(En este caso de tipo CreateOrderCommand) al Command Bus.
+		// Operación no bloqueante. Devuelve un CompletableFuture que adaptamos a un flujo reactivo de tipo Mono.
+		return Mono.fromFuture(commandGateway.send(createOrderCommand))
+				// El método "updates" devuelve un flujo reactivo de tipo Flux con las actualizaciones emitidas a la Subscription Query, es decir, en nuestro caso sería un flujo reactivo Flux con los datos
+				// emitidos desde los eventos finales de nuestro componente SAGA(ver clase OrderSaga).
+				// NOTA: Este método no tiene en cuenta la respuesta incial que se obtiene de la consulta a la base de datos de lectura del lado del Query API.
+				.then(queryResult.updates().next()
+						.map(orderSummary -> ResponseEntity.status(HttpStatus.CREATED).body(orderSummary))
+						// El timeout sólo se aplica a la espera del resultado del componente SAGA, no al despacho del Command, para que los errores de validación del Command sigan llegando al cliente
+						.timeout(creationTimeout, Mono.fromSupplier(() -> ResponseEntity.accepted()
+								.location(orderLocation)
+								.body(new OrderSummary(orderId, OrderStatus.CREATED, "Order is being processed")))))
+				// Cerramos la Subscription Query tanto si se completa, como si falla o se cancela el flujo(Por ejemplo, si el cliente cierra la conexión)
+				.doFinally(signalType -> queryResult.close());
 	}
 }
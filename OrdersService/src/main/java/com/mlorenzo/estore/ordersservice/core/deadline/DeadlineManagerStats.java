@@ -0,0 +1,14 @@
+package com.mlorenzo.estore.ordersservice.core.deadline;
+
+import lombok.Value;
+
+@Value
+public class DeadlineManagerStats {
+	// Deadlines pendientes en la tabla "deadlines"(de todas las instancias)
+	private long outstanding;
+	// Deadlines reclamados por esta instancia y cargados en su rueda de temporización
+	private long inMemory;
+	private long scheduled;
+	private long fired;
+	private long cancelled;
+}
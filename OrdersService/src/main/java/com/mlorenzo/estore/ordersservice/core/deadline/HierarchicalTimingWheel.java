@@ -0,0 +1,138 @@
+package com.mlorenzo.estore.ordersservice.core.deadline;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+// Rueda de temporización jerárquica(hierarchical timing wheel) en memoria.
+// Cada nivel es una rueda de "wheelSize" ranuras. Una ranura del nivel 0 abarca un tick y una ranura del nivel N abarca wheelSize^N ticks. Cada temporizador se guarda en la ranura del nivel más bajo
+// que alcanza su vencimiento, así que programar y avanzar un tick tiene un coste constante independientemente del número de temporizadores. Cuando el nivel 0 completa una vuelta, los temporizadores
+// de la siguiente ranura del nivel superior bajan a niveles inferiores(cascada).
+// Cancelar un temporizador también tiene un coste constante: el temporizador se marca como cancelado(lápida) y se descarta cuando se vacía su ranura, en vez de buscarlo y eliminarlo de ella.
+class HierarchicalTimingWheel<T> {
+	private final long tickMillis;
+	private final int wheelSize;
+	private final int levels;
+	private final List<List<List<Timer<T>>>> wheels = new ArrayList<>();
+	private final Map<String, Timer<T>> timers = new HashMap<>();
+	private long currentTick;
+	
+	HierarchicalTimingWheel(long tickMillis, int wheelSize, int levels, long startMillis) {
+		this.tickMillis = tickMillis;
+		this.wheelSize = wheelSize;
+		this.levels = levels;
+		this.currentTick = startMillis / tickMillis;
+		for(int level = 0; level < levels; level++) {
+			List<List<Timer<T>>> slots = new ArrayList<>(wheelSize);
+			for(int slot = 0; slot < wheelSize; slot++)
+				slots.add(new ArrayList<>());
+			wheels.add(slots);
+		}
+	}
+	
+	// Añade un temporizador. Si ya existe un temporizador con el mismo id, se sustituye. Un temporizador ya vencido vence en el siguiente tick
+	synchronized void add(String id, long expirationMillis, T value) {
+		remove(id);
+		Timer<T> timer = new Timer<>(id, Math.floorDiv(expirationMillis + tickMillis - 1, tickMillis), value);
+		timers.put(id, timer);
+		place(timer);
+	}
+	
+	// Devuelve el valor del temporizador cancelado o null si no existe
+	synchronized T remove(String id) {
+		Timer<T> timer = timers.remove(id);
+		if(timer == null)
+			return null;
+		timer.cancelled = true;
+		return timer.value;
+	}
+	
+	synchronized List<T> removeIf(Predicate<T> predicate) {
+		List<T> removed = new ArrayList<>();
+		timers.values().removeIf(timer -> {
+			if(!predicate.test(timer.value))
+				return false;
+			timer.cancelled = true;
+			removed.add(timer.value);
+			return true;
+		});
+		return removed;
+	}
+	
+	synchronized int size() {
+		return timers.size();
+	}
+	
+	// Avanza la rueda hasta el instante indicado y devuelve los valores de los temporizadores vencidos
+	synchronized List<T> advance(long nowMillis) {
+		List<T> expired = new ArrayList<>();
+		long targetTick = nowMillis / tickMillis;
+		while(currentTick < targetTick) {
+			currentTick++;
+			// Cascada desde el nivel más alto que empieza una nueva ranura en este tick
+			long levelTicks = 1;
+			int topLevel = 0;
+			for(int level = 1; level < levels; level++) {
+				levelTicks *= wheelSize;
+				if(currentTick % levelTicks != 0)
+					break;
+				topLevel = level;
+			}
+			for(int level = topLevel; level >= 1; level--)
+				drain(level, slotOf(level, currentTick), expired);
+			drain(0, slotOf(0, currentTick), expired);
+		}
+		return expired;
+	}
+	
+	private void drain(int level, int slot, List<T> expired) {
+		List<Timer<T>> slotTimers = wheels.get(level).get(slot);
+		if(slotTimers.isEmpty())
+			return;
+		wheels.get(level).set(slot, new ArrayList<>());
+		for(Timer<T> timer : slotTimers) {
+			if(timer.cancelled)
+				continue;
+			if(timer.expirationTick <= currentTick) {
+				timers.remove(timer.id);
+				expired.add(timer.value);
+			}
+			else
+				place(timer);
+		}
+	}
+	
+	private void place(Timer<T> timer) {
+		long expirationTick = Math.max(timer.expirationTick, currentTick + 1);
+		long delta = expirationTick - currentTick;
+		int level = 0;
+		long levelSpan = wheelSize;
+		while(level < levels - 1 && delta >= levelSpan) {
+			level++;
+			levelSpan *= wheelSize;
+		}
+		wheels.get(level).get(slotOf(level, expirationTick)).add(timer);
+	}
+	
+	private int slotOf(int level, long tick) {
+		long levelTicks = 1;
+		for(int i = 0; i < level; i++)
+			levelTicks *= wheelSize;
+		return (int)((tick / levelTicks) % wheelSize);
+	}
+	
+	private static class Timer<T> {
+		private final String id;
+		private final long expirationTick;
+		private final T value;
+		private boolean cancelled;
+		
+		Timer(String id, long expirationTick, T value) {
+			this.id = id;
+			this.expirationTick = expirationTick;
+			this.value = value;
+		}
+	}
+}
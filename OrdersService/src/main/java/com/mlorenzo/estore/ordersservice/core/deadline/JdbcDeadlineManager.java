@@ -0,0 +1,425 @@
+package com.mlorenzo.estore.ordersservice.core.deadline;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import org.axonframework.common.transaction.TransactionManager;
+import org.axonframework.deadline.AbstractDeadlineManager;
+import org.axonframework.deadline.DeadlineMessage;
+import org.axonframework.deadline.GenericDeadlineMessage;
+import org.axonframework.messaging.DefaultInterceptorChain;
+import org.axonframework.messaging.InterceptorChain;
+import org.axonframework.messaging.MetaData;
+import org.axonframework.messaging.ResultMessage;
+import org.axonframework.messaging.ScopeAware;
+import org.axonframework.messaging.ScopeAwareProvider;
+import org.axonframework.messaging.ScopeDescriptor;
+import org.axonframework.messaging.unitofwork.CurrentUnitOfWork;
+import org.axonframework.messaging.unitofwork.DefaultUnitOfWork;
+import org.axonframework.messaging.unitofwork.UnitOfWork;
+import org.axonframework.serialization.SerializedObject;
+import org.axonframework.serialization.Serializer;
+import org.axonframework.serialization.SimpleSerializedObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+
+import lombok.Builder;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.Value;
+
+// Programador de Deadlines persistente que sustituye al programador SimpleDeadlineManager del framework Axon.
+// Los Deadlines se guardan en la tabla "deadlines" agrupados en cubos de tiempo(columna "bucket"), así que sobreviven a los reinicios de la aplicación y pueden quedar pendientes millones de ellos sin ocupar memoria.
+// Cada instancia de este microservicio reclama periódicamente(ver propiedad "orders.deadlines.poll-interval") los Deadlines de los cubos que vencen dentro de la ventana "orders.deadlines.lookahead" mediante un arrendamiento(lease)
+// con caducidad. Los Deadlines reclamados se cargan en una rueda de temporización jerárquica en memoria(ver clase HierarchicalTimingWheel) que los dispara con baja latencia. Si una instancia se cae, sus arrendamientos caducan
+// y otra instancia reclama sus Deadlines.
+// Nota: Al disparar un Deadline, su fila se borra en la misma transacción que ejecuta su manejador y antes de ejecutarlo. Si el borrado no afecta a ninguna fila es porque el Deadline se ha cancelado o lo ha reclamado otra instancia,
+// así que no se ejecuta. De esta forma, un Deadline nunca se ejecuta 2 veces.
+// Las cancelaciones realizadas dentro de una unidad de trabajo(Por ejemplo, la de un lote de eventos del componente SAGA) se acumulan y se borran de la tabla con una única sentencia por lotes justo antes de confirmar
+// la transacción. En memoria, cancelar un Deadline sólo marca su temporizador como cancelado(ver clase HierarchicalTimingWheel), así que su coste es constante.
+public class JdbcDeadlineManager extends AbstractDeadlineManager implements SmartLifecycle, InitializingBean {
+	private static final Logger LOGGER = LoggerFactory.getLogger(JdbcDeadlineManager.class);
+	private static final int WHEEL_SIZE = 64;
+	private static final int WHEEL_LEVELS = 3;
+	private static final String PENDING_CANCELLATIONS_RESOURCE = JdbcDeadlineManager.class.getName() + ".pendingCancellations";
+	private static final String SELECT_COLUMNS = "SELECT schedule_id, deadline_name, scope_key, trigger_time, payload_type, payload_revision, payload, meta_data, scope_type, scope FROM deadlines";
+	private static final RowMapper<PersistedDeadline> ROW_MAPPER = (resultSet, rowNum) -> new PersistedDeadline(
+			resultSet.getString("schedule_id"),
+			resultSet.getString("deadline_name"),
+			resultSet.getString("scope_key"),
+			resultSet.getLong("trigger_time"),
+			resultSet.getString("payload_type"),
+			resultSet.getString("payload_revision"),
+			resultSet.getBytes("payload"),
+			resultSet.getBytes("meta_data"),
+			resultSet.getString("scope_type"),
+			resultSet.getBytes("scope"));
+
+	private final ScopeAwareProvider scopeAwareProvider;
+	private final TransactionManager transactionManager;
+	private final JdbcTemplate jdbcTemplate;
+	private final Supplier<Serializer> serializer;
+	private final String ownerId;
+	private final long bucketMillis;
+	private final long pollIntervalMillis;
+	private final long lookaheadMillis;
+	private final long leaseMillis;
+	private final long tickMillis;
+	private final int maxInMemory;
+	private final HierarchicalTimingWheel<PersistedDeadline> timingWheel;
+	private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2);
+	private final ExecutorService deadlineExecutor;
+	// Ids de programación de los Deadlines que están en la rueda de temporización, agrupados por nombre y ámbito, para cancelar en memoria los Deadlines de un ámbito sin recorrer la rueda
+	private final ConcurrentMap<String, Set<String>> inMemoryByScope = new ConcurrentHashMap<>();
+	private final AtomicLong scheduledDeadlines = new AtomicLong();
+	private final AtomicLong firedDeadlines = new AtomicLong();
+	private final AtomicLong cancelledDeadlines = new AtomicLong();
+	private volatile boolean running;
+
+	@Builder
+	private JdbcDeadlineManager(ScopeAwareProvider scopeAwareProvider, TransactionManager transactionManager, JdbcTemplate jdbcTemplate, Supplier<Serializer> serializer,
+			String ownerId, Duration bucketSize, Duration pollInterval, Duration lookahead, Duration leaseDuration, Duration tick, int maxInMemory, int threadCount) {
+		this.scopeAwareProvider = scopeAwareProvider;
+		this.transactionManager = transactionManager;
+		this.jdbcTemplate = jdbcTemplate;
+		this.serializer = serializer;
+		this.ownerId = ownerId;
+		this.bucketMillis = bucketSize.toMillis();
+		this.pollIntervalMillis = pollInterval.toMillis();
+		this.lookaheadMillis = lookahead.toMillis();
+		this.leaseMillis = leaseDuration.toMillis();
+		this.tickMillis = tick.toMillis();
+		this.maxInMemory = maxInMemory;
+		this.timingWheel = new HierarchicalTimingWheel<>(tickMillis, WHEEL_SIZE, WHEEL_LEVELS, System.currentTimeMillis());
+		this.deadlineExecutor = Executors.newFixedThreadPool(threadCount);
+	}
+
+	@Override
+	public void afterPropertiesSet() {
+		jdbcTemplate.execute("CREATE TABLE IF NOT EXISTS deadlines (schedule_id VARCHAR(255) PRIMARY KEY, deadline_name VARCHAR(255) NOT NULL, scope_key VARCHAR(1024), "
+				+ "bucket BIGINT NOT NULL, trigger_time BIGINT NOT NULL, payload_type VARCHAR(255), payload_revision VARCHAR(255), payload BLOB, meta_data BLOB, scope_type VARCHAR(255), scope BLOB, "
+				+ "lease_owner VARCHAR(255), lease_token VARCHAR(255), lease_expiry BIGINT)");
+		jdbcTemplate.execute("CREATE INDEX IF NOT EXISTS deadlines_bucket_idx ON deadlines (bucket, trigger_time)");
+		jdbcTemplate.execute("CREATE INDEX IF NOT EXISTS deadlines_name_scope_idx ON deadlines (deadline_name, scope_key)");
+		jdbcTemplate.execute("CREATE INDEX IF NOT EXISTS deadlines_lease_owner_idx ON deadlines (lease_owner)");
+		jdbcTemplate.execute("CREATE INDEX IF NOT EXISTS deadlines_lease_token_idx ON deadlines (lease_token)");
+	}
+
+	// El Deadline se guarda en la transacción en curso(Por ejemplo, la del manejador de eventos del componente SAGA que lo programa), así que sólo existe si esa transacción se confirma.
+	// Si vence dentro de la ventana de reclamación, esta instancia lo reclama directamente y lo añade a la rueda de temporización al confirmarse la transacción
+	@Override
+	public String schedule(Instant triggerDateTime, String deadlineName, Object messageOrPayload, ScopeDescriptor deadlineScope) {
+		DeadlineMessage<Object> deadlineMessage = processDispatchInterceptors(GenericDeadlineMessage.asDeadlineMessage(deadlineName, messageOrPayload, triggerDateTime));
+		String scheduleId = deadlineMessage.getIdentifier();
+		long triggerTime = triggerDateTime.toEpochMilli();
+		PersistedDeadline deadline = toPersistedDeadline(scheduleId, deadlineMessage, deadlineScope, triggerTime);
+		// Las cancelaciones pendientes de esta unidad de trabajo se aplican antes para que no borren un Deadline programado después de ellas
+		flushPendingCancellations();
+		long now = System.currentTimeMillis();
+		boolean claim = running && triggerTime < now + lookaheadMillis && timingWheel.size() < maxInMemory;
+		jdbcTemplate.update("INSERT INTO deadlines (schedule_id, deadline_name, scope_key, bucket, trigger_time, payload_type, payload_revision, payload, meta_data, scope_type, scope, lease_owner, lease_token, lease_expiry) "
+				+ "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)",
+				scheduleId, deadlineName, deadline.getScopeKey(), bucketOf(triggerTime), triggerTime, deadline.getPayloadType(), deadline.getPayloadRevision(), deadline.getPayload(),
+				deadline.getMetaData(), deadline.getScopeType(), deadline.getScope(),
+				claim ? ownerId : null, claim ? scheduleId : null, claim ? now + leaseMillis : null);
+		runOnAfterCommitOrNow(scheduledDeadlines::incrementAndGet);
+		if(claim)
+			runOnAfterCommitOrNow(() -> addToTimingWheel(deadline));
+		return scheduleId;
+	}
+
+	@Override
+	public void cancelSchedule(String deadlineName, String scheduleId) {
+		cancel(new Cancellation(deadlineName, scheduleId, null));
+	}
+
+	@Override
+	public void cancelAll(String deadlineName) {
+		cancel(new Cancellation(deadlineName, null, null));
+	}
+
+	// Cancela todos los Deadlines con el nombre indicado de un ámbito(Por ejemplo, una instancia SAGA) sin necesidad de conocer sus ids de programación
+	@Override
+	public void cancelAllWithinScope(String deadlineName, ScopeDescriptor scope) {
+		cancel(new Cancellation(deadlineName, null, scope.scopeDescription()));
+	}
+
+	// Estadísticas de esta instancia desde que se inició, junto con el número total de Deadlines pendientes en la tabla
+	public DeadlineManagerStats stats() {
+		Long outstanding = jdbcTemplate.queryForObject("SELECT COUNT(*) FROM deadlines", Long.class);
+		return new DeadlineManagerStats(outstanding == null ? 0 : outstanding, timingWheel.size(), scheduledDeadlines.get(), firedDeadlines.get(), cancelledDeadlines.get());
+	}
+
+	@Override
+	public void start() {
+		running = true;
+		scheduler.scheduleWithFixedDelay(this::poll, 0, pollIntervalMillis, TimeUnit.MILLISECONDS);
+		scheduler.scheduleAtFixedRate(this::tick, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+		LOGGER.info("Deadline manager {} started", ownerId);
+	}
+
+	@Override
+	public void stop() {
+		shutdown();
+	}
+
+	@Override
+	public boolean isRunning() {
+		return running;
+	}
+
+	// Al parar, se liberan los arrendamientos de esta instancia para que otra instancia(o esta misma al reiniciarse) reclame sus Deadlines sin esperar a que caduquen
+	@Override
+	public synchronized void shutdown() {
+		if(!running)
+			return;
+		running = false;
+		scheduler.shutdownNow();
+		deadlineExecutor.shutdown();
+		try {
+			deadlineExecutor.awaitTermination(10, TimeUnit.SECONDS);
+		}
+		catch(InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		jdbcTemplate.update("UPDATE deadlines SET lease_owner = NULL, lease_token = NULL, lease_expiry = NULL WHERE lease_owner = ?", ownerId);
+		LOGGER.info("Deadline manager {} stopped", ownerId);
+	}
+
+	// Renueva los arrendamientos de esta instancia y reclama, en un único lote, los Deadlines libres o con el arrendamiento caducado de los cubos que vencen dentro de la ventana de reclamación
+	private void poll() {
+		try {
+			long now = System.currentTimeMillis();
+			jdbcTemplate.update("UPDATE deadlines SET lease_expiry = ? WHERE lease_owner = ?", now + leaseMillis, ownerId);
+			int capacity = maxInMemory - timingWheel.size();
+			if(capacity <= 0)
+				return;
+			String leaseToken = UUID.randomUUID().toString();
+			int claimed = jdbcTemplate.update("UPDATE deadlines SET lease_owner = ?, lease_token = ?, lease_expiry = ? "
+					+ "WHERE (lease_owner IS NULL OR lease_expiry < ?) AND schedule_id IN "
+					+ "(SELECT schedule_id FROM deadlines WHERE bucket <= ? AND (lease_owner IS NULL OR lease_expiry < ?) ORDER BY bucket, trigger_time LIMIT ?)",
+					ownerId, leaseToken, now + leaseMillis, now, bucketOf(now + lookaheadMillis), now, capacity);
+			if(claimed == 0)
+				return;
+			List<PersistedDeadline> deadlines = jdbcTemplate.query(SELECT_COLUMNS + " WHERE lease_token = ?", ROW_MAPPER, leaseToken);
+			deadlines.forEach(this::addToTimingWheel);
+			LOGGER.debug("Claimed {} deadlines", deadlines.size());
+		}
+		catch(Exception ex) {
+			LOGGER.warn("Could not claim due deadlines: {}", ex.getMessage());
+		}
+	}
+
+	private void tick() {
+		try {
+			timingWheel.advance(System.currentTimeMillis()).forEach(deadline -> {
+				forgetInMemory(deadline);
+				deadlineExecutor.execute(() -> fire(deadline));
+			});
+		}
+		catch(Exception ex) {
+			LOGGER.warn("Could not fire due deadlines: {}", ex.getMessage());
+		}
+	}
+
+	// Igual que el programador SimpleDeadlineManager, el manejador del Deadline se ejecuta en una unidad de trabajo con transacción y pasando por los interceptores de manejadores
+	private void fire(PersistedDeadline deadline) {
+		try {
+			DeadlineMessage<?> deadlineMessage = toDeadlineMessage(deadline);
+			ScopeDescriptor deadlineScope = deserialize(deadline.getScope(), deadline.getScopeType(), null);
+			UnitOfWork<DeadlineMessage<?>> unitOfWork = new DefaultUnitOfWork<>(deadlineMessage);
+			unitOfWork.attachTransaction(transactionManager);
+			InterceptorChain chain = new DefaultInterceptorChain<>(unitOfWork, handlerInterceptors(), message -> {
+				if(jdbcTemplate.update("DELETE FROM deadlines WHERE schedule_id = ? AND lease_owner = ?", deadline.getScheduleId(), ownerId) == 0) {
+					LOGGER.debug("Deadline {} was cancelled or claimed by another instance", deadline.getScheduleId());
+					return null;
+				}
+				executeScheduledDeadline(message, deadlineScope);
+				unitOfWork.afterCommit(u -> firedDeadlines.incrementAndGet());
+				return null;
+			});
+			ResultMessage<?> resultMessage = unitOfWork.executeWithResult(chain::proceed);
+			// Como el programador SimpleDeadlineManager, un Deadline cuyo manejador falla no se vuelve a ejecutar
+			if(resultMessage.isExceptional()) {
+				LOGGER.error("Exception occurred during processing a deadline job [{}]", deadline.getDeadlineName(), resultMessage.exceptionResult());
+				jdbcTemplate.update("DELETE FROM deadlines WHERE schedule_id = ? AND lease_owner = ?", deadline.getScheduleId(), ownerId);
+			}
+		}
+		catch(Exception ex) {
+			LOGGER.error("Could not fire the deadline [{}] with schedule id {}", deadline.getDeadlineName(), deadline.getScheduleId(), ex);
+		}
+	}
+
+	private void addToTimingWheel(PersistedDeadline deadline) {
+		inMemoryByScope.computeIfAbsent(scopeIndexKey(deadline.getDeadlineName(), deadline.getScopeKey()), key -> ConcurrentHashMap.newKeySet()).add(deadline.getScheduleId());
+		timingWheel.add(deadline.getScheduleId(), deadline.getTriggerTime(), deadline);
+	}
+
+	private void forgetInMemory(PersistedDeadline deadline) {
+		inMemoryByScope.computeIfPresent(scopeIndexKey(deadline.getDeadlineName(), deadline.getScopeKey()), (key, scheduleIds) -> {
+			scheduleIds.remove(deadline.getScheduleId());
+			return scheduleIds.isEmpty() ? null : scheduleIds;
+		});
+	}
+
+	// Dentro de una unidad de trabajo, la cancelación se acumula hasta justo antes de confirmar su transacción. Fuera de ella, se aplica inmediatamente
+	private void cancel(Cancellation cancellation) {
+		if(CurrentUnitOfWork.isStarted() && CurrentUnitOfWork.get().phase().isBefore(UnitOfWork.Phase.PREPARE_COMMIT)) {
+			UnitOfWork<?> unitOfWork = CurrentUnitOfWork.get().root();
+			unitOfWork.getOrComputeResource(PENDING_CANCELLATIONS_RESOURCE, key -> {
+				PendingCancellations pendingCancellations = new PendingCancellations();
+				unitOfWork.onPrepareCommit(u -> flush(pendingCancellations));
+				unitOfWork.afterCommit(u -> apply(pendingCancellations));
+				return pendingCancellations;
+			}).getPending().add(cancellation);
+		}
+		else {
+			PendingCancellations pendingCancellations = new PendingCancellations();
+			pendingCancellations.getPending().add(cancellation);
+			flush(pendingCancellations);
+			apply(pendingCancellations);
+		}
+	}
+
+	private void flushPendingCancellations() {
+		if(CurrentUnitOfWork.isStarted()) {
+			PendingCancellations pendingCancellations = CurrentUnitOfWork.get().root().getResource(PENDING_CANCELLATIONS_RESOURCE);
+			if(pendingCancellations != null)
+				flush(pendingCancellations);
+		}
+	}
+
+	// Borra de la tabla las cancelaciones pendientes con una sentencia por lotes por cada tipo de cancelación
+	private void flush(PendingCancellations pendingCancellations) {
+		List<Cancellation> pending = pendingCancellations.getPending();
+		if(pending.isEmpty())
+			return;
+		List<Cancellation> bySchedule = new ArrayList<>();
+		List<Cancellation> byScope = new ArrayList<>();
+		List<Cancellation> byName = new ArrayList<>();
+		pending.forEach(cancellation -> (cancellation.getScheduleId() != null ? bySchedule : cancellation.getScopeKey() != null ? byScope : byName).add(cancellation));
+		int deleted = 0;
+		if(!bySchedule.isEmpty())
+			deleted += sum(jdbcTemplate.batchUpdate("DELETE FROM deadlines WHERE schedule_id = ? AND deadline_name = ?", bySchedule, bySchedule.size(), (preparedStatement, cancellation) -> {
+				preparedStatement.setString(1, cancellation.getScheduleId());
+				preparedStatement.setString(2, cancellation.getDeadlineName());
+			}));
+		if(!byScope.isEmpty())
+			deleted += sum(jdbcTemplate.batchUpdate("DELETE FROM deadlines WHERE deadline_name = ? AND scope_key = ?", byScope, byScope.size(), (preparedStatement, cancellation) -> {
+				preparedStatement.setString(1, cancellation.getDeadlineName());
+				preparedStatement.setString(2, cancellation.getScopeKey());
+			}));
+		if(!byName.isEmpty())
+			deleted += sum(jdbcTemplate.batchUpdate("DELETE FROM deadlines WHERE deadline_name = ?", byName, byName.size(), (preparedStatement, cancellation) -> {
+				preparedStatement.setString(1, cancellation.getDeadlineName());
+			}));
+		pendingCancellations.getFlushed().addAll(pending);
+		pendingCancellations.setDeleted(pendingCancellations.getDeleted() + deleted);
+		pending.clear();
+	}
+
+	// Una vez confirmada la transacción, se cancelan los temporizadores en memoria
+	private void apply(PendingCancellations pendingCancellations) {
+		cancelledDeadlines.addAndGet(pendingCancellations.getDeleted());
+		for(Cancellation cancellation : pendingCancellations.getFlushed()) {
+			if(cancellation.getScheduleId() != null) {
+				PersistedDeadline deadline = timingWheel.remove(cancellation.getScheduleId());
+				if(deadline != null)
+					forgetInMemory(deadline);
+			}
+			else if(cancellation.getScopeKey() != null) {
+				Set<String> scheduleIds = inMemoryByScope.remove(scopeIndexKey(cancellation.getDeadlineName(), cancellation.getScopeKey()));
+				if(scheduleIds != null)
+					scheduleIds.forEach(timingWheel::remove);
+			}
+			else
+				timingWheel.removeIf(deadline -> deadline.getDeadlineName().equals(cancellation.getDeadlineName())).forEach(this::forgetInMemory);
+		}
+	}
+
+	private static int sum(int[][] updateCounts) {
+		int total = 0;
+		for(int[] batchCounts : updateCounts)
+			for(int count : batchCounts)
+				total += Math.max(count, 0);
+		return total;
+	}
+
+	private static String scopeIndexKey(String deadlineName, String scopeKey) {
+		return deadlineName + '\n' + scopeKey;
+	}
+
+	private void executeScheduledDeadline(DeadlineMessage<?> deadlineMessage, ScopeDescriptor deadlineScope) throws Exception {
+		Iterator<ScopeAware> scopeAwareComponents = scopeAwareProvider.provideScopeAwareStream(deadlineScope).iterator();
+		while(scopeAwareComponents.hasNext()) {
+			ScopeAware scopeAware = scopeAwareComponents.next();
+			if(scopeAware.canResolve(deadlineScope))
+				scopeAware.send(deadlineMessage, deadlineScope);
+		}
+	}
+
+	private PersistedDeadline toPersistedDeadline(String scheduleId, DeadlineMessage<?> deadlineMessage, ScopeDescriptor deadlineScope, long triggerTime) {
+		SerializedObject<byte[]> payload = deadlineMessage.getPayload() == null ? null : serializer.get().serialize(deadlineMessage.getPayload(), byte[].class);
+		SerializedObject<byte[]> metaData = serializer.get().serialize(deadlineMessage.getMetaData(), byte[].class);
+		SerializedObject<byte[]> scope = serializer.get().serialize(deadlineScope, byte[].class);
+		return new PersistedDeadline(scheduleId, deadlineMessage.getDeadlineName(), deadlineScope.scopeDescription(), triggerTime,
+				payload == null ? null : payload.getType().getName(), payload == null ? null : payload.getType().getRevision(), payload == null ? null : payload.getData(),
+				metaData.getData(), scope.getType().getName(), scope.getData());
+	}
+
+	private DeadlineMessage<?> toDeadlineMessage(PersistedDeadline deadline) {
+		Object payload = deadline.getPayloadType() == null ? null : deserialize(deadline.getPayload(), deadline.getPayloadType(), deadline.getPayloadRevision());
+		Map<String, ?> metaData = deserialize(deadline.getMetaData(), MetaData.class.getName(), null);
+		return new GenericDeadlineMessage<>(deadline.getDeadlineName(), deadline.getScheduleId(), payload, metaData, Instant.ofEpochMilli(deadline.getTriggerTime()));
+	}
+
+	private <T> T deserialize(byte[] data, String type, String revision) {
+		return serializer.get().deserialize(new SimpleSerializedObject<>(data, byte[].class, type, revision));
+	}
+
+	private long bucketOf(long time) {
+		return time / bucketMillis;
+	}
+
+	// Cancelación de un Deadline por id de programación, por ámbito o, si no se indica ninguno de los 2, de todos los Deadlines con ese nombre
+	@Value
+	private static class Cancellation {
+		private String deadlineName;
+		private String scheduleId;
+		private String scopeKey;
+	}
+
+	// Cancelaciones acumuladas durante una unidad de trabajo
+	@Getter
+	@Setter
+	private static class PendingCancellations {
+		private final List<Cancellation> pending = new ArrayList<>();
+		private final List<Cancellation> flushed = new ArrayList<>();
+		private int deleted;
+	}
+
+	private static void runOnAfterCommitOrNow(Runnable task) {
+		if(CurrentUnitOfWork.isStarted() && CurrentUnitOfWork.get().phase().isBefore(UnitOfWork.Phase.AFTER_COMMIT))
+			CurrentUnitOfWork.get().afterCommit(unitOfWork -> task.run());
+		else
+			task.run();
+	}
+}
@@ -0,0 +1,18 @@
+package com.mlorenzo.estore.ordersservice.core.deadline;
+
+import lombok.Value;
+
+// Deadline tal y como se guarda en la tabla "deadlines": el payload, los metadatos y el ámbito(Por ejemplo, la instancia SAGA) se guardan serializados
+@Value
+class PersistedDeadline {
+	private String scheduleId;
+	private String deadlineName;
+	private String scopeKey;
+	private long triggerTime;
+	private String payloadType;
+	private String payloadRevision;
+	private byte[] payload;
+	private byte[] metaData;
+	private String scopeType;
+	private byte[] scope;
+}
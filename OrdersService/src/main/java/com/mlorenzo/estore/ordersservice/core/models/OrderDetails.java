@@ -0,0 +1,16 @@
+package com.mlorenzo.estore.ordersservice.core.models;
+
+import java.time.Instant;
+
+import lombok.Value;
+
+@Value
+public class OrderDetails {
+	private String orderId;
+	private String productId;
+	private String userId;
+	private int quantity;
+	private String addressId;
+	private OrderStatus orderStatus;
+	private Instant createdAt;
+}
@@ -0,0 +1,12 @@
+package com.mlorenzo.estore.ordersservice.core.models;
+
+import java.util.List;
+
+import lombok.Value;
+
+// Página de órdenes ordenadas de la más reciente a la más antigua. "nextCursor" es el cursor que hay que indicar para obtener la página siguiente(ver clase OrderCursor) y es nulo en la última página
+@Value
+public class OrdersPage {
+	private List<OrderDetails> orders;
+	private String nextCursor;
+}
@@ -0,0 +1,18 @@
+package com.mlorenzo.estore.ordersservice.core.queries;
+
+import java.time.Instant;
+
+import com.mlorenzo.estore.ordersservice.core.models.OrderStatus;
+
+import lombok.Value;
+
+// Consulta paginada de las órdenes con un estado determinado(Por ejemplo, las órdenes pendientes de aprobar) creadas en el intervalo [from, to).
+// Las órdenes se devuelven de la más reciente a la más antigua. "after" es el cursor de la página anterior(ver clase OrderCursor) o nulo para la primera página
+@Value
+public class FindOrdersByStatusQuery {
+	private OrderStatus orderStatus;
+	private Instant from;
+	private Instant to;
+	private OrderCursor after;
+	private int size;
+}
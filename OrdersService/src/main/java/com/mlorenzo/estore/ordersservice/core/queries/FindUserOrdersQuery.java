@@ -0,0 +1,16 @@
+package com.mlorenzo.estore.ordersservice.core.queries;
+
+import java.time.Instant;
+
+import lombok.Value;
+
+// Consulta paginada de las órdenes de un usuario creadas en el intervalo [from, to).
+// Las órdenes se devuelven de la más reciente a la más antigua. "after" es el cursor de la página anterior(ver clase OrderCursor) o nulo para la primera página
+@Value
+public class FindUserOrdersQuery {
+	private String userId;
+	private Instant from;
+	private Instant to;
+	private OrderCursor after;
+	private int size;
+}
@@ -0,0 +1,31 @@
+package com.mlorenzo.estore.ordersservice.core.queries;
+
+import java.time.DateTimeException;
+import java.time.Instant;
+
+import lombok.Value;
+
+// Cursor de la paginación por clave de las consultas de órdenes: fecha de creación e id de la última orden de la página anterior.
+// Las consultas devuelven las órdenes anteriores a esa orden en el orden(fecha de creación, id) descendente, así que su coste no depende de la posición de la página, a diferencia de la paginación por número de página.
+// En las peticiones REST se representa como "<milisegundos desde epoch>:<id de la orden>"
+@Value
+public class OrderCursor {
+	private Instant createdAt;
+	private String orderId;
+
+	public static OrderCursor parse(String cursor) {
+		int separator = cursor.indexOf(':');
+		if(separator <= 0 || separator == cursor.length() - 1)
+			throw new IllegalArgumentException(String.format("Invalid order cursor %s", cursor));
+		try {
+			return new OrderCursor(Instant.ofEpochMilli(Long.parseLong(cursor.substring(0, separator))), cursor.substring(separator + 1));
+		}
+		catch(NumberFormatException | DateTimeException ex) {
+			throw new IllegalArgumentException(String.format("Invalid order cursor %s", cursor), ex);
+		}
+	}
+
+	public String encode() {
+		return createdAt.toEpochMilli() + ":" + orderId;
+	}
+}
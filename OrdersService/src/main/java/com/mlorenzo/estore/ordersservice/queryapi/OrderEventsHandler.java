@@ -1,6 +1,10 @@
 package com.mlorenzo.estore.ordersservice.queryapi;
 
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+
 import org.axonframework.eventhandling.EventHandler;
+import org.axonframework.eventhandling.Timestamp;
 import org.springframework.beans.BeanUtils;
 import org.springframework.stereotype.Component;
 
@@ -22,10 +26,12 @@ public class OrderEventsHandler {
 	private final OrderRepository orderRepository;
 	
 	// Anotación para que este método sea un manejador de eventos(En este caso, de tipo OrderCreatedEvent)
+	// Con la anotación @Timestamp, el framework Axon inyecta la fecha en la que se publicó el evento, que usamos como fecha de creación de la orden en las consultas por intervalo de fechas
 	@EventHandler
-	public void on(OrderCreatedEvent event) {
+	public void on(OrderCreatedEvent event, @Timestamp Instant timestamp) {
 		OrderEntity orderEntity = new OrderEntity();
 		BeanUtils.copyProperties(event, orderEntity);
+		orderEntity.setCreatedAt(timestamp.truncatedTo(ChronoUnit.MILLIS));
 		orderRepository.save(orderEntity);
 	}
 	
@@ -1,10 +1,22 @@
 package com.mlorenzo.estore.ordersservice.queryapi;
 
+import java.time.Instant;
+import java.util.List;
+import java.util.stream.Collectors;
+
 import org.axonframework.queryhandling.QueryHandler;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.stereotype.Component;
 
+import com.mlorenzo.estore.ordersservice.core.models.OrderDetails;
 import com.mlorenzo.estore.ordersservice.core.models.OrderSummary;
+import com.mlorenzo.estore.ordersservice.core.models.OrdersPage;
 import com.mlorenzo.estore.ordersservice.core.queries.FindOrderQuery;
+import com.mlorenzo.estore.ordersservice.core.queries.FindOrdersByStatusQuery;
+import com.mlorenzo.estore.ordersservice.core.queries.FindOrdersQuery;
+import com.mlorenzo.estore.ordersservice.core.queries.FindUserOrdersQuery;
+import com.mlorenzo.estore.ordersservice.core.queries.OrderCursor;
+import com.mlorenzo.estore.ordersservice.queryapi.data.OrderEntity;
 import com.mlorenzo.estore.ordersservice.queryapi.data.OrderRepository;
 
 import lombok.AllArgsConstructor;
@@ -24,4 +36,53 @@ public class OrderQueryHandler {
 				.map(order -> new OrderSummary(order.getOrderId(), order.getOrderStatus(), ""))
 				.orElseThrow();
 	}
+	
+	// Manejadores de las Queries de listados de órdenes. Cada una usa su propio índice de la tabla "orders"(ver clase OrderEntity) y la paginación por clave(ver clase OrderCursor).
+	// Se pide una orden más que el tamaño de la página para saber, sin una consulta adicional, si existe una página siguiente
+	
+	// Anotación para que este método sea un manejador de Queries(En este caso, de tipo FindUserOrdersQuery)
+	@QueryHandler
+	public OrdersPage findUserOrders(FindUserOrdersQuery findUserOrdersQuery) {
+		OrderCursor before = before(findUserOrdersQuery.getAfter(), findUserOrdersQuery.getTo());
+		return toPage(orderRepository.findUserOrdersBefore(findUserOrdersQuery.getUserId(), findUserOrdersQuery.getFrom(),
+				before.getCreatedAt(), before.getOrderId(), PageRequest.of(0, findUserOrdersQuery.getSize() + 1)), findUserOrdersQuery.getSize());
+	}
+	
+	// Anotación para que este método sea un manejador de Queries(En este caso, de tipo FindOrdersByStatusQuery)
+	@QueryHandler
+	public OrdersPage findOrdersByStatus(FindOrdersByStatusQuery findOrdersByStatusQuery) {
+		OrderCursor before = before(findOrdersByStatusQuery.getAfter(), findOrdersByStatusQuery.getTo());
+		return toPage(orderRepository.findOrdersByStatusBefore(findOrdersByStatusQuery.getOrderStatus(), findOrdersByStatusQuery.getFrom(),
+				before.getCreatedAt(), before.getOrderId(), PageRequest.of(0, findOrdersByStatusQuery.getSize() + 1)), findOrdersByStatusQuery.getSize());
+	}
+	
+	// Anotación para que este método sea un manejador de Queries(En este caso, de tipo FindOrdersQuery)
+	@QueryHandler
+	public OrdersPage findOrders(FindOrdersQuery findOrdersQuery) {
+		OrderCursor before = before(findOrdersQuery.getAfter(), findOrdersQuery.getTo());
+		return toPage(orderRepository.findOrdersBefore(findOrdersQuery.getFrom(),
+				before.getCreatedAt(), before.getOrderId(), PageRequest.of(0, findOrdersQuery.getSize() + 1)), findOrdersQuery.getSize());
+	}
+	
+	// Sin cursor(primera página), o con un cursor que no es anterior al límite superior del intervalo, se empieza en ese límite. El id vacío hace que se excluyan las órdenes creadas exactamente
+	// en ese instante(intervalo abierto por arriba)
+	private static OrderCursor before(OrderCursor after, Instant to) {
+		return after != null && after.getCreatedAt().isBefore(to) ? after : new OrderCursor(to, "");
+	}
+	
+	private static OrdersPage toPage(List<OrderEntity> orderEntities, int size) {
+		List<OrderDetails> orders = orderEntities.stream()
+				.limit(size)
+				.map(OrderQueryHandler::toDetails)
+				.collect(Collectors.toList());
+		String nextCursor = orderEntities.size() > size
+				? new OrderCursor(orders.get(size - 1).getCreatedAt(), orders.get(size - 1).getOrderId()).encode()
+				: null;
+		return new OrdersPage(orders, nextCursor);
+	}
+	
+	private static OrderDetails toDetails(OrderEntity orderEntity) {
+		return new OrderDetails(orderEntity.getOrderId(), orderEntity.getProductId(), orderEntity.getUserId(), orderEntity.getQuantity(),
+				orderEntity.getAddressId(), orderEntity.getOrderStatus(), orderEntity.getCreatedAt());
+	}
 }
@@ -0,0 +1,181 @@
+package com.mlorenzo.estore.ordersservice.queryapi;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
+
+import org.axonframework.common.Registration;
+import org.axonframework.messaging.MessageDispatchInterceptor;
+import org.axonframework.messaging.unitofwork.CurrentUnitOfWork;
+import org.axonframework.messaging.unitofwork.UnitOfWork;
+import org.axonframework.queryhandling.GenericSubscriptionQueryUpdateMessage;
+import org.axonframework.queryhandling.QueryUpdateEmitter;
+import org.axonframework.queryhandling.SimpleQueryUpdateEmitter;
+import org.axonframework.queryhandling.SubscriptionQueryBackpressure;
+import org.axonframework.queryhandling.SubscriptionQueryMessage;
+import org.axonframework.queryhandling.SubscriptionQueryUpdateMessage;
+import org.axonframework.queryhandling.UpdateHandlerRegistration;
+
+import com.mlorenzo.estore.ordersservice.core.queries.FindOrderQuery;
+
+import reactor.core.publisher.BufferOverflowStrategy;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Sinks;
+
+// Emisor de actualizaciones de Subscription Queries que indexa las suscripciones de tipo FindOrderQuery por el id de la orden.
+// El emisor por defecto del framework Axon(SimpleQueryUpdateEmitter) evalúa el filtro de cada emisión contra todas las suscripciones abiertas, por lo que el coste de emitir
+// crece con el número de órdenes en curso. Con este índice, emitir la actualización de una orden concreta(ver método "emitForOrder") sólo accede a las suscripciones de esa orden.
+// El resto de Subscription Queries se delegan en un SimpleQueryUpdateEmitter.
+public class OrderQueryUpdateEmitter implements QueryUpdateEmitter {
+	private final QueryUpdateEmitter delegate = SimpleQueryUpdateEmitter.builder().build();
+	private final ConcurrentMap<String, Map<SubscriptionQueryMessage<?, ?, ?>, Sinks.Many<SubscriptionQueryUpdateMessage<?>>>> subscriptionsByOrderId = new ConcurrentHashMap<>();
+	private final List<MessageDispatchInterceptor<? super SubscriptionQueryUpdateMessage<?>>> dispatchInterceptors = new CopyOnWriteArrayList<>();
+
+	// Emite una actualización únicamente a las Subscription Queries de tipo FindOrderQuery asociadas a la orden indicada
+	public void emitForOrder(String orderId, Object update) {
+		SubscriptionQueryUpdateMessage<?> updateMessage = GenericSubscriptionQueryUpdateMessage.asUpdateMessage(update);
+		runOnAfterCommitOrNow(() -> {
+			Map<SubscriptionQueryMessage<?, ?, ?>, Sinks.Many<SubscriptionQueryUpdateMessage<?>>> subscriptions = subscriptionsByOrderId.get(orderId);
+			if(subscriptions != null) {
+				SubscriptionQueryUpdateMessage<?> interceptedMessage = intercept(updateMessage);
+				subscriptions.values().forEach(sink -> emitNext(sink, interceptedMessage));
+			}
+		});
+	}
+
+	@Override
+	public boolean queryUpdateHandlerRegistered(SubscriptionQueryMessage<?, ?, ?> query) {
+		if(!isFindOrderQuery(query))
+			return delegate.queryUpdateHandlerRegistered(query);
+		Map<SubscriptionQueryMessage<?, ?, ?>, Sinks.Many<SubscriptionQueryUpdateMessage<?>>> subscriptions = subscriptionsByOrderId.get(orderIdOf(query));
+		return subscriptions != null && subscriptions.containsKey(query);
+	}
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	@Override
+	public <U> UpdateHandlerRegistration<U> registerUpdateHandler(SubscriptionQueryMessage<?, ?, ?> query, SubscriptionQueryBackpressure backpressure, int updateBufferSize) {
+		if(!isFindOrderQuery(query))
+			return delegate.registerUpdateHandler(query, backpressure, updateBufferSize);
+		String orderId = orderIdOf(query);
+		Sinks.Many<SubscriptionQueryUpdateMessage<?>> sink = Sinks.many().unicast().onBackpressureBuffer();
+		subscriptionsByOrderId.compute(orderId, (key, subscriptions) -> {
+			Map<SubscriptionQueryMessage<?, ?, ?>, Sinks.Many<SubscriptionQueryUpdateMessage<?>>> result = subscriptions == null ? new ConcurrentHashMap<>() : subscriptions;
+			result.put(query, sink);
+			return result;
+		});
+		Registration registration = () -> {
+			subscriptionsByOrderId.computeIfPresent(orderId, (key, subscriptions) -> {
+				subscriptions.remove(query);
+				return subscriptions.isEmpty() ? null : subscriptions;
+			});
+			return true;
+		};
+		return new UpdateHandlerRegistration<>(registration, (Flux) withBackpressure(sink.asFlux(), backpressure, updateBufferSize).doFinally(signalType -> registration.cancel()), () -> {
+			registration.cancel();
+			sink.tryEmitComplete();
+		});
+	}
+
+	// Emisión genérica mediante un filtro. Para las suscripciones indexadas no podemos conocer la orden a partir del filtro, así que se evalúa contra todas ellas.
+	// Siempre que se conozca el id de la orden debe usarse el método "emitForOrder".
+	// Los interceptores se aplican una única vez y el mensaje interceptado se entrega tanto al emisor delegado como a las suscripciones indexadas.
+	@SuppressWarnings("unchecked")
+	@Override
+	public <U> void emit(Predicate<SubscriptionQueryMessage<?, ?, U>> filter, SubscriptionQueryUpdateMessage<U> update) {
+		runOnAfterCommitOrNow(() -> {
+			SubscriptionQueryUpdateMessage<U> interceptedMessage = (SubscriptionQueryUpdateMessage<U>) intercept(update);
+			delegate.emit(filter, interceptedMessage);
+			forEachIndexedSubscription(
+					query -> filter.test((SubscriptionQueryMessage<?, ?, U>) query),
+					(query, sink) -> emitNext(sink, interceptedMessage));
+		});
+	}
+
+	@Override
+	public void complete(Predicate<SubscriptionQueryMessage<?, ?, ?>> filter) {
+		delegate.complete(filter);
+		runOnAfterCommitOrNow(() -> forEachIndexedSubscription(filter, (query, sink) -> sink.tryEmitComplete()));
+	}
+
+	@Override
+	public void completeExceptionally(Predicate<SubscriptionQueryMessage<?, ?, ?>> filter, Throwable cause) {
+		delegate.completeExceptionally(filter, cause);
+		runOnAfterCommitOrNow(() -> forEachIndexedSubscription(filter, (query, sink) -> sink.tryEmitError(cause)));
+	}
+
+	@Override
+	public Set<SubscriptionQueryMessage<?, ?, ?>> activeSubscriptions() {
+		Set<SubscriptionQueryMessage<?, ?, ?>> activeSubscriptions = new HashSet<>(delegate.activeSubscriptions());
+		subscriptionsByOrderId.values().forEach(subscriptions -> activeSubscriptions.addAll(subscriptions.keySet()));
+		return activeSubscriptions;
+	}
+
+	// Los interceptores no se registran en el emisor delegado: se aplican en este emisor antes de entregar la actualización a cualquiera de los dos tipos de suscripciones(ver método "emit"),
+	// así que se ejecutan una única vez por actualización
+	@Override
+	public Registration registerDispatchInterceptor(MessageDispatchInterceptor<? super SubscriptionQueryUpdateMessage<?>> dispatchInterceptor) {
+		dispatchInterceptors.add(dispatchInterceptor);
+		return () -> dispatchInterceptors.remove(dispatchInterceptor);
+	}
+
+	private void forEachIndexedSubscription(Predicate<SubscriptionQueryMessage<?, ?, ?>> filter, BiConsumer<SubscriptionQueryMessage<?, ?, ?>, Sinks.Many<SubscriptionQueryUpdateMessage<?>>> action) {
+		subscriptionsByOrderId.values().forEach(subscriptions -> subscriptions.forEach((query, sink) -> {
+			if(filter.test(query))
+				action.accept(query, sink);
+		}));
+	}
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private SubscriptionQueryUpdateMessage<?> intercept(SubscriptionQueryUpdateMessage<?> message) {
+		SubscriptionQueryUpdateMessage intercepted = message;
+		for(MessageDispatchInterceptor interceptor : dispatchInterceptors)
+			intercepted = (SubscriptionQueryUpdateMessage) interceptor.handle(intercepted);
+		return intercepted;
+	}
+
+	// Aplica a las suscripciones indexadas la estrategia de contrapresión y el tamaño del buffer de actualizaciones indicados en la suscripción, igual que el emisor por defecto del framework Axon:
+	// con las estrategias DROP, LATEST y ERROR, cuando el suscriptor acumula "updateBufferSize" actualizaciones pendientes se descarta la nueva, se descarta la más antigua o se termina con error,
+	// respectivamente. Con BUFFER e IGNORE las actualizaciones pendientes se acumulan sin límite en el propio Sink
+	private static Flux<SubscriptionQueryUpdateMessage<?>> withBackpressure(Flux<SubscriptionQueryUpdateMessage<?>> updates, SubscriptionQueryBackpressure backpressure, int updateBufferSize) {
+		switch(backpressure.getOverflowStrategy()) {
+			case DROP:
+				return updates.onBackpressureBuffer(updateBufferSize, update -> {}, BufferOverflowStrategy.DROP_LATEST);
+			case LATEST:
+				return updates.onBackpressureBuffer(updateBufferSize, update -> {}, BufferOverflowStrategy.DROP_OLDEST);
+			case ERROR:
+				return updates.onBackpressureBuffer(updateBufferSize, update -> {}, BufferOverflowStrategy.ERROR);
+			default:
+				return updates;
+		}
+	}
+
+	// Un Sink de Reactor no admite emisiones concurrentes, así que las serializamos por suscripción
+	private void emitNext(Sinks.Many<SubscriptionQueryUpdateMessage<?>> sink, SubscriptionQueryUpdateMessage<?> message) {
+		synchronized(sink) {
+			sink.tryEmitNext(message);
+		}
+	}
+
+	// Igual que el emisor por defecto del framework Axon, si hay una unidad de trabajo en curso(Por ejemplo, la del manejador de eventos del componente SAGA) retrasamos la emisión
+	// hasta que esa unidad de trabajo se confirme para no emitir actualizaciones de cambios que finalmente se deshacen
+	private void runOnAfterCommitOrNow(Runnable task) {
+		if(CurrentUnitOfWork.isStarted() && CurrentUnitOfWork.get().phase().isBefore(UnitOfWork.Phase.AFTER_COMMIT))
+			CurrentUnitOfWork.get().afterCommit(unitOfWork -> task.run());
+		else
+			task.run();
+	}
+
+	private static boolean isFindOrderQuery(SubscriptionQueryMessage<?, ?, ?> query) {
+		return FindOrderQuery.class.equals(query.getPayloadType());
+	}
+
+	private static String orderIdOf(SubscriptionQueryMessage<?, ?, ?> query) {
+		return ((FindOrderQuery) query.getPayload()).getOrderId();
+	}
+}
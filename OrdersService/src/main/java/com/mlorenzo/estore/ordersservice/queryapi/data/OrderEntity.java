@@ -1,9 +1,12 @@
 package com.mlorenzo.estore.ordersservice.queryapi.data;
 
+import java.time.Instant;
+
 import javax.persistence.Entity;
 import javax.persistence.EnumType;
 import javax.persistence.Enumerated;
 import javax.persistence.Id;
+import javax.persistence.Index;
 import javax.persistence.Table;
 
 import com.mlorenzo.estore.ordersservice.core.models.OrderStatus;
@@ -12,7 +15,14 @@ import lombok.Data;
 
 @Data
 @Entity
-@Table(name = "orders")
+// Índices de las consultas de órdenes por usuario, por estado(Por ejemplo, las órdenes pendientes de aprobar) y por intervalo de fechas(ver clase OrderRepository).
+// Cada índice termina con la fecha de creación y el id de la orden en el mismo orden descendente en el que se devuelven las órdenes, así que cada página se lee directamente del índice,
+// a partir de la posición del cursor, sin ordenar ni recorrer las órdenes de las páginas anteriores
+@Table(name = "orders", indexes = {
+		@Index(name = "idx_orders_user_id_created_at", columnList = "userId, createdAt DESC, orderId DESC"),
+		@Index(name = "idx_orders_order_status_created_at", columnList = "orderStatus, createdAt DESC, orderId DESC"),
+		@Index(name = "idx_orders_created_at", columnList = "createdAt DESC, orderId DESC")
+})
 public class OrderEntity {
 
 	@Id
@@ -25,4 +35,7 @@ public class OrderEntity {
 	
 	@Enumerated(EnumType.STRING)
 	private OrderStatus orderStatus;
+	
+	// Fecha del evento OrderCreatedEvent, con precisión de milisegundos(la misma que la de los cursores de paginación)
+	private Instant createdAt;
 }
@@ -1,7 +1,35 @@
 package com.mlorenzo.estore.ordersservice.queryapi.data;
 
+import java.time.Instant;
+import java.util.List;
+
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 
-public interface OrderRepository extends JpaRepository<OrderEntity, String> {
+import com.mlorenzo.estore.ordersservice.core.models.OrderStatus;
 
+public interface OrderRepository extends JpaRepository<OrderEntity, String> {
+	
+	// Consultas con paginación por clave: devuelven las órdenes creadas desde "from" y anteriores a la orden(beforeCreatedAt, beforeOrderId) en el orden(fecha de creación, id) descendente.
+	// La condición "createdAt <= :beforeCreatedAt" es redundante, pero permite a la base de datos acotar el recorrido de los índices(ver clase OrderEntity) a partir de la posición del cursor.
+	// Para la primera página, el cursor es(to, "") y las consultas devuelven las órdenes creadas antes de "to".
+	// La ordenación incluye también la primera columna del índice(userId u orderStatus), aunque su valor es fijo, porque, si no, H2 no reconoce que el índice ya devuelve las órdenes ordenadas
+	// y las ordena en memoria después de leerlas todas.
+	// Devuelven listas en vez de objetos Page para no ejecutar la consulta "count" de Spring Data, que recorre todas las órdenes que cumplen el filtro
+	@Query("select o from OrderEntity o where o.userId = :userId and o.createdAt >= :from and o.createdAt <= :beforeCreatedAt"
+			+ " and (o.createdAt < :beforeCreatedAt or o.orderId < :beforeOrderId) order by o.userId, o.createdAt desc, o.orderId desc")
+	List<OrderEntity> findUserOrdersBefore(@Param("userId") String userId, @Param("from") Instant from,
+			@Param("beforeCreatedAt") Instant beforeCreatedAt, @Param("beforeOrderId") String beforeOrderId, Pageable pageable);
+	
+	@Query("select o from OrderEntity o where o.orderStatus = :orderStatus and o.createdAt >= :from and o.createdAt <= :beforeCreatedAt"
+			+ " and (o.createdAt < :beforeCreatedAt or o.orderId < :beforeOrderId) order by o.orderStatus, o.createdAt desc, o.orderId desc")
+	List<OrderEntity> findOrdersByStatusBefore(@Param("orderStatus") OrderStatus orderStatus, @Param("from") Instant from,
+			@Param("beforeCreatedAt") Instant beforeCreatedAt, @Param("beforeOrderId") String beforeOrderId, Pageable pageable);
+	
+	@Query("select o from OrderEntity o where o.createdAt >= :from and o.createdAt <= :beforeCreatedAt"
+			+ " and (o.createdAt < :beforeCreatedAt or o.orderId < :beforeOrderId) order by o.createdAt desc, o.orderId desc")
+	List<OrderEntity> findOrdersBefore(@Param("from") Instant from,
+			@Param("beforeCreatedAt") Instant beforeCreatedAt, @Param("beforeOrderId") String beforeOrderId, Pageable pageable);
 }
@@ -0,0 +1,106 @@
+package com.mlorenzo.estore.ordersservice.queryapi.rest;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.concurrent.CompletableFuture;
+
+import javax.servlet.http.HttpServletResponse;
+import javax.validation.ConstraintViolationException;
+import javax.validation.constraints.Max;
+import javax.validation.constraints.Min;
+import javax.validation.constraints.Pattern;
+
+import org.axonframework.messaging.responsetypes.ResponseTypes;
+import org.axonframework.queryhandling.QueryGateway;
+import org.springframework.http.HttpStatus;
+import org.springframework.validation.annotation.Validated;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import com.mlorenzo.estore.ordersservice.core.models.OrderStatus;
+import com.mlorenzo.estore.ordersservice.core.models.OrderSummary;
+import com.mlorenzo.estore.ordersservice.core.models.OrdersPage;
+import com.mlorenzo.estore.ordersservice.core.queries.FindOrderQuery;
+import com.mlorenzo.estore.ordersservice.core.queries.FindOrdersByStatusQuery;
+import com.mlorenzo.estore.ordersservice.core.queries.FindOrdersQuery;
+import com.mlorenzo.estore.ordersservice.core.queries.FindUserOrdersQuery;
+import com.mlorenzo.estore.ordersservice.core.queries.OrderCursor;
+
+import lombok.RequiredArgsConstructor;
+
+@Validated
+@RequiredArgsConstructor
+@RestController
+@RequestMapping("/orders")
+public class OrdersQueryController {
+	private static final int MAX_PAGE_SIZE = 1000;
+	// Formato de los cursores de paginación(ver clase OrderCursor). Los milisegundos se limitan a 15 dígitos para que un cursor demasiado largo se responda con un 400(Bad Request) en vez de fallar al convertirlo en un long
+	private static final String CURSOR_PATTERN = "\\d{1,15}:.+";
+	// Límites por defecto del intervalo de fechas de creación de los listados de órdenes
+	private static final Instant MIN_CREATED_AT = Instant.EPOCH;
+	private static final Instant MAX_CREATED_AT = Instant.parse("9999-12-31T00:00:00Z");
+	
+	private final QueryGateway queryGateway;
+	
+	// Endpoint de consulta al que apunta la cabecera "Location" de las respuestas 202(Accepted) del endpoint de creación de órdenes(ver clase OrdersCommandController)
+	// Devolvemos directamente el CompletableFuture para que Spring MVC procese la petición de forma asíncrona sin bloquear el hilo del servidor
+	@GetMapping("/{orderId}")
+	public CompletableFuture<OrderSummary> getOrder(@PathVariable String orderId) {
+		// Método que hace que el Query Gateway despache o envíe una query(En este caso de tipo FindOrderQuery) al Query Bus
+		return queryGateway.query(new FindOrderQuery(orderId), ResponseTypes.instanceOf(OrderSummary.class));
+	}
+	
+	// Endpoints de listados de órdenes, de la más reciente a la más antigua. Los parámetros "from" y "to" acotan la fecha de creación de las órdenes(formato ISO-8601, Por ejemplo, "2021-03-01T00:00:00Z")
+	// y el parámetro "after" es el valor "nextCursor" de la página anterior
+	
+	// Órdenes creadas en un intervalo de fechas
+	@GetMapping
+	public CompletableFuture<OrdersPage> getOrders(@RequestParam(required = false) Instant from,
+			@RequestParam(required = false) Instant to,
+			@RequestParam(required = false) @Pattern(regexp = CURSOR_PATTERN) String after,
+			@RequestParam(defaultValue = "100") @Min(1) @Max(MAX_PAGE_SIZE) int size) {
+		return queryGateway.query(new FindOrdersQuery(fromOrDefault(from), toOrDefault(to), cursor(after), size), ResponseTypes.instanceOf(OrdersPage.class));
+	}
+	
+	// Órdenes de un usuario
+	@GetMapping("/users/{userId}")
+	public CompletableFuture<OrdersPage> getUserOrders(@PathVariable String userId,
+			@RequestParam(required = false) Instant from,
+			@RequestParam(required = false) Instant to,
+			@RequestParam(required = false) @Pattern(regexp = CURSOR_PATTERN) String after,
+			@RequestParam(defaultValue = "100") @Min(1) @Max(MAX_PAGE_SIZE) int size) {
+		return queryGateway.query(new FindUserOrdersQuery(userId, fromOrDefault(from), toOrDefault(to), cursor(after), size), ResponseTypes.instanceOf(OrdersPage.class));
+	}
+	
+	// Órdenes con un estado determinado(Por ejemplo, /orders/status/CREATED para las órdenes pendientes de aprobar)
+	@GetMapping("/status/{orderStatus}")
+	public CompletableFuture<OrdersPage> getOrdersByStatus(@PathVariable OrderStatus orderStatus,
+			@RequestParam(required = false) Instant from,
+			@RequestParam(required = false) Instant to,
+			@RequestParam(required = false) @Pattern(regexp = CURSOR_PATTERN) String after,
+			@RequestParam(defaultValue = "100") @Min(1) @Max(MAX_PAGE_SIZE) int size) {
+		return queryGateway.query(new FindOrdersByStatusQuery(orderStatus, fromOrDefault(from), toOrDefault(to), cursor(after), size), ResponseTypes.instanceOf(OrdersPage.class));
+	}
+	
+	// Los parámetros no válidos(Por ejemplo, un cursor con un formato incorrecto o un tamaño de página fuera de rango) se responden con un 400(Bad Request) en vez de un 500
+	@ExceptionHandler(ConstraintViolationException.class)
+	public void handleConstraintViolationException(ConstraintViolationException ex, HttpServletResponse response) throws IOException {
+		response.sendError(HttpStatus.BAD_REQUEST.value(), ex.getMessage());
+	}
+	
+	private static Instant fromOrDefault(Instant from) {
+		return from != null ? from : MIN_CREATED_AT;
+	}
+	
+	private static Instant toOrDefault(Instant to) {
+		return to != null ? to : MAX_CREATED_AT;
+	}
+	
+	private static OrderCursor cursor(String after) {
+		return after != null ? OrderCursor.parse(after) : null;
+	}
+}
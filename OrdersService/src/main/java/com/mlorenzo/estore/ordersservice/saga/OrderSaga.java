@@ -1,18 +1,21 @@
 package com.mlorenzo.estore.ordersservice.saga;
 
 import java.time.Duration;
+import java.time.Instant;
 import java.time.temporal.ChronoUnit;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 import org.axonframework.commandhandling.gateway.CommandGateway;
 import org.axonframework.deadline.DeadlineManager;
 import org.axonframework.deadline.annotation.DeadlineHandler;
+import org.axonframework.eventhandling.Timestamp;
 import org.axonframework.messaging.responsetypes.ResponseTypes;
 import org.axonframework.modelling.saga.EndSaga;
 import org.axonframework.modelling.saga.SagaEventHandler;
 import org.axonframework.modelling.saga.StartSaga;
 import org.axonframework.queryhandling.QueryGateway;
-import org.axonframework.queryhandling.QueryUpdateEmitter;
 import org.axonframework.spring.stereotype.Saga;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -32,18 +35,22 @@ import com.mlorenzo.estore.ordersservice.core.events.OrderApprovedEvent;
 import com.mlorenzo.estore.ordersservice.core.events.OrderCreatedEvent;
 import com.mlorenzo.estore.ordersservice.core.events.OrderRejectedEvent;
 import com.mlorenzo.estore.ordersservice.core.models.OrderSummary;
-import com.mlorenzo.estore.ordersservice.core.queries.FindOrderQuery;
+import com.mlorenzo.estore.ordersservice.queryapi.OrderQueryUpdateEmitter;
+
+import io.micrometer.core.instrument.Timer;
 
 // Creamos en este microservicio el componente SAGA(modo orquestador en este caso) porque este microservicio es el encargado de iniciar el flujo o transacción
 
 // Anotación para indicar al framework Axon que esta clase es un componente SAGA.
 // Esta anotación también incluye la anotación @Componente que hace que esta clase sea un componente de Spring.
-@Saga
+// El atributo "sagaStore" indica el bean del almacén de instancias SAGA(ver clase principal OrdersServiceApplication)
+@Saga(sagaStore = "orderSagaStore")
 public class OrderSaga {
 	private static final Logger LOGGER = LoggerFactory.getLogger(OrderSaga.class);
 	private static final String PAYMENT_PROCESSING_TIMEOUT_DEADLINE = "payment-processing-deadline";
 	
-	private String scheduleId;
+	// Fecha del evento OrderCreatedEvent, para medir la duración total del flujo(ver clase OrderSagaMetrics)
+	private Instant orderCreatedAt;
 	
 	// Como SAGA es un componente serializable, es importante marcar las propiedades que inyectamos como "transient" para que no se serialicen
 	@Autowired
@@ -55,8 +62,13 @@ public class OrderSaga {
 	@Autowired
 	private transient DeadlineManager deadlineManager;
 	
+	// Usamos nuestro emisor OrderQueryUpdateEmitter para poder emitir las actualizaciones únicamente a las Subscription Queries de la orden de esta instancia SAGA
+	@Autowired
+	private transient OrderQueryUpdateEmitter queryUpdateEmitter;
+	
+	// Los pasos del flujo se miden desde que se despacha su Command o Query hasta que llega su resultado, así que se miden en los callbacks y no necesitan guardarse en el estado del componente SAGA
 	@Autowired
-	private transient QueryUpdateEmitter queryUpdateEmitter;
+	private transient OrderSagaMetrics sagaMetrics;
 	
 	// Como este evento OrderCreatedEvent es el inicio del flujo SAGA, anotamos este método con la anotación @StartSaga.
 	// Esta anotación crea una instancia del componente SAGA(En este caso, de esta clase OrderSaga).
@@ -64,7 +76,8 @@ public class OrderSaga {
 	// Anotación para que este método sea un manejador de eventos(En este caso, de tipo OrderCreatedEvent) de una instancia del componente SAGA(En este caso, esta clase OrderSaga).
 	// Como aquí se crea una instancia del componente SAGA debido al uso de la anotación @StartSaga, la propiedad indicada en el atributo "associationProperty" y su valor se asociarán a dicha instancia para poder localizarla y usarla posteriormente en la ejecución de los siguientes manejadores de eventos de tipo @SagaEventHandler.
 	@SagaEventHandler(associationProperty = "orderId")
-	public void handle(OrderCreatedEvent orderCreatedEvent) {
+	public void handle(OrderCreatedEvent orderCreatedEvent, @Timestamp Instant timestamp) {
+		orderCreatedAt = timestamp;
 		ReserveProductCommand reserveProductCommand = ReserveProductCommand.builder()
 				.orderId(orderCreatedEvent.getOrderId())
 				.productId(orderCreatedEvent.getProductId())
@@ -75,7 +88,9 @@ public class OrderSaga {
 		// Método que hace que el Command Gateway despache o envíe un command(En este caso de tipo ReserveProductCommand) al Command Bus.
 		// Operación no bloqueante. Existe otro método llamado "sendAndWait" que es bloqueante.
 		// El segundor argumento de entrada es opcional y es una implementación de la interfaz CommandCallback, es decir, es una función de Callback que se ejecutará cuando el método "send" finalice su ejecución.
+		Timer.Sample reserveProductStep = sagaMetrics.startStep();
 		commandGateway.send(reserveProductCommand, (commandMessage, commandResultMessage) -> {
+			sagaMetrics.stopStep(reserveProductStep, "reserve-product", !commandResultMessage.isExceptional());
 			// Si el resultado no ha sido satisfactorio, es decir, ha ocurrido alguna excepción, realizamos una transacción de compensación
 			if(commandResultMessage.isExceptional()) {
 				String reason = commandResultMessage.exceptionResult().getMessage();
@@ -89,57 +104,53 @@ public class OrderSaga {
 	
 	// Anotación para que este método sea un manejador de eventos(En este caso, de tipo ProductReservedEvent) de una instancia del componente SAGA(En este caso, esta clase OrderSaga).
 	// Debe indicarse al atributo "associationProperty" de esta anotación el nombre de una propiedad del evento recibido, como argumento de entrada en este método, para poder localizar, mediante su valor, una instancia del componente SAGA creada previamente que maneje este evento.
+	// Este manejador no bloquea el hilo del procesador de eventos del componente SAGA: la consulta de los datos de pago del usuario y el Command de pago se encadenan de forma asíncrona y el método finaliza
+	// en cuanto se despacha la consulta. El resultado del pago llega al componente SAGA como evento(PaymentProcessedEvent) y, si falla, se despacha el Command de compensación desde el callback.
+	// El callback no toca el Deadline del proceso de pago porque se ejecuta fuera de la unidad de trabajo del componente SAGA: el Deadline se cancela al llegar el evento ProductReservationCancelledEvent
+	// que produce el Command de compensación, ya dentro de la unidad de trabajo del componente SAGA.
 	@SagaEventHandler(associationProperty = "orderId")
 	public void handle(ProductReservedEvent productReservedEvent) {
 		LOGGER.info("ProductReservedEvent is called for productId: {} and orderId: {}", productReservedEvent.getProductId(), productReservedEvent.getOrderId());
-		FetchUserPaymentDetailsQuery query = new FetchUserPaymentDetailsQuery(productReservedEvent.getUserId());
-		User userPaymentDetails = null;
-		try {
-			// Método que hace que el Query Gateway despache o envíe una query(En este caso de tipo FetchUserPaymentDetailsQuery) al Query Bus
-			userPaymentDetails =  queryGateway.query(query, ResponseTypes.instanceOf(User.class)).join();
-		}
-		catch(Exception ex) {
-			LOGGER.error(ex.getMessage());
-			// Start compensating transaction
-			cancelProductReservation(productReservedEvent, ex.getMessage());
-			return;
-		}
-		if(userPaymentDetails == null) {
-			// Start compensating transaction
-			cancelProductReservation(productReservedEvent, "Could not fetch user payment details");
-			return;
-		}
-		LOGGER.info("Successfully fetched user payment details for user {}", userPaymentDetails.getFirstName());
 		// Programa un Deadline asociado al nombre PAYMENT_PROCESSING_TIMEOUT_DEADLINE con un timeout de 120 segundos y se le pasa opcionalmente el evento "productReservedEvent" como datos de payload.
 		// Si el proceso de pago no se completa en ese timeout, se ejecutará el manjeador asociado a este Deadline que realizará un proceso de compensación(ver método "handlePaymentDeadline").
-		scheduleId = deadlineManager.schedule(Duration.of(120, ChronoUnit.SECONDS), PAYMENT_PROCESSING_TIMEOUT_DEADLINE, productReservedEvent);
-		// Forzamos una salida de este método para que el código de abajo no se ejecute y, de esta manera, no se complete el proceso de pago haciendo que se cumpla el timeout programado en el Deadline anterior
-		//if(true) return;
+		// El id de programación no se guarda en el estado del componente SAGA porque el Deadline se cancela por ámbito.
+		deadlineManager.schedule(Duration.of(120, ChronoUnit.SECONDS), PAYMENT_PROCESSING_TIMEOUT_DEADLINE, productReservedEvent);
+		FetchUserPaymentDetailsQuery query = new FetchUserPaymentDetailsQuery(productReservedEvent.getUserId());
+		// Método que hace que el Query Gateway despache o envíe una query(En este caso de tipo FetchUserPaymentDetailsQuery) al Query Bus.
+		// Operación no bloqueante. Encadenamos el Command de pago al resultado de la consulta en vez de esperarlo con el método "join".
+		Timer.Sample fetchPaymentDetailsStep = sagaMetrics.startStep();
+		queryGateway.query(query, ResponseTypes.instanceOf(User.class))
+				.whenComplete((userPaymentDetails, ex) -> sagaMetrics.stopStep(fetchPaymentDetailsStep, "fetch-payment-details", ex == null && userPaymentDetails != null))
+				.thenCompose(userPaymentDetails -> processPayment(productReservedEvent, userPaymentDetails))
+				.whenComplete((resultProcessPaymentCommand, ex) -> {
+					if(ex != null) {
+						Throwable cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+						LOGGER.error(cause.getMessage());
+						// Start compensating transaction
+						sendCancelProductReservationCommand(productReservedEvent, cause.getMessage());
+					}
+					else if(resultProcessPaymentCommand == null) {
+						LOGGER.info("The ProcessPaymentCommand resulted is NULL. Initiating a compensating transaction");
+						// Start compensating transaction
+						sendCancelProductReservationCommand(productReservedEvent, "Could not proccess user payment with provided payment details");
+					}
+				});
+	}
+	
+	private CompletableFuture<Object> processPayment(ProductReservedEvent productReservedEvent, User userPaymentDetails) {
+		if(userPaymentDetails == null)
+			return CompletableFuture.failedFuture(new IllegalStateException("Could not fetch user payment details"));
+		LOGGER.info("Successfully fetched user payment details for user {}", userPaymentDetails.getFirstName());
 		ProcessPaymentCommand processPaymentCommand = ProcessPaymentCommand.builder()
 				.orderId(productReservedEvent.getOrderId())
 				.paymentDetails(userPaymentDetails.getPaymentDetails())
 				.paymentId(UUID.randomUUID().toString())
 				.build();
-		String resultProcessPaymentCommand = null;
-		try {
-			// Método que hace que el Command Gateway despache o envíe un command(En este caso de tipo ProcessPaymentCommand) al Command Bus.
-			// Operación bloqueante con un timeout establecido. Existe otro método llamado "send" que es no bloqueante.
-			// Se comenta porque ahora manejamos el timeout de este proceso mediante un Deadline asociado al nombre PAYMENT_PROCESSING_TIMEOUT_DEADLINE.
-			//resultProcessPaymentCommand = commandGateway.sendAndWait(processPaymentCommand, 10, TimeUnit.SECONDS);
-			resultProcessPaymentCommand = commandGateway.sendAndWait(processPaymentCommand);
-		}
-		catch(Exception ex) {
-			LOGGER.error(ex.getMessage());
-			// Start compensating transaction
-			cancelProductReservation(productReservedEvent, ex.getMessage());
-			return;
-		}
-		if(resultProcessPaymentCommand == null) {
-			LOGGER.info("The ProcessPaymentCommand resulted is NULL. Initiating a compensating transaction");
-			// Start compensating transaction
-			cancelProductReservation(productReservedEvent, "Could not proccess user payment with provided payment details");
-			return;
-		}
+		// Método que hace que el Command Gateway despache o envíe un command(En este caso de tipo ProcessPaymentCommand) al Command Bus.
+		// Operación no bloqueante. El timeout de este proceso se maneja mediante el Deadline asociado al nombre PAYMENT_PROCESSING_TIMEOUT_DEADLINE.
+		Timer.Sample processPaymentStep = sagaMetrics.startStep();
+		return commandGateway.send(processPaymentCommand)
+				.whenComplete((result, ex) -> sagaMetrics.stopStep(processPaymentStep, "process-payment", ex == null && result != null));
 	}
 	
 	// Anotación para que este método sea un manejador de eventos(En este caso, de tipo PaymentProcessedEvent) de una instancia del componente SAGA(En este caso, esta clase OrderSaga).
@@ -147,11 +158,14 @@ public class OrderSaga {
 	@SagaEventHandler(associationProperty = "orderId")
 	public void handle(PaymentProcessedEvent paymentProcessedEvent) {
 		// Si el proceso de pago se realizó correctamente y el evento de tipo PaymentProcessedEvent se produjo, entonces significa que el timeout del Deadline asociado al proceso de pago y programado previamente no se produjo y lo cancelamos porque ya no es necesario.
-		cancelDeadline();
+		// Se cancela aquí y no al terminar la instancia SAGA(@EndSaga) para que el Deadline no pueda cancelar la reserva de un producto ya pagado mientras se aprueba la orden.
+		cancelPaymentDeadline();
 		ApproveOrderCommand approveOrderCommand = new ApproveOrderCommand(paymentProcessedEvent.getOrderId());
 		// Método que hace que el Command Gateway despache o envíe un command(En este caso de tipo ReserveProductCommand) al Command Bus.
 		// Operación no bloqueante. Existe otro método llamado "sendAndWait" que es bloqueante.
-		commandGateway.send(approveOrderCommand);
+		Timer.Sample approveOrderStep = sagaMetrics.startStep();
+		commandGateway.send(approveOrderCommand)
+				.whenComplete((result, ex) -> sagaMetrics.stopStep(approveOrderStep, "approve-order", ex == null));
 	}
 	
 	// Como este evento OrderApprovedEvent es un evento final del flujo de SAGA, anotamos este método con la anotación @EndSaga.
@@ -160,18 +174,22 @@ public class OrderSaga {
 	// Anotación para que este método sea un manejador de eventos(En este caso, de tipo OrderApprovedEvent) de una instancia del componente SAGA(En este caso, esta clase OrderSaga).
 	// Debe indicarse al atributo "associationProperty" de esta anotación el nombre de una propiedad del evento recibido, como argumento de entrada en este método, para poder localizar, mediante su valor, la instancia del componente SAGA creada previamente que va a ser destruida.
 	@SagaEventHandler(associationProperty = "orderId")
-	public void handle(OrderApprovedEvent orderApprovedEvent) {
+	public void handle(OrderApprovedEvent orderApprovedEvent, @Timestamp Instant timestamp) {
 		LOGGER.info("Order is approved. Order SAGA is complete for orderId: {}", orderApprovedEvent.getOrderId());
+		sagaMetrics.recordCompletion(orderCreatedAt, timestamp, "approved");
 		// Alternativa equivalente a usar la anotación @EndSaga a nivel de método
 		//SagaLifecycle.end();
-		// Emitimos este OrdenSummary como una actualización de la Subscription Query 
-		queryUpdateEmitter.emit(FindOrderQuery.class, query -> true, new OrderSummary(orderApprovedEvent.getOrderId(), orderApprovedEvent.getOrderStatus(), ""));
+		// Emitimos este OrdenSummary como una actualización de la Subscription Query de esta orden(y no de todas las Subscription Queries de tipo FindOrderQuery abiertas)
+		queryUpdateEmitter.emitForOrder(orderApprovedEvent.getOrderId(), new OrderSummary(orderApprovedEvent.getOrderId(), orderApprovedEvent.getOrderStatus(), ""));
 	}
 	
 	// Anotación para que este método sea un manejador de eventos(En este caso, de tipo ProductReservationCancelledEvent) de una instancia del componente SAGA(En este caso, esta clase OrderSaga).
 	// Debe indicarse al atributo "associationProperty" de esta anotación el nombre de una propiedad del evento recibido, como argumento de entrada en este método, para poder localizar, mediante su valor, una instancia del componente SAGA creada previamente que maneje este evento.
 	@SagaEventHandler(associationProperty = "orderId")
 	public void handle(ProductReservationCancelledEvent productReservationCancelledEvent) {
+		// Si la reserva se ha cancelado porque ha fallado el proceso de pago, el Deadline asociado al proceso de pago ya no es necesario. Se cancela aquí, en la unidad de trabajo del componente SAGA, y no
+		// desde el callback del proceso de pago, para que la cancelación se aplique en la misma transacción que el resto de cambios del lote y nunca antes de que se haya guardado la programación del Deadline
+		cancelPaymentDeadline();
 		rejectOrder(productReservationCancelledEvent.getOrderId(), productReservationCancelledEvent.getReason());
 	}
 	
@@ -181,12 +199,13 @@ public class OrderSaga {
 	// Anotación para que este método sea un manejador de eventos(En este caso, de tipo OrderRejectedEvent) de una instancia del componente SAGA(En este caso, esta clase OrderSaga).
 	// Debe indicarse al atributo "associationProperty" de esta anotación el nombre de una propiedad del evento recibido, como argumento de entrada en este método, para poder localizar, mediante su valor, la instancia del componente SAGA creada previamente que va a ser destruida.
 	@SagaEventHandler(associationProperty = "orderId")
-	public void handle(OrderRejectedEvent orderRejectedEvent) {
+	public void handle(OrderRejectedEvent orderRejectedEvent, @Timestamp Instant timestamp) {
 		LOGGER.info("Successfully rejected order with id: {}", orderRejectedEvent.getOrderId());
+		sagaMetrics.recordCompletion(orderCreatedAt, timestamp, "rejected");
 		// Alternativa equivalente a usar la anotación @EndSaga a nivel de método
 		//SagaLifecycle.end();
-		// Emitimos este OrdenSummary como una actualización de la Subscription Query 
-		queryUpdateEmitter.emit(FindOrderQuery.class, query -> true, new OrderSummary(orderRejectedEvent.getOrderId(), orderRejectedEvent.getOrderStatus(), orderRejectedEvent.getReason()));
+		// Emitimos este OrdenSummary como una actualización de la Subscription Query de esta orden(y no de todas las Subscription Queries de tipo FindOrderQuery abiertas)
+		queryUpdateEmitter.emitForOrder(orderRejectedEvent.getOrderId(), new OrderSummary(orderRejectedEvent.getOrderId(), orderRejectedEvent.getOrderStatus(), orderRejectedEvent.getReason()));
 	}
 	
 	// Anotación para que este método sea un manejador de Deadlines(En este caso, Deadlines asociados con el nombre PAYMENT_PROCESSING_TIMEOUT_DEADLINE).
@@ -195,19 +214,19 @@ public class OrderSaga {
 	@DeadlineHandler(deadlineName = PAYMENT_PROCESSING_TIMEOUT_DEADLINE)
 	public void handlePaymentDeadline(ProductReservedEvent productReservedEvent) {
 		LOGGER.info("Payment processing  deadline took place. Sending a compensating command to cancel the product reservation");
-		cancelProductReservation(productReservedEvent, "Payment timeout");
+		sendCancelProductReservationCommand(productReservedEvent, "Payment timeout");
 	}
 	
 	private void rejectOrder(String orderId, String reason) {
 		RejectOrderCommand rejectOrderCommand = new RejectOrderCommand(orderId, reason);
 		// Método que hace que el Command Gateway despache o envíe un command(En este caso de tipo RejectOrderCommand) al Command Bus.
 		// Operación no bloqueante. Existe otro método llamado "sendAndWait" que es bloqueante.
-		commandGateway.send(rejectOrderCommand);
+		Timer.Sample rejectOrderStep = sagaMetrics.startStep();
+		commandGateway.send(rejectOrderCommand)
+				.whenComplete((result, ex) -> sagaMetrics.stopStep(rejectOrderStep, "reject-order", ex == null));
 	}
 	
-	private void cancelProductReservation(ProductReservedEvent event, String reason) {
-		// Cancelamos aquí también el Deadline asociado al proceso de pago y programado previamente porque si se ejecuta este método, significa que el proceso de pago falló por alguna excepción pero no por el timeout del Deadline. Por lo tanto, ese Deadline ya no es necesario.
-		cancelDeadline();
+	private void sendCancelProductReservationCommand(ProductReservedEvent event, String reason) {
 		CancelProductReservationCommand cancelProductReservationCommand = CancelProductReservationCommand.builder()
 				.orderId(event.getOrderId())
 				.productId(event.getProductId())
@@ -220,13 +239,11 @@ public class OrderSaga {
 		commandGateway.send(cancelProductReservationCommand);
 	}
 	
-	private void cancelDeadline() {
+	private void cancelPaymentDeadline() {
 		// Cancela todos los Deadlines programados previamente asociados al nombre PAYMENT_PROCESSING_TIMEOUT_DEADLINE
 		//deadlineManager.cancelAll(PAYMENT_PROCESSING_TIMEOUT_DEADLINE);
-		// Cancela un determinado Deadline asociado a un id de programación y al nombre PAYMENT_PROCESSING_TIMEOUT_DEADLINE
-		if(scheduleId != null) {
-			deadlineManager.cancelSchedule(scheduleId, PAYMENT_PROCESSING_TIMEOUT_DEADLINE);
-			scheduleId = null;
-		}
+		// Cancela los Deadlines asociados al nombre PAYMENT_PROCESSING_TIMEOUT_DEADLINE de esta instancia SAGA sin necesidad de guardar su id de programación.
+		// El programador JdbcDeadlineManager acumula esta cancelación con las del resto de eventos del mismo lote y las aplica juntas al confirmar la transacción.
+		deadlineManager.cancelAllWithinScope(PAYMENT_PROCESSING_TIMEOUT_DEADLINE);
 	}
 }
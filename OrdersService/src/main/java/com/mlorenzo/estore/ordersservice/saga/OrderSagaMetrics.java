@@ -0,0 +1,50 @@
+package com.mlorenzo.estore.ordersservice.saga;
+
+import java.time.Duration;
+import java.time.Instant;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+// Métricas del flujo del componente SAGA OrderSaga, desde la creación de una orden hasta su aprobación o rechazo:
+// - "estore.saga.step": duración de cada paso del flujo(etiqueta "step"), desde que el componente SAGA despacha el Command o la Query del paso hasta que recibe su resultado, con el resultado del paso
+//   en la etiqueta "outcome"(success o failure). Los pasos son "reserve-product", "fetch-payment-details", "process-payment", "approve-order" y "reject-order".
+// - "estore.saga.duration": duración total del flujo, desde el evento OrderCreatedEvent hasta el evento OrderApprovedEvent u OrderRejectedEvent(etiqueta "outcome": approved o rejected).
+//   A diferencia de la suma de los pasos, incluye el tiempo que los eventos esperan en el procesador de eventos del componente SAGA entre un paso y el siguiente.
+// Las 2 métricas publican histogramas para poder calcular percentiles agregando todas las instancias del microservicio(Por ejemplo, con la función "histogram_quantile" de Prometheus).
+public class OrderSagaMetrics {
+	private static final String SAGA_NAME = "OrderSaga";
+
+	private final MeterRegistry meterRegistry;
+
+	public OrderSagaMetrics(MeterRegistry meterRegistry) {
+		this.meterRegistry = meterRegistry;
+	}
+
+	public Timer.Sample startStep() {
+		return Timer.start(meterRegistry);
+	}
+
+	public void stopStep(Timer.Sample sample, String step, boolean successful) {
+		sample.stop(Timer.builder("estore.saga.step")
+				.tag("saga", SAGA_NAME)
+				.tag("step", step)
+				.tag("outcome", successful ? "success" : "failure")
+				.description("Time from dispatching the command or query of a saga step until its result is received")
+				.publishPercentileHistogram()
+				.register(meterRegistry));
+	}
+
+	public void recordCompletion(Instant startedAt, Instant completedAt, String outcome) {
+		// Las instancias SAGA iniciadas antes de añadir esta métrica no guardan la fecha de inicio del flujo
+		if(startedAt == null)
+			return;
+		Timer.builder("estore.saga.duration")
+				.tag("saga", SAGA_NAME)
+				.tag("outcome", outcome)
+				.description("Time from the creation of an order until it is approved or rejected")
+				.publishPercentileHistogram()
+				.register(meterRegistry)
+				.record(Duration.between(startedAt, completedAt));
+	}
+}
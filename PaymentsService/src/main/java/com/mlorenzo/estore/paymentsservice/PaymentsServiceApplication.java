@@ -1,12 +1,40 @@
 package com.mlorenzo.estore.paymentsservice;
 
+import org.axonframework.config.Configuration;
+import org.axonframework.disruptor.commandhandling.DisruptorCommandBus;
+import org.axonframework.eventsourcing.GenericAggregateFactory;
+import org.axonframework.eventsourcing.eventstore.EventStore;
+import org.axonframework.messaging.annotation.HandlerDefinition;
+import org.axonframework.messaging.annotation.ParameterResolverFactory;
+import org.axonframework.modelling.command.Repository;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Import;
+
+import com.mlorenzo.estore.core.commandhandling.DisruptorCommandBusConfiguration;
+import com.mlorenzo.estore.core.eventstore.FileEventStoreConfiguration;
+import com.mlorenzo.estore.core.monitoring.MetricsConfiguration;
+import com.mlorenzo.estore.core.serialization.CompactSerializerConfiguration;
+import com.mlorenzo.estore.paymentsservice.commandapi.PaymentAggregate;
 
 @SpringBootApplication
+// Los mensajes, eventos y snapshots se serializan con el serializador binario CompactSerializer del módulo "core". El Event Store embebido en ficheros se activa con la propiedad "estore.event-store.type=file"
+// y el Command Bus DisruptorCommandBus con la propiedad "estore.command-bus.type=disruptor". Las métricas propias se añaden a las del framework Axon con la configuración MetricsConfiguration
+@Import({CompactSerializerConfiguration.class, FileEventStoreConfiguration.class, DisruptorCommandBusConfiguration.class, MetricsConfiguration.class})
 public class PaymentsServiceApplication {
 
 	public static void main(String[] args) {
 		SpringApplication.run(PaymentsServiceApplication.class, args);
 	}
+	
+	// Con la propiedad "estore.command-bus.type=disruptor", el Aggregate PaymentAggregate usa un repositorio del Command Bus DisruptorCommandBus(ver clase DisruptorCommandBusConfiguration del módulo "core")
+	// en lugar del repositorio que crea el framework Axon a partir de su anotación @Aggregate
+	@Bean
+	@ConditionalOnProperty(name = "estore.command-bus.type", havingValue = "disruptor")
+	public Repository<PaymentAggregate> paymentAggregateRepository(DisruptorCommandBus commandBus, EventStore eventStore, ParameterResolverFactory parameterResolverFactory,
+			HandlerDefinition handlerDefinition, Configuration configuration) {
+		return commandBus.createRepository(eventStore, new GenericAggregateFactory<>(PaymentAggregate.class), parameterResolverFactory, handlerDefinition, configuration::repository);
+	}
 }
@@ -1,30 +1,92 @@
 package com.mlorenzo.estore.productsservice;
 
+import java.time.Duration;
+
 import org.axonframework.commandhandling.CommandBus;
+import org.axonframework.common.transaction.TransactionManager;
+import org.axonframework.config.Configuration;
+import org.axonframework.config.EventProcessingConfiguration;
 import org.axonframework.config.EventProcessingConfigurer;
+import org.axonframework.disruptor.commandhandling.DisruptorCommandBus;
+import org.axonframework.eventhandling.EventMessage;
 import org.axonframework.eventhandling.PropagatingErrorHandler;
-import org.axonframework.eventsourcing.EventCountSnapshotTriggerDefinition;
-import org.axonframework.eventsourcing.SnapshotTriggerDefinition;
+import org.axonframework.eventhandling.TrackingEventProcessorConfiguration;
+import org.axonframework.eventhandling.async.SequencingPolicy;
+import org.axonframework.eventhandling.tokenstore.inmemory.InMemoryTokenStore;
+import org.axonframework.eventsourcing.GenericAggregateFactory;
 import org.axonframework.eventsourcing.Snapshotter;
+import org.axonframework.eventsourcing.eventstore.EventStore;
+import org.axonframework.messaging.annotation.HandlerDefinition;
+import org.axonframework.messaging.annotation.ParameterResolverFactory;
+import org.axonframework.modelling.command.Repository;
+import org.axonframework.serialization.upcasting.event.EventUpcaster;
+import org.axonframework.serialization.upcasting.event.EventUpcasterChain;
+import org.axonframework.spring.eventsourcing.SpringAggregateSnapshotter;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.cloud.netflix.eureka.EnableEurekaClient;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Import;
+import org.springframework.context.annotation.Primary;
 
+import com.mlorenzo.estore.core.caching.CaffeineCacheAdapter;
+import com.mlorenzo.estore.core.caching.rest.AggregateCacheController;
+import com.mlorenzo.estore.core.commandhandling.CommandBatcher;
+import com.mlorenzo.estore.core.commandhandling.DisruptorCommandBusConfiguration;
+import com.mlorenzo.estore.core.eventhandling.PayloadTypeFilteringEventSource;
+import com.mlorenzo.estore.core.eventhandling.PropertySequencingPolicy;
+import com.mlorenzo.estore.core.eventhandling.rest.EventProcessorSegmentsController;
+import com.mlorenzo.estore.core.eventstore.FileEventStoreConfiguration;
+import com.mlorenzo.estore.core.monitoring.MetricsConfiguration;
+import com.mlorenzo.estore.core.serialization.CompactSerializerConfiguration;
+import com.mlorenzo.estore.core.serialization.SerializedTypeAliases;
+import com.mlorenzo.estore.core.snapshotting.AdaptiveSnapshotTriggerDefinition;
+import com.mlorenzo.estore.core.snapshotting.CoalescingSnapshotter;
+import com.mlorenzo.estore.productsservice.commandapi.CreateProductCommand;
 import com.mlorenzo.estore.productsservice.commandapi.CreateProductCommandInterceptor;
+import com.mlorenzo.estore.productsservice.commandapi.PartitionProductStockCommand;
+import com.mlorenzo.estore.productsservice.commandapi.ProductAggregate;
+import com.mlorenzo.estore.productsservice.commandapi.ProductStockBucketAggregate;
+import com.mlorenzo.estore.productsservice.commandapi.RebalanceProductStockCommand;
 import com.mlorenzo.estore.productsservice.core.errorhandler.ProductServiceEventsErrorHandler;
+import com.mlorenzo.estore.productsservice.core.events.ProductCreatedEvent;
+import com.mlorenzo.estore.productsservice.core.events.ProductStockAllocatedEvent;
+import com.mlorenzo.estore.productsservice.core.events.ProductStockBucketAllocatedEvent;
+import com.mlorenzo.estore.productsservice.core.events.ProductStockBucketCreatedEvent;
+import com.mlorenzo.estore.productsservice.core.events.ProductStockPartitionedEvent;
+import com.mlorenzo.estore.productsservice.queryapi.FindProductsQuery;
+import com.mlorenzo.estore.productsservice.queryapi.InMemoryProductCatalog;
+import com.mlorenzo.estore.productsservice.queryapi.rest.ProductRestModel;
 
 // Opcional ya que basta con tener la dependencia "spring-cloud-starter-netflix-eureka-client" en el classpath para que este microservicio se registre en el servidor Eureka
 @EnableEurekaClient
 @SpringBootApplication
+// Los mensajes, eventos y snapshots se serializan con el serializador binario CompactSerializer del módulo "core". El Event Store embebido en ficheros se activa con la propiedad "estore.event-store.type=file"
+// y el Command Bus DisruptorCommandBus con la propiedad "estore.command-bus.type=disruptor". Las métricas propias se añaden a las del framework Axon con la configuración MetricsConfiguration.
+// Los endpoints de gestión de los segmentos de los procesadores de eventos son los de la clase EventProcessorSegmentsController del módulo "core"
+@Import({CompactSerializerConfiguration.class, FileEventStoreConfiguration.class, DisruptorCommandBusConfiguration.class, MetricsConfiguration.class, EventProcessorSegmentsController.class})
 public class ProductsServiceApplication {
 
 	public static void main(String[] args) {
 		SpringApplication.run(ProductsServiceApplication.class, args);
 	}
 	
+	// Identificadores de tipo con los que se serializan los Commands, eventos, Queries, respuestas y snapshots(ProductAggregate y ProductStockBucketAggregate) propios de este microservicio(ver clase SerializedTypeAliases del módulo "core")
+	@Bean
+	public SerializedTypeAliases productsSerializedTypeAliases() {
+		return SerializedTypeAliases.of(
+				CreateProductCommand.class, ProductCreatedEvent.class,
+				FindProductsQuery.class, ProductRestModel.class,
+				ProductAggregate.class,
+				PartitionProductStockCommand.class, RebalanceProductStockCommand.class,
+				ProductStockPartitionedEvent.class, ProductStockAllocatedEvent.class, ProductStockBucketCreatedEvent.class, ProductStockBucketAllocatedEvent.class,
+				ProductStockBucketAggregate.class);
+	}
+	
 	// Método para registrar nuestro interceptor de Commands CreateProductCommandInterceptor en el Command Bus.
 	// Los Commands son despachados a este bus desde el Command Gateway. Por lo tanto, este interceptor se ejecutará antes que los Command Handlers(métodos o construcotres anotados con @CommandHandler).
 	// Recordatorio: Este método, como está anotado con @Autowired, será invocado automáticamente por Spring para realizar la inyección de dependencias que se corresponden con los argumentos de entrada de dicho método
@@ -51,7 +113,7 @@ public class ProductsServiceApplication {
 	// Método para configurar el procesador de eventos del framework Axon.
 	// Recordatorio: Este método, como está anotado con @Autowired, será invocado automáticamente por Spring para realizar la inyección de dependencias que se corresponden con los argumentos de entrada de dicho método.
 	@Autowired
-	public void configure(EventProcessingConfigurer config) {
+	public void configure(EventProcessingConfigurer config, ApplicationContext context, @Value("${products.event-filtering.max-skipped-in-a-row:1000}") int maxSkippedInARow) {
 		// Registramos nuestro manejador personalizado de excepciones ProductServiceEventsErrorHandler para todos los manejadores de eventos de tipo @EventHandler en vez de usar el manejador de excepciones por defecto del framework Axon
 		//config.registerDefaultListenerInvocationErrorHandler(conf -> new ProductServiceEventsErrorHandler());
 		// En vez de usar el manejador de excepciones por defecto del framework Axon, usamos, mediante su registro, nuestro manejador personalizado de excepciones ProductServiceEventsErrorHandler para aquellos manejadores de eventos de
@@ -72,16 +134,122 @@ public class ProductsServiceApplication {
 		//config.usingTrackingEventProcessors();
 		// Establece el procesador de eventos Subscribing para todos los manejadores de eventos
 		//config.usingSubscribingEventProcessors();
+		
+		// Procesador de eventos de la proyección de productos en memoria(sólo existe con la propiedad "products.projection.store=memory", ver clase InMemoryProductEventsHandler).
+		// Sus tokens se guardan en memoria y, al arrancar, empieza en la posición de la copia en disco de la proyección. Tiene un único segmento para que esa posición sea la de todos sus eventos.
+		// Sus excepciones se propagan para que el lote de eventos se reintente en vez de perder sus cambios. Igual que el procesador "com.mlorenzo.estore.productsservice.queryapi"(ver bean "queryApiEventSource"),
+		// descarta sin deserializarlos los eventos que no maneja
+		config.registerTokenStore("product-catalog", conf -> new InMemoryTokenStore());
+		config.registerTrackingEventProcessor("product-catalog",
+				conf -> PayloadTypeFilteringEventSource.forProcessor(conf.eventStore(), conf::eventProcessingConfiguration, "product-catalog", maxSkippedInARow),
+				conf -> TrackingEventProcessorConfiguration.forSingleThreadedProcessing()
+				.andBatchSize(100)
+				.andInitialTrackingToken(messageSource -> context.getBean(InMemoryProductCatalog.class).initialToken(messageSource)));
+		config.registerListenerInvocationErrorHandler("product-catalog", conf -> PropagatingErrorHandler.instance());
 	}
 	
-	// Este bean de Spring configura la creación de Snapshots de un Aggregate en el Snapshot Store cada vez que se producen 3 eventos asociados a ese Aggregate.
-	// Nota: Un Snapshot se considera un evento y, por lo tanot, se tiene en cuenta en el contador de eventos asociados a un Aggreagte para la creación del siguiente Snapshot.
+	// Este bean de Spring configura la creación de Snapshots de un Aggregate en el Snapshot Store. Antes se creaba un Snapshot cada 3 eventos asociados a ese Aggregate(EventCountSnapshotTriggerDefinition),
+	// lo que creaba Snapshots continuamente para los productos con muchas reservas y Snapshots innecesarios para los productos con pocos eventos. Ahora se decide en función del tiempo de carga del Aggregate
+	// y de la frecuencia de eventos de cada producto(ver clase AdaptiveSnapshotTriggerDefinition del módulo "core").
+	// Nota: Un Snapshot se considera un evento y, por lo tanto, se aplica el primero durante la carga del Aggregate.
 	// Es útil cuando se tienen muchos eventos(cientos o miles) en el Event Store asociados a un Aggregate y se quiere optimizar el proceso de carga de esos eventos para que la recreación del estado actual de ese Aggregate sea más rápida.
 	// De esta forma, cuando el framework Axon va a recrear el estado actual de un Aggregate, primero mira en el Snapshot Store si hay Snapshots creados para ese Aggregate y, en caso afirmativo, aplica el último Snapshot asociado a ese
 	// Aggregate. Después, si hay eventos en el Event Store asociados a ese Aggregate que son posteriores o más nuevos que ese Snapshot, el framework Axon los aplica a continuación para la recreación. Aquellos eventos del Event Store asociados
 	// a ese Aggregate que son previos o más antiguos a ese Snapshot, son ignorados en este proceso de recreación del estado actual del Aggregate.
 	@Bean
-	public SnapshotTriggerDefinition productSnapshotTriggerDefinition(Snapshotter snapshotter) {
-		return new EventCountSnapshotTriggerDefinition(snapshotter, 3);
+	public AdaptiveSnapshotTriggerDefinition productSnapshotTriggerDefinition(Snapshotter snapshotter,
+			@Value("${products.snapshots.load-time-threshold:50ms}") Duration loadTimeThreshold,
+			@Value("${products.snapshots.replay-budget-per-second:100ms}") Duration replayBudgetPerSecond,
+			@Value("${products.snapshots.min-events:20}") int minEvents,
+			@Value("${products.snapshots.rate-window:60s}") Duration rateWindow,
+			@Value("${products.snapshots.tracked-aggregates:100000}") int trackedAggregates) {
+		return new AdaptiveSnapshotTriggerDefinition(snapshotter, loadTimeThreshold, replayBudgetPerSecond, minEvents, rateWindow, trackedAggregates);
+	}
+	
+	// El Snapshotter que crea por defecto el framework Axon crea los Snapshots en el mismo hilo que confirma la unidad de trabajo del Command, retrasando su respuesta.
+	// Lo usamos como delegado de un CoalescingSnapshotter(ver clase CoalescingSnapshotter del módulo "core"), que crea los Snapshots de forma asíncrona en un pool de hilos con una cola acotada
+	// y agrupa las peticiones pendientes de un mismo producto
+	@Bean
+	public SpringAggregateSnapshotter aggregateSnapshotter(Configuration configuration, HandlerDefinition handlerDefinition, ParameterResolverFactory parameterResolverFactory,
+			EventStore eventStore, TransactionManager transactionManager) {
+		return SpringAggregateSnapshotter.builder()
+				.repositoryProvider(configuration::repository)
+				.transactionManager(transactionManager)
+				.eventStore(eventStore)
+				.parameterResolverFactory(parameterResolverFactory)
+				.handlerDefinition(handlerDefinition)
+				.build();
+	}
+	
+	@Primary
+	@Bean(destroyMethod = "shutDown")
+	public CoalescingSnapshotter snapshotter(SpringAggregateSnapshotter aggregateSnapshotter,
+			@Value("${products.snapshots.thread-count:2}") int threadCount,
+			@Value("${products.snapshots.queue-capacity:1000}") int queueCapacity) {
+		return new CoalescingSnapshotter(aggregateSnapshotter, threadCount, queueCapacity);
+	}
+	
+	// Este bean de Spring define la caché de instancias del Aggregate ProductAggregate(ver atributo "cache" de su anotación @Aggregate). Sin caché, cada Command recrea el producto
+	// desde el Event Store(último Snapshot más los eventos posteriores). Con ella, el repositorio del framework Axon(CachingEventSourcingRepository) reutiliza la instancia en memoria
+	// y sólo lee el Event Store cuando el producto no está en caché. Si el Command falla y se deshace su unidad de trabajo, el framework Axon elimina el producto de la caché para que
+	// no quede un estado a medio modificar. Al alcanzar el tamaño máximo, se desalojan los productos menos usados.
+	// Nota: Axon Server enruta los Commands mediante un hash consistente de su clave de enrutamiento, que por defecto es el campo anotado con @TargetAggregateIdentifier(el id del producto),
+	// así que con varias instancias de este microservicio los Commands de un producto llegan siempre a la misma instancia y sólo ésta lo mantiene en caché. Si cambian las instancias, un producto
+	// puede haberse modificado en otra instancia mientras seguía en la caché de ésta. En ese caso, al guardar sus eventos se produce un error de concurrencia, se deshace la unidad de trabajo
+	// y el producto se elimina de la caché, por lo que el siguiente Command ya parte del estado del Event Store.
+	@Bean
+	public CaffeineCacheAdapter productAggregateCache(@Value("${products.aggregate-cache.maximum-size:10000}") long maximumSize) {
+		return new CaffeineCacheAdapter(maximumSize);
+	}
+	
+	// Este bean de Spring define el endpoint de gestión de la caché "productAggregateCache"(ver clase AggregateCacheController del módulo "core"). Sus aciertos y fallos se consultan en /management/aggregate-cache/stats
+	@Bean
+	public AggregateCacheController aggregateCacheController(CaffeineCacheAdapter productAggregateCache) {
+		return new AggregateCacheController(productAggregateCache);
+	}
+	
+	// Con la propiedad "estore.command-bus.type=disruptor", el Aggregate ProductAggregate usa un repositorio del Command Bus DisruptorCommandBus(ver clase DisruptorCommandBusConfiguration del módulo "core")
+	// en lugar del repositorio que crea el framework Axon a partir de su anotación @Aggregate. Como tiene el mismo nombre, la clase ProductStockCommandHandler lo recibe igual que antes.
+	// Los productos se mantienen en memoria en el propio bus, por lo que no se usa la caché "productAggregateCache", pero los Snapshots se siguen creando con "productSnapshotTriggerDefinition".
+	// Nota: El reparto del stock en cubos(ver clase ProductStockPartitions) no está disponible con este bus porque sus Commands cargan varios Aggregates.
+	@Bean
+	@ConditionalOnProperty(name = "estore.command-bus.type", havingValue = "disruptor")
+	public Repository<ProductAggregate> productAggregateRepository(DisruptorCommandBus commandBus, EventStore eventStore, AdaptiveSnapshotTriggerDefinition productSnapshotTriggerDefinition,
+			ParameterResolverFactory parameterResolverFactory, HandlerDefinition handlerDefinition, Configuration configuration) {
+		return commandBus.createRepository(eventStore, new GenericAggregateFactory<>(ProductAggregate.class), productSnapshotTriggerDefinition,
+				parameterResolverFactory, handlerDefinition, configuration::repository);
+	}
+	
+	// Este bean de Spring agrupa las reservas(Commands ReserveProductCommand) que llegan a la vez para un mismo producto(ver clases CommandBatcher del módulo "core" y ProductStockCommandHandler).
+	// Sin agrupar, cada reserva carga y bloquea el Aggregate ProductAggregate, guarda su evento ProductReservedEvent y confirma su transacción por separado, y el resto de reservas del producto esperan su turno.
+	// Agrupadas, el hilo que tiene el turno ejecuta también las reservas que esperan, con una única carga del Aggregate y una única escritura en el Event Store, y cada reserva recibe su propio resultado
+	// (Por ejemplo, si no hay stock suficiente para ella). Con el valor 1 en la propiedad "products.reservations.max-batch-size" no se agrupan.
+	@Bean
+	public CommandBatcher reservationBatcher(@Value("${products.reservations.max-batch-size:100}") int maxBatchSize,
+			@Value("${products.reservations.batch-window:0ms}") Duration batchWindow) {
+		return new CommandBatcher(maxBatchSize, batchWindow);
+	}
+	
+	// Este bean de Spring define una política de secuenciación de eventos por el id del producto. Se asocia a los procesadores de eventos mediante la propiedad
+	// "axon.eventhandling.processors.<nombre_procesador>.sequencing-policy" del archivo de propiedades.
+	// De esta forma, cuando un procesador de eventos de tipo Tracking trabaja con varios segmentos e hilos, los eventos de un mismo producto se procesan siempre en orden y en el mismo segmento.
+	@Bean
+	public SequencingPolicy<EventMessage<?>> productIdSequencingPolicy() {
+		return new PropertySequencingPolicy("productId");
+	}
+	
+	// Este bean de Spring define la fuente de eventos del procesador de eventos de tipo Tracking del grupo "com.mlorenzo.estore.productsservice.queryapi"(ver clase PayloadTypeFilteringEventSource del módulo "core").
+	// Se asocia al procesador mediante la propiedad "axon.eventhandling.processors.<nombre_procesador>.source" del archivo de propiedades.
+	// Los procesadores del lado del Query API sólo manejan los eventos de creación, reserva y cancelación de reservas de productos, así que, durante las recuperaciones y las recreaciones de las proyecciones,
+	// se descartan sin deserializarlos el resto de eventos del Event Store(Por ejemplo, los eventos del reparto del stock entre cubos).
+	@Bean
+	public PayloadTypeFilteringEventSource queryApiEventSource(EventStore eventStore, ApplicationContext context, @Value("${products.event-filtering.max-skipped-in-a-row:1000}") int maxSkippedInARow) {
+		return PayloadTypeFilteringEventSource.forProcessor(eventStore, () -> context.getBean(EventProcessingConfiguration.class), "com.mlorenzo.estore.productsservice.queryapi", maxSkippedInARow);
+	}
+	
+	// Cadena de upcasters de los eventos propios de este microservicio(ver clase JsonEventUpcaster del módulo "core"). Cuando cambie la forma de uno de estos eventos, su upcaster se añade aquí, en el orden de sus revisiones
+	@Bean
+	public EventUpcaster productsEventUpcasters() {
+		return new EventUpcasterChain();
 	}
 }
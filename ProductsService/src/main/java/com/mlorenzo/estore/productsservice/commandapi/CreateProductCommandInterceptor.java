@@ -1,7 +1,8 @@
 package com.mlorenzo.estore.productsservice.commandapi;
 
+import java.util.HashSet;
 import java.util.List;
-import java.util.Optional;
+import java.util.Set;
 import java.util.function.BiFunction;
 
 import org.axonframework.commandhandling.CommandMessage;
@@ -10,9 +11,6 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Component;
 
-import com.mlorenzo.estore.productsservice.commandapi.data.ProductLookupEntity;
-import com.mlorenzo.estore.productsservice.commandapi.data.ProductLookupRespository;
-
 import lombok.RequiredArgsConstructor;
 
 // Clase que intercepta cualquier tipo de Command para realizar alguna lógica de negocio, como por ejemplo, validaciones, logging, etc...
@@ -25,24 +23,44 @@ import lombok.RequiredArgsConstructor;
 public class CreateProductCommandInterceptor implements MessageDispatchInterceptor<CommandMessage<?>> {
 	private static final Logger LOGGER = LoggerFactory.getLogger(CreateProductCommandInterceptor.class);
 	
-	private final ProductLookupRespository productLookupRespository;
+	private final ProductLookupIndex productLookupIndex;
 	
 	// Este método implementa la interfaz funcional BiFunction que representa una función que recibe 2 tipos de argumentos de entrada y devuelve un tipo de dato.
 	// En este caso, la función que representa esta interfaz recibe 2 argumentos de entrada de tipo Integer y CommandMessage<?> y devuelve un dato de tipo CommandMessage<?>
 	@Override
 	public BiFunction<Integer, CommandMessage<?>, CommandMessage<?>> handle(
 			List<? extends CommandMessage<?>> messages) {
+		// Cuando se despachan varios Commands juntos, los duplicados dentro del propio lote se detectan una única vez para todo el lote
+		Set<Integer> duplicatedInBatch = findDuplicatedInBatch(messages);
 		return (index, command) -> {
 			LOGGER.info("Intercepted command: " + command.getPayloadType());
 			// Verficamos que el Command interceptado es del tipo que nos interesa, es decir, de tipo CreateProductCommand
 			if(CreateProductCommand.class.equals(command.getPayloadType())) {
 				CreateProductCommand createProductCommand = (CreateProductCommand)command.getPayload();
-				// Si ya existe en la base de datos un producto con el mismo id o con el mismo título, lanzamos la siguiente excepción
-				Optional<ProductLookupEntity> oProductLookupEntity = productLookupRespository.findByProductIdOrTitle(createProductCommand.getProductId(),createProductCommand.getTitle());
-				if(oProductLookupEntity.isPresent())
+				// Si ya existe un producto con el mismo id o con el mismo título, lanzamos la siguiente excepción.
+				// En vez de consultar la tabla de Look-up por cada Command, consultamos su índice en memoria(ver clase ProductLookupIndex)
+				if(duplicatedInBatch.contains(index) || productLookupIndex.containsProductIdOrTitle(createProductCommand.getProductId(), createProductCommand.getTitle()))
 					throw new IllegalStateException(String.format("Product with productId %s or title %s already exist", createProductCommand.getProductId(), createProductCommand.getTitle()));
 			}
 			return command;
 		};
 	}
+	
+	// Devuelve las posiciones de los Commands CreateProductCommand del lote cuyo id o título ya aparece en un Command anterior del mismo lote
+	private static Set<Integer> findDuplicatedInBatch(List<? extends CommandMessage<?>> messages) {
+		Set<Integer> duplicated = new HashSet<>();
+		if(messages.size() < 2)
+			return duplicated;
+		Set<String> productIds = new HashSet<>();
+		Set<String> titles = new HashSet<>();
+		for(int index = 0; index < messages.size(); index++) {
+			CommandMessage<?> command = messages.get(index);
+			if(CreateProductCommand.class.equals(command.getPayloadType())) {
+				CreateProductCommand createProductCommand = (CreateProductCommand)command.getPayload();
+				if(!productIds.add(createProductCommand.getProductId()) | !titles.add(createProductCommand.getTitle()))
+					duplicated.add(index);
+			}
+		}
+		return duplicated;
+	}
 }
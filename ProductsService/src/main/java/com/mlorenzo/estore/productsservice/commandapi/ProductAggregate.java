@@ -13,11 +13,14 @@ import com.mlorenzo.estore.core.commands.ReserveProductCommand;
 import com.mlorenzo.estore.core.events.ProductReservationCancelledEvent;
 import com.mlorenzo.estore.core.events.ProductReservedEvent;
 import com.mlorenzo.estore.productsservice.core.events.ProductCreatedEvent;
+import com.mlorenzo.estore.productsservice.core.events.ProductStockAllocatedEvent;
+import com.mlorenzo.estore.productsservice.core.events.ProductStockPartitionedEvent;
 
 
 // Anotación que hace que esta clase sea un Aggregate.
 // Mediante el atributo "snapshotTriggerDefinition" de esta anotación, asociamos el bean de Spring "productSnapshotTriggerDefinition" con este Aggregate para la creación de sus Snapshots en el Snapshot Store.
-@Aggregate(snapshotTriggerDefinition = "productSnapshotTriggerDefinition")
+// Mediante el atributo "cache", asociamos el bean de Spring "productAggregateCache" con este Aggregate para mantener en memoria sus instancias entre Commands.
+@Aggregate(snapshotTriggerDefinition = "productSnapshotTriggerDefinition", cache = "productAggregateCache")
 public class ProductAggregate {
 	
 	// Esta anotación es para asociar Commands con Aggregates usando la anotación @TargetAggregateIdentifier que se establece en las clases de los Commands.
@@ -29,6 +32,9 @@ public class ProductAggregate {
 	private String title;
 	private BigDecimal price;
 	private Integer quantity;
+	// Número de cubos de stock del producto(ver clase ProductStockBucketAggregate). Con el valor 0, el stock no está repartido y todas las reservas pasan por este Aggregate.
+	// Si el stock está repartido, la propiedad "quantity" es el stock sin repartir, que recibe las unidades de las reservas canceladas y del que se rellenan los cubos
+	private int stockBuckets;
 	
 	// El framework Axon necesita un constructor vacío para recrear o reconstruir el estado actual de un Aggregate a partir de los eventos almacenados en el Event Store asociados a ese Aggegate.
 	// Este proceso ocurre cada vez que el framework Axon recibe un Command asociado con ese Aggregate que es manejado por un método(no por el manejador de Commands del constructor, ya que, en ese caso, es cuando se crea el Aggregate por primera vez) mediante la anotación @CommandHandler.
@@ -67,8 +73,8 @@ public class ProductAggregate {
 		//if(true) throw new RuntimeException("An error took place in the CreateProductCommand @CommandHandler method");
 	}
 	
-	// Anotación para que este método sea un manejador de Commands del Aggregate(En este caso, Commands de tipo ReserveProductCommand)
-	@CommandHandler
+	// Manejador de Commands de tipo ReserveProductCommand. Ya no se anota con @CommandHandler porque estos Commands los recibe la clase ProductStockCommandHandler, que decide si la reserva
+	// se hace en este Aggregate o en uno de los cubos de stock del producto, y que invoca a este método cuando el stock del producto no está repartido
 	public void handle(ReserveProductCommand reserveProductCommand) {
 		// Aquí podemos validar opcionalmente el Command recibido como argumento de entrada
 		if(quantity < reserveProductCommand.getQuantity())
@@ -85,8 +91,8 @@ public class ProductAggregate {
 		AggregateLifecycle.apply(productReservedEvent);
 	}
 	
-	// Anotación para que este método sea un manejador de Commands del Aggregate(En este caso, Commands de tipo CancelProductReservationCommand)
-	@CommandHandler
+	// Manejador de Commands de tipo CancelProductReservationCommand invocado desde la clase ProductStockCommandHandler. Las unidades de una reserva cancelada siempre vuelven a este Aggregate,
+	// también cuando el stock está repartido en cubos(en ese caso, se reparten después entre los cubos, ver clase ProductStockRebalancer)
 	public void handle(CancelProductReservationCommand cancelProductReservationCommand) {
 		// Aquí podemos validar opcionalmente el Command recibido como argumento de entrada
 		ProductReservationCancelledEvent productReservationCancelledEvent = ProductReservationCancelledEvent.builder()
@@ -102,6 +108,38 @@ public class ProductAggregate {
 		AggregateLifecycle.apply(productReservationCancelledEvent);
 	}
 	
+	// Reparte el stock del producto en varios cubos de stock para que las reservas de un producto muy demandado no se serialicen en este Aggregate. Se invoca desde la clase ProductStockCommandHandler,
+	// que crea después los cubos y les asigna las unidades(ver método "allocateStock")
+	public void partitionStock(int bucketCount) {
+		if(stockBuckets > 0)
+			throw new IllegalStateException("The stock of the product " + productId + " is already partitioned");
+		if(bucketCount < 2)
+			throw new IllegalArgumentException("The stock must be partitioned into at least 2 buckets");
+		AggregateLifecycle.apply(ProductStockPartitionedEvent.builder()
+				.productId(productId)
+				.bucketCount(bucketCount)
+				.build());
+	}
+	
+	// Mueve unidades del stock sin repartir al cubo indicado o, si la cantidad es negativa, del cubo al stock sin repartir
+	public void allocateStock(int bucketIndex, int allocatedQuantity) {
+		if(allocatedQuantity > quantity)
+			throw new IllegalArgumentException("Insufficient number of items in stock");
+		AggregateLifecycle.apply(ProductStockAllocatedEvent.builder()
+				.productId(productId)
+				.bucketIndex(bucketIndex)
+				.quantity(allocatedQuantity)
+				.build());
+	}
+	
+	public int getQuantity() {
+		return quantity;
+	}
+	
+	public int getStockBuckets() {
+		return stockBuckets;
+	}
+	
 	// Nota sobre los métodos que son manejadores de eventos de un Aggregate.
 	// Este tipo de métodos no deben incluir lógica de negocio y simplemente deben actualizar el estado del Aggregate a partir de los datos de los eventos.
 	// Justo después de ejecutarse un método de este tipo, el evento es publicado en el Event Bus y la transacción iniciada para persistir el evento en el Event Store finaliza(El evento queda persistido definitivamente en esa base de datos)
@@ -129,4 +167,16 @@ public class ProductAggregate {
 	public void on(ProductReservationCancelledEvent productReservationCancelledEvent) {
 		this.quantity += productReservationCancelledEvent.getQuantity();
 	}
+	
+	// Anotación para que este método sea un manejador de eventos del Aggregate(En este caso, de tipo ProductStockPartitionedEvent)
+	@EventSourcingHandler
+	public void on(ProductStockPartitionedEvent productStockPartitionedEvent) {
+		this.stockBuckets = productStockPartitionedEvent.getBucketCount();
+	}
+	
+	// Anotación para que este método sea un manejador de eventos del Aggregate(En este caso, de tipo ProductStockAllocatedEvent)
+	@EventSourcingHandler
+	public void on(ProductStockAllocatedEvent productStockAllocatedEvent) {
+		this.quantity -= productStockAllocatedEvent.getQuantity();
+	}
 }
@@ -2,11 +2,15 @@ package com.mlorenzo.estore.productsservice.commandapi;
 
 import org.axonframework.config.ProcessingGroup;
 import org.axonframework.eventhandling.EventHandler;
+import org.axonframework.messaging.unitofwork.CurrentUnitOfWork;
 import org.springframework.stereotype.Component;
 
 import com.mlorenzo.estore.productsservice.commandapi.data.ProductLookupEntity;
 import com.mlorenzo.estore.productsservice.commandapi.data.ProductLookupRespository;
+import com.mlorenzo.estore.productsservice.commandapi.data.ProductStockPartitionEntity;
+import com.mlorenzo.estore.productsservice.commandapi.data.ProductStockPartitionRepository;
 import com.mlorenzo.estore.productsservice.core.events.ProductCreatedEvent;
+import com.mlorenzo.estore.productsservice.core.events.ProductStockPartitionedEvent;
 
 import lombok.RequiredArgsConstructor;
 
@@ -24,12 +28,24 @@ import lombok.RequiredArgsConstructor;
 @Component
 public class ProductLookupEventsHandler {
 	private final ProductLookupRespository repository;
+	private final ProductLookupIndex productLookupIndex;
+	private final ProductStockPartitionRepository productStockPartitionRepository;
+	private final ProductStockPartitions productStockPartitions;
 	
 	// Anotación para que este método sea un manejador de eventos(En este caso, de tipo ProductCreatedEvent)
 	@EventHandler
 	public void on(ProductCreatedEvent event) {
 		ProductLookupEntity productLookupEntity = new ProductLookupEntity(event.getProductId(), event.getTitle());
 		repository.save(productLookupEntity);
+		// El producto se añade al índice en memoria una vez confirmada la transacción para no añadir productos cuya persistencia finalmente se deshace
+		CurrentUnitOfWork.get().afterCommit(unitOfWork -> productLookupIndex.add(event.getProductId(), event.getTitle()));
 		//if(true) throw new RuntimeException("Forcing exception in the Event Handler class");
 	}
+	
+	// Registra los productos cuyo stock se reparte en cubos en la misma transacción que el evento, igual que la tabla de Look-up
+	@EventHandler
+	public void on(ProductStockPartitionedEvent event) {
+		productStockPartitionRepository.save(new ProductStockPartitionEntity(event.getProductId(), event.getBucketCount()));
+		CurrentUnitOfWork.get().afterCommit(unitOfWork -> productStockPartitions.register(event.getProductId(), event.getBucketCount()));
+	}
 }
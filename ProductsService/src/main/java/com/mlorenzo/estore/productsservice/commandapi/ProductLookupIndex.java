@@ -0,0 +1,76 @@
+package com.mlorenzo.estore.productsservice.commandapi;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.PostConstruct;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Sort;
+import org.springframework.stereotype.Component;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import com.mlorenzo.estore.productsservice.commandapi.data.ProductLookupEntity;
+import com.mlorenzo.estore.productsservice.commandapi.data.ProductLookupRespository;
+
+// Índice en memoria de los ids y títulos de los productos existentes, construido al arrancar a partir de la tabla de Look-up(productslookup) y mantenido por la clase ProductLookupEventsHandler.
+// Permite que el interceptor CreateProductCommandInterceptor valide la unicidad de un nuevo producto sin consultar la base de datos.
+// Delante del índice hay un filtro de Bloom por cada columna: si el filtro indica que un valor no existe, es seguro que no existe y ni siquiera se accede al índice. Si el filtro indica que
+// puede existir(incluidos los falsos positivos), se comprueba en el índice, que es exacto.
+// Nota: La tabla de Look-up sigue siendo la garantía final de unicidad gracias a su clave primaria y a la restricción "unique" de la columna "title". Si 2 Commands con el mismo título
+// pasan la validación a la vez, el segundo fallará al persistirse en esa tabla y se deshará su transacción(ver clase ProductLookupEventsHandler).
+@Component
+public class ProductLookupIndex {
+	private static final Logger LOGGER = LoggerFactory.getLogger(ProductLookupIndex.class);
+	private static final int LOAD_PAGE_SIZE = 10000;
+	
+	private final ProductLookupRespository productLookupRespository;
+	private final Set<String> productIds = ConcurrentHashMap.newKeySet();
+	private final Set<String> titles = ConcurrentHashMap.newKeySet();
+	private final BloomFilter<CharSequence> productIdsFilter;
+	private final BloomFilter<CharSequence> titlesFilter;
+	
+	public ProductLookupIndex(ProductLookupRespository productLookupRespository,
+			@Value("${products.lookup.expected-products:1000000}") long expectedProducts,
+			@Value("${products.lookup.false-positive-probability:0.01}") double falsePositiveProbability) {
+		this.productLookupRespository = productLookupRespository;
+		this.productIdsFilter = BloomFilter.create(Funnels.stringFunnel(StandardCharsets.UTF_8), expectedProducts, falsePositiveProbability);
+		this.titlesFilter = BloomFilter.create(Funnels.stringFunnel(StandardCharsets.UTF_8), expectedProducts, falsePositiveProbability);
+	}
+	
+	// Carga la tabla de Look-up por páginas para no tener todas las entidades en memoria a la vez
+	@PostConstruct
+	public void load() {
+		Page<ProductLookupEntity> page = productLookupRespository.findAll(PageRequest.of(0, LOAD_PAGE_SIZE, Sort.by("productId")));
+		while(true) {
+			page.forEach(productLookupEntity -> add(productLookupEntity.getProductId(), productLookupEntity.getTitle()));
+			if(!page.hasNext())
+				break;
+			page = productLookupRespository.findAll(page.nextPageable());
+		}
+		LOGGER.info("Product lookup index loaded with {} products", productIds.size());
+	}
+	
+	public void add(String productId, String title) {
+		productIdsFilter.put(productId);
+		productIds.add(productId);
+		if(title != null) {
+			titlesFilter.put(title);
+			titles.add(title);
+		}
+	}
+	
+	public boolean containsProductIdOrTitle(String productId, String title) {
+		return contains(productIdsFilter, productIds, productId) || contains(titlesFilter, titles, title);
+	}
+	
+	private static boolean contains(BloomFilter<CharSequence> filter, Set<String> values, String value) {
+		return value != null && filter.mightContain(value) && values.contains(value);
+	}
+}
@@ -0,0 +1,87 @@
+package com.mlorenzo.estore.productsservice.commandapi;
+
+import org.axonframework.eventsourcing.EventSourcingHandler;
+import org.axonframework.modelling.command.AggregateIdentifier;
+import org.axonframework.modelling.command.AggregateLifecycle;
+import org.axonframework.spring.stereotype.Aggregate;
+
+import com.mlorenzo.estore.core.commands.ReserveProductCommand;
+import com.mlorenzo.estore.core.events.ProductReservedEvent;
+import com.mlorenzo.estore.productsservice.core.events.ProductStockBucketAllocatedEvent;
+import com.mlorenzo.estore.productsservice.core.events.ProductStockBucketCreatedEvent;
+
+// Cubo de stock de un producto cuyo stock se ha repartido(ver método "partitionStock" de la clase ProductAggregate). Cada cubo es un Aggregate independiente, con su propio bloqueo y su propia secuencia
+// de eventos en el Event Store, así que las reservas de un mismo producto que caen en cubos distintos se procesan en paralelo sin conflictos entre ellas.
+// Las reservas de un cubo publican el mismo evento ProductReservedEvent que publica el Aggregate ProductAggregate, con el id del producto, por lo que el componente SAGA y el lado del Query API no distinguen
+// si el stock de un producto está repartido o no.
+// No tiene manejadores de Commands propios: la clase ProductStockCommandHandler carga los cubos desde su repositorio e invoca sus métodos.
+// Comparte con el Aggregate ProductAggregate la creación de Snapshots y la caché de instancias(los identificadores de los cubos nunca coinciden con los de los productos).
+@Aggregate(snapshotTriggerDefinition = "productSnapshotTriggerDefinition", cache = "productAggregateCache")
+public class ProductStockBucketAggregate {
+	
+	@AggregateIdentifier
+	private String bucketId;
+	
+	private String productId;
+	private int quantity;
+	
+	public ProductStockBucketAggregate() {
+	}
+	
+	// Crea un cubo vacío. Las unidades se le asignan después mediante el método "allocate"
+	public ProductStockBucketAggregate(String productId, int bucketIndex) {
+		AggregateLifecycle.apply(ProductStockBucketCreatedEvent.builder()
+				.bucketId(bucketId(productId, bucketIndex))
+				.productId(productId)
+				.bucketIndex(bucketIndex)
+				.build());
+	}
+	
+	// Identificador del cubo indicado de un producto
+	public static String bucketId(String productId, int bucketIndex) {
+		return productId + ":stock-" + bucketIndex;
+	}
+	
+	public void reserve(ReserveProductCommand reserveProductCommand) {
+		if(quantity < reserveProductCommand.getQuantity())
+			throw new IllegalArgumentException("Insufficient number of items in stock");
+		AggregateLifecycle.apply(ProductReservedEvent.builder()
+				.orderId(reserveProductCommand.getOrderId())
+				.productId(productId)
+				.quantity(reserveProductCommand.getQuantity())
+				.userId(reserveProductCommand.getUserId())
+				.build());
+	}
+	
+	// Añade unidades al cubo o, si la cantidad es negativa, las retira para devolverlas al producto o moverlas a otro cubo
+	public void allocate(int allocatedQuantity) {
+		if(-allocatedQuantity > quantity)
+			throw new IllegalArgumentException("Insufficient number of items in stock");
+		AggregateLifecycle.apply(ProductStockBucketAllocatedEvent.builder()
+				.bucketId(bucketId)
+				.productId(productId)
+				.quantity(allocatedQuantity)
+				.build());
+	}
+	
+	public int getQuantity() {
+		return quantity;
+	}
+	
+	@EventSourcingHandler
+	public void on(ProductStockBucketCreatedEvent productStockBucketCreatedEvent) {
+		this.bucketId = productStockBucketCreatedEvent.getBucketId();
+		this.productId = productStockBucketCreatedEvent.getProductId();
+		this.quantity = 0;
+	}
+	
+	@EventSourcingHandler
+	public void on(ProductStockBucketAllocatedEvent productStockBucketAllocatedEvent) {
+		this.quantity += productStockBucketAllocatedEvent.getQuantity();
+	}
+	
+	@EventSourcingHandler
+	public void on(ProductReservedEvent productReservedEvent) {
+		this.quantity -= productReservedEvent.getQuantity();
+	}
+}
@@ -0,0 +1,202 @@
+package com.mlorenzo.estore.productsservice.commandapi;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.axonframework.commandhandling.CommandHandler;
+import org.axonframework.modelling.command.Aggregate;
+import org.axonframework.modelling.command.Repository;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.mlorenzo.estore.core.commandhandling.CommandBatcher;
+import com.mlorenzo.estore.core.commands.CancelProductReservationCommand;
+import com.mlorenzo.estore.core.commands.ReserveProductCommand;
+import com.mlorenzo.estore.productsservice.commandapi.ProductStockPartitions.Partition;
+
+// Manejador de los Commands que modifican el stock de un producto. Es un manejador de Commands externo a los Aggregates: carga los Aggregates desde sus repositorios(creados por el framework Axon
+// para cada clase anotada con @Aggregate) e invoca sus métodos dentro de la unidad de trabajo del Command, así que todos los eventos que se aplican en un mismo Command se guardan juntos.
+// Si el stock del producto no está repartido, la reserva se hace en el Aggregate ProductAggregate igual que antes. Si está repartido(ver clase ProductStockPartitions), la reserva se hace en uno
+// de sus cubos(ver clase ProductStockBucketAggregate) sin cargar el Aggregate ProductAggregate, así que las reservas concurrentes de un producto muy demandado no esperan a que se guarden los eventos
+// de las demás en el mismo Aggregate.
+// Para evitar bloqueos mutuos, los Aggregates de un producto se cargan siempre en el mismo orden: los cubos de menor a mayor índice y, por último, el Aggregate ProductAggregate.
+// Nota: Los Commands se siguen enrutando por el id del producto(ver bean "productAggregateCache"), por lo que todas las reservas de un producto llegan a la misma instancia de este microservicio
+// y se reparten entre sus hilos de Commands.
+// Con el Command Bus DisruptorCommandBus(propiedad "estore.command-bus.type=disruptor"), un Command sólo puede cargar un Aggregate, así que el reparto del stock en cubos no está disponible
+// y las reservas no se agrupan(el propio bus ya ejecuta en orden, en un mismo hilo y sin recargar el producto, las reservas de un mismo producto).
+@Component
+public class ProductStockCommandHandler {
+	private final Repository<ProductAggregate> productAggregateRepository;
+	private final Repository<ProductStockBucketAggregate> productStockBucketAggregateRepository;
+	private final ProductStockPartitions productStockPartitions;
+	private final CommandBatcher reservationBatcher;
+	private final boolean disruptorCommandBus;
+
+	public ProductStockCommandHandler(Repository<ProductAggregate> productAggregateRepository, Repository<ProductStockBucketAggregate> productStockBucketAggregateRepository,
+			ProductStockPartitions productStockPartitions, CommandBatcher reservationBatcher, @Value("${estore.command-bus.type:simple}") String commandBusType) {
+		this.productAggregateRepository = productAggregateRepository;
+		this.productStockBucketAggregateRepository = productStockBucketAggregateRepository;
+		this.productStockPartitions = productStockPartitions;
+		this.reservationBatcher = reservationBatcher;
+		this.disruptorCommandBus = "disruptor".equals(commandBusType);
+	}
+
+	@CommandHandler
+	public void handle(ReserveProductCommand reserveProductCommand) {
+		Partition partition = productStockPartitions.get(reserveProductCommand.getProductId());
+		if(partition != null) {
+			reserveFromBuckets(reserveProductCommand, partition, null);
+			return;
+		}
+		if(disruptorCommandBus) {
+			reserveFromProduct(reserveProductCommand);
+			return;
+		}
+		// Las reservas concurrentes de un mismo producto se agrupan en lotes que cargan el Aggregate ProductAggregate una sola vez y guardan todos sus eventos juntos(ver bean "reservationBatcher").
+		// Cada reserva sigue recibiendo su propio resultado
+		reservationBatcher.execute(reserveProductCommand.getProductId(), () -> reserveFromProduct(reserveProductCommand));
+	}
+
+	private void reserveFromProduct(ReserveProductCommand reserveProductCommand) {
+		Aggregate<ProductAggregate> product = productAggregateRepository.load(reserveProductCommand.getProductId());
+		int stockBuckets = product.invoke(ProductAggregate::getStockBuckets);
+		if(stockBuckets == 0) {
+			product.execute(productAggregate -> productAggregate.handle(reserveProductCommand));
+			return;
+		}
+		// El stock se ha repartido en otra instancia y esta instancia aún no lo sabe(Por ejemplo, porque han cambiado las instancias que reciben los Commands del producto). En este caso, el Aggregate
+		// ProductAggregate ya está cargado antes que los cubos. Si ésto provoca un bloqueo mutuo con otra reserva, el framework Axon lo detecta y falla una de ellas(DeadlockException)
+		reserveFromBuckets(reserveProductCommand, productStockPartitions.register(reserveProductCommand.getProductId(), stockBuckets), product);
+	}
+
+	// Los cubos se cargan siempre de menor a mayor índice, empezando por el primero, y la reserva se hace en el primer cubo con unidades suficientes a partir del cubo elegido por la clase
+	// ProductStockPartitions(o, si no hay ninguno, en el primer cubo anterior con unidades suficientes). La carga se detiene en cuanto se encuentra ese cubo, así que el orden de carga es el mismo
+	// sea cual sea el cubo elegido. Si ningún cubo tiene unidades suficientes, todos los cubos están ya cargados y se juntan en el cubo elegido las unidades de los demás y, si hace falta,
+	// las unidades sin repartir del producto, así que la reserva sólo falla si el producto no tiene unidades suficientes entre todos sus cubos
+	private void reserveFromBuckets(ReserveProductCommand reserveProductCommand, Partition partition, Aggregate<ProductAggregate> loadedProduct) {
+		checkStockPartitioningSupported();
+		String productId = reserveProductCommand.getProductId();
+		int quantity = reserveProductCommand.getQuantity();
+		int bucketCount = partition.getBucketCount();
+		int startBucket = partition.selectBucket(quantity);
+		List<Aggregate<ProductStockBucketAggregate>> buckets = new ArrayList<>(bucketCount);
+		int[] bucketQuantities = new int[bucketCount];
+		int targetBucket = -1;
+		for(int bucketIndex = 0; bucketIndex < bucketCount && targetBucket == -1; bucketIndex++) {
+			Aggregate<ProductStockBucketAggregate> bucket = productStockBucketAggregateRepository.load(ProductStockBucketAggregate.bucketId(productId, bucketIndex));
+			buckets.add(bucket);
+			bucketQuantities[bucketIndex] = bucket.invoke(ProductStockBucketAggregate::getQuantity);
+			partition.updateBucketQuantity(bucketIndex, bucketQuantities[bucketIndex]);
+			if(bucketIndex >= startBucket && bucketQuantities[bucketIndex] >= quantity)
+				targetBucket = bucketIndex;
+		}
+		for(int bucketIndex = 0; bucketIndex < startBucket && targetBucket == -1; bucketIndex++)
+			if(bucketQuantities[bucketIndex] >= quantity)
+				targetBucket = bucketIndex;
+		if(targetBucket != -1) {
+			int bucketQuantity = bucketQuantities[targetBucket];
+			buckets.get(targetBucket).execute(bucketAggregate -> bucketAggregate.reserve(reserveProductCommand));
+			partition.updateBucketQuantity(targetBucket, bucketQuantity - quantity);
+			return;
+		}
+		Aggregate<ProductAggregate> product = loadedProduct != null ? loadedProduct : productAggregateRepository.load(productId);
+		int available = product.invoke(ProductAggregate::getQuantity);
+		for(int bucketQuantity : bucketQuantities)
+			available += bucketQuantity;
+		if(available < quantity)
+			throw new IllegalArgumentException("Insufficient number of items in stock");
+		Aggregate<ProductStockBucketAggregate> target = buckets.get(startBucket);
+		int missing = quantity - bucketQuantities[startBucket];
+		for(int bucketIndex = 0; bucketIndex < bucketCount && missing > 0; bucketIndex++) {
+			int moved = Math.min(missing, bucketQuantities[bucketIndex]);
+			if(bucketIndex != startBucket && moved > 0) {
+				buckets.get(bucketIndex).execute(bucketAggregate -> bucketAggregate.allocate(-moved));
+				target.execute(bucketAggregate -> bucketAggregate.allocate(moved));
+				partition.updateBucketQuantity(bucketIndex, bucketQuantities[bucketIndex] - moved);
+				missing -= moved;
+			}
+		}
+		if(missing > 0) {
+			int moved = missing;
+			product.execute(productAggregate -> productAggregate.allocateStock(startBucket, moved));
+			target.execute(bucketAggregate -> bucketAggregate.allocate(moved));
+		}
+		target.execute(bucketAggregate -> bucketAggregate.reserve(reserveProductCommand));
+		partition.updateBucketQuantity(startBucket, 0);
+		partition.requestRebalance();
+	}
+
+	@CommandHandler
+	public void handle(CancelProductReservationCommand cancelProductReservationCommand) {
+		productAggregateRepository.load(cancelProductReservationCommand.getProductId())
+				.execute(productAggregate -> productAggregate.handle(cancelProductReservationCommand));
+		// Las unidades devueltas quedan sin repartir hasta el siguiente reequilibrado
+		Partition partition = productStockPartitions.get(cancelProductReservationCommand.getProductId());
+		if(partition != null)
+			partition.requestRebalance();
+	}
+
+	// Reparte el stock del producto a partes iguales entre los cubos indicados, que se crean en este mismo Command
+	@CommandHandler
+	public void handle(PartitionProductStockCommand partitionProductStockCommand) throws Exception {
+		checkStockPartitioningSupported();
+		String productId = partitionProductStockCommand.getProductId();
+		int bucketCount = partitionProductStockCommand.getBucketCount();
+		Aggregate<ProductAggregate> product = productAggregateRepository.load(productId);
+		product.execute(productAggregate -> productAggregate.partitionStock(bucketCount));
+		int quantity = product.invoke(ProductAggregate::getQuantity);
+		for(int bucketIndex = 0; bucketIndex < bucketCount; bucketIndex++) {
+			int index = bucketIndex;
+			int share = quantity / bucketCount + (bucketIndex < quantity % bucketCount ? 1 : 0);
+			Aggregate<ProductStockBucketAggregate> bucket = productStockBucketAggregateRepository.newInstance(() -> new ProductStockBucketAggregate(productId, index));
+			if(share > 0) {
+				product.execute(productAggregate -> productAggregate.allocateStock(index, share));
+				bucket.execute(bucketAggregate -> bucketAggregate.allocate(share));
+			}
+		}
+	}
+
+	// Junta las unidades de todos los cubos y las unidades sin repartir del producto y las vuelve a repartir a partes iguales entre los cubos. Las unidades se mueven siempre a través del producto:
+	// primero vuelven al producto las unidades que le sobran a cada cubo y, después, se asignan a los cubos a los que les faltan
+	@CommandHandler
+	public void handle(RebalanceProductStockCommand rebalanceProductStockCommand) {
+		String productId = rebalanceProductStockCommand.getProductId();
+		Partition partition = productStockPartitions.get(productId);
+		if(partition == null)
+			return;
+		checkStockPartitioningSupported();
+		int bucketCount = partition.getBucketCount();
+		List<Aggregate<ProductStockBucketAggregate>> buckets = new ArrayList<>(bucketCount);
+		int[] bucketQuantities = new int[bucketCount];
+		for(int bucketIndex = 0; bucketIndex < bucketCount; bucketIndex++) {
+			Aggregate<ProductStockBucketAggregate> bucket = productStockBucketAggregateRepository.load(ProductStockBucketAggregate.bucketId(productId, bucketIndex));
+			buckets.add(bucket);
+			bucketQuantities[bucketIndex] = bucket.invoke(ProductStockBucketAggregate::getQuantity);
+		}
+		Aggregate<ProductAggregate> product = productAggregateRepository.load(productId);
+		int total = product.invoke(ProductAggregate::getQuantity);
+		for(int bucketQuantity : bucketQuantities)
+			total += bucketQuantity;
+		int[] shares = new int[bucketCount];
+		for(int bucketIndex = 0; bucketIndex < bucketCount; bucketIndex++)
+			shares[bucketIndex] = total / bucketCount + (bucketIndex < total % bucketCount ? 1 : 0);
+		for(int bucketIndex = 0; bucketIndex < bucketCount; bucketIndex++)
+			if(bucketQuantities[bucketIndex] > shares[bucketIndex])
+				moveStock(product, buckets.get(bucketIndex), bucketIndex, shares[bucketIndex] - bucketQuantities[bucketIndex]);
+		for(int bucketIndex = 0; bucketIndex < bucketCount; bucketIndex++)
+			if(bucketQuantities[bucketIndex] < shares[bucketIndex])
+				moveStock(product, buckets.get(bucketIndex), bucketIndex, shares[bucketIndex] - bucketQuantities[bucketIndex]);
+		for(int bucketIndex = 0; bucketIndex < bucketCount; bucketIndex++)
+			partition.updateBucketQuantity(bucketIndex, shares[bucketIndex]);
+	}
+
+	private void checkStockPartitioningSupported() {
+		if(disruptorCommandBus)
+			throw new IllegalStateException("Partitioned product stock is not supported with the disruptor command bus");
+	}
+
+	private void moveStock(Aggregate<ProductAggregate> product, Aggregate<ProductStockBucketAggregate> bucket, int bucketIndex, int quantity) {
+		product.execute(productAggregate -> productAggregate.allocateStock(bucketIndex, quantity));
+		bucket.execute(bucketAggregate -> bucketAggregate.allocate(quantity));
+	}
+}
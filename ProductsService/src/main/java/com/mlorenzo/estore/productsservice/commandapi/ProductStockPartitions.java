@@ -0,0 +1,125 @@
+package com.mlorenzo.estore.productsservice.commandapi;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import javax.annotation.PostConstruct;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import com.mlorenzo.estore.productsservice.commandapi.data.ProductStockPartitionRepository;
+
+// Registro en memoria de los productos cuyo stock está repartido en cubos, construido al arrancar a partir de la tabla "productstockpartitions" y mantenido por la clase ProductLookupEventsHandler.
+// Para cada producto guarda, además, las unidades que tenía cada cubo la última vez que esta instancia lo cargó. Estas cantidades son sólo una pista para elegir el cubo de una reserva sin cargar
+// los cubos(la comprobación definitiva la hace siempre el propio cubo) y para detectar cubos descompensados que conviene reequilibrar(ver clase ProductStockRebalancer).
+@Component
+public class ProductStockPartitions {
+	private static final Logger LOGGER = LoggerFactory.getLogger(ProductStockPartitions.class);
+	private static final int UNKNOWN_QUANTITY = -1;
+
+	private final ProductStockPartitionRepository productStockPartitionRepository;
+	private final ConcurrentMap<String, Partition> partitions = new ConcurrentHashMap<>();
+
+	public ProductStockPartitions(ProductStockPartitionRepository productStockPartitionRepository) {
+		this.productStockPartitionRepository = productStockPartitionRepository;
+	}
+
+	@PostConstruct
+	public void load() {
+		productStockPartitionRepository.findAll().forEach(entity -> register(entity.getProductId(), entity.getBucketCount()));
+		LOGGER.info("Loaded {} products with partitioned stock", partitions.size());
+	}
+
+	public Partition register(String productId, int bucketCount) {
+		return partitions.computeIfAbsent(productId, key -> new Partition(key, bucketCount));
+	}
+
+	// Devuelve null si el stock del producto no está repartido
+	public Partition get(String productId) {
+		return partitions.get(productId);
+	}
+
+	public Collection<Partition> getAll() {
+		return partitions.values();
+	}
+
+	public static class Partition {
+		private final String productId;
+		private final AtomicIntegerArray bucketQuantities;
+		private final AtomicInteger nextBucket = new AtomicInteger();
+		private final AtomicBoolean rebalanceRequested = new AtomicBoolean();
+
+		Partition(String productId, int bucketCount) {
+			this.productId = productId;
+			this.bucketQuantities = new AtomicIntegerArray(bucketCount);
+			for(int i = 0; i < bucketCount; i++)
+				bucketQuantities.set(i, UNKNOWN_QUANTITY);
+		}
+
+		public String getProductId() {
+			return productId;
+		}
+
+		public int getBucketCount() {
+			return bucketQuantities.length();
+		}
+
+		// Elige el cubo en el que se intenta hacer una reserva: el siguiente cubo, en orden circular, que según la última cantidad conocida tiene unidades suficientes. Así las reservas concurrentes
+		// se reparten entre los cubos en lugar de agotar el mismo. Si ningún cubo tiene unidades suficientes, se elige el primero. La elección no cambia el orden en el que se cargan los cubos,
+		// que es siempre de menor a mayor índice(ver clase ProductStockCommandHandler)
+		int selectBucket(int quantity) {
+			int bucketCount = getBucketCount();
+			int start = Math.floorMod(nextBucket.getAndIncrement(), bucketCount);
+			for(int i = 0; i < bucketCount; i++) {
+				int bucketIndex = (start + i) % bucketCount;
+				int bucketQuantity = bucketQuantities.get(bucketIndex);
+				if(bucketQuantity == UNKNOWN_QUANTITY || bucketQuantity >= quantity)
+					return bucketIndex;
+			}
+			return 0;
+		}
+
+		void updateBucketQuantity(int bucketIndex, int quantity) {
+			bucketQuantities.set(bucketIndex, quantity);
+		}
+
+		public int[] getBucketQuantities() {
+			int[] quantities = new int[getBucketCount()];
+			for(int i = 0; i < quantities.length; i++)
+				quantities[i] = bucketQuantities.get(i);
+			return quantities;
+		}
+
+		void requestRebalance() {
+			rebalanceRequested.set(true);
+		}
+
+		// Un producto necesita reequilibrarse si se ha pedido expresamente(Por ejemplo, porque una reserva ha tenido que mover unidades entre cubos o porque una cancelación ha devuelto unidades
+		// al producto) o si el cubo con menos unidades tiene menos de la mitad de la media, siempre que haya al menos una unidad por cubo. Sólo se tienen en cuenta los productos cuyos cubos ha
+		// cargado esta instancia, que son los que recibe por el enrutamiento de los Commands
+		boolean needsRebalance() {
+			if(rebalanceRequested.get())
+				return true;
+			int total = 0;
+			int minimum = Integer.MAX_VALUE;
+			for(int i = 0; i < getBucketCount(); i++) {
+				int bucketQuantity = bucketQuantities.get(i);
+				if(bucketQuantity == UNKNOWN_QUANTITY)
+					return false;
+				total += bucketQuantity;
+				minimum = Math.min(minimum, bucketQuantity);
+			}
+			return total >= getBucketCount() && minimum * 2 * getBucketCount() < total;
+		}
+
+		void clearRebalanceRequest() {
+			rebalanceRequested.set(false);
+		}
+	}
+}
@@ -0,0 +1,61 @@
+package com.mlorenzo.estore.productsservice.commandapi;
+
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PreDestroy;
+
+import org.axonframework.commandhandling.gateway.CommandGateway;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.mlorenzo.estore.productsservice.commandapi.ProductStockPartitions.Partition;
+
+// Componente que reequilibra en segundo plano el stock de los productos repartidos en cubos. Cada "products.stock-buckets.rebalance-interval" revisa los productos cuyos cubos ha cargado esta instancia
+// y, para los que están descompensados o tienen unidades sin repartir(ver método "needsRebalance" de la clase ProductStockPartitions), despacha un Command RebalanceProductStockCommand.
+// El reequilibrado se hace como cualquier otro Command, así que no interfiere con las reservas en curso más allá de la espera por los bloqueos de los cubos del producto.
+@Component
+public class ProductStockRebalancer {
+	private static final Logger LOGGER = LoggerFactory.getLogger(ProductStockRebalancer.class);
+
+	private final CommandGateway commandGateway;
+	private final ProductStockPartitions productStockPartitions;
+	private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+
+	public ProductStockRebalancer(CommandGateway commandGateway, ProductStockPartitions productStockPartitions,
+			@Value("${products.stock-buckets.rebalance-interval:5s}") Duration rebalanceInterval) {
+		this.commandGateway = commandGateway;
+		this.productStockPartitions = productStockPartitions;
+		executor.scheduleWithFixedDelay(this::rebalance, rebalanceInterval.toMillis(), rebalanceInterval.toMillis(), TimeUnit.MILLISECONDS);
+	}
+
+	private void rebalance() {
+		for(Partition partition : productStockPartitions.getAll()) {
+			if(!partition.needsRebalance())
+				continue;
+			partition.clearRebalanceRequest();
+			try {
+				// Operación no bloqueante. Si falla(Por ejemplo, por un error de concurrencia), el producto se volverá a revisar en la siguiente pasada
+				commandGateway.send(new RebalanceProductStockCommand(partition.getProductId()))
+						.exceptionally(ex -> {
+							LOGGER.warn("Could not rebalance the stock of the product {}: {}", partition.getProductId(), ex.getMessage());
+							partition.requestRebalance();
+							return null;
+						});
+			}
+			catch(Exception ex) {
+				LOGGER.warn("Could not dispatch the stock rebalance of the product {}: {}", partition.getProductId(), ex.getMessage());
+				partition.requestRebalance();
+			}
+		}
+	}
+
+	@PreDestroy
+	public void shutDown() {
+		executor.shutdownNow();
+	}
+}
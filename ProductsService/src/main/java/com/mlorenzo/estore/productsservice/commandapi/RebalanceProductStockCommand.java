@@ -0,0 +1,13 @@
+package com.mlorenzo.estore.productsservice.commandapi;
+
+import org.axonframework.modelling.command.TargetAggregateIdentifier;
+
+import lombok.Value;
+
+@Value
+public class RebalanceProductStockCommand {
+	
+	// Sólo se usa como clave de enrutamiento para que el Command llegue a la misma instancia que recibe las reservas del producto
+	@TargetAggregateIdentifier
+	private String productId;
+}
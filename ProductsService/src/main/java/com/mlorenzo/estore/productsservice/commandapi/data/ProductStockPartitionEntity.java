@@ -0,0 +1,24 @@
+package com.mlorenzo.estore.productsservice.commandapi.data;
+
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+// Productos cuyo stock está repartido en cubos y número de cubos de cada uno. Igual que la tabla de Look-up, se mantiene desde el lado del API Command en la misma transacción que el Event Store
+// (ver clase ProductLookupEventsHandler) para que la clase ProductStockCommandHandler pueda saber, sin cargar el Aggregate ProductAggregate, si una reserva debe ir a los cubos del producto
+@AllArgsConstructor
+@NoArgsConstructor
+@Data
+@Entity
+@Table(name = "productstockpartitions")
+public class ProductStockPartitionEntity {
+	
+	@Id
+	private String productId;
+	
+	private int bucketCount;
+}
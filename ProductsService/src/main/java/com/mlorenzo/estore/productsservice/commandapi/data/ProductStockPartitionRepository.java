@@ -0,0 +1,6 @@
+package com.mlorenzo.estore.productsservice.commandapi.data;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+
+public interface ProductStockPartitionRepository extends JpaRepository<ProductStockPartitionEntity, String> {
+}
@@ -6,11 +6,15 @@ import org.axonframework.config.EventProcessingConfiguration;
 import org.axonframework.eventhandling.TrackingEventProcessor;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
 
+import com.mlorenzo.estore.productsservice.queryapi.ProductProjectionRebuilder;
+import com.mlorenzo.estore.productsservice.queryapi.ProjectionRebuildProgress;
+
 import lombok.AllArgsConstructor;
 
 // Nota: La recreación de eventos sólo funciona en los procesadores de eventos de tipo Tracking.
@@ -21,6 +25,7 @@ import lombok.AllArgsConstructor;
 @RequestMapping("/management")
 public class EventsReplayController {
 	private final EventProcessingConfiguration eventProcessingConfiguration;
+	private final ProductProjectionRebuilder productProjectionRebuilder;
 
 	@PostMapping("/event-processor/{processorName}/reset")
 	public ResponseEntity<String> replayEvents(@PathVariable String processorName) {
@@ -29,11 +34,19 @@ public class EventsReplayController {
 			TrackingEventProcessor trackingEventProcessor = optionalProcessor.get();
 			// Antes de recrear los eventos asociados a un determinado procesador de eventos de tipo Tracking, tenemos que parar dicho procesador de eventos y reiniciar sus tokens
 			trackingEventProcessor.shutDown();
-			trackingEventProcessor.resetTokens();
-			// Iniciamos la recreación de eventos
+			// Los tokens se reinician siempre al principio del Event Store, aunque el procesador tenga otro token inicial(Por ejemplo, el procesador "product-catalog", que arranca desde la copia en disco de la proyección)
+			trackingEventProcessor.resetTokens(messageSource -> messageSource.createTailToken());
+			// Iniciamos la recreación de eventos. Si el reinicio de los tokens ha iniciado la reconstrucción de la proyección de productos en la tabla sombra(ver manejador @ResetHandler de la clase ProductEventsHandler),
+			// la clase ProductProjectionRebuilder sustituye la tabla de productos cuando termine la recreación
 			trackingEventProcessor.start();
 			return ResponseEntity.ok(String.format("The event processor with name [%s] has been reset", processorName));
 		}
 		return new ResponseEntity<>(String.format("The event processor with name [%s] is not exists", processorName), HttpStatus.NOT_FOUND);
 	}
+	
+	// Devuelve el progreso de la reconstrucción de la proyección de productos: porcentaje completado y eventos recreados por segundo
+	@GetMapping("/products-projection/replay-progress")
+	public ProjectionRebuildProgress getReplayProgress() {
+		return productProjectionRebuilder.progress();
+	}
 }
@@ -0,0 +1,31 @@
+package com.mlorenzo.estore.productsservice.commandapi.rest;
+
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import com.mlorenzo.estore.productsservice.queryapi.ProductCache;
+import com.mlorenzo.estore.productsservice.queryapi.ProductCacheStats;
+
+import lombok.AllArgsConstructor;
+
+@AllArgsConstructor
+@RestController
+@RequestMapping("/management/products-cache")
+public class ProductCacheController {
+	private final ProductCache productCache;
+	
+	// Devuelve el número de productos en la caché, los aciertos, los fallos, la tasa de aciertos y los productos desalojados desde que se inició esta instancia
+	@GetMapping("/stats")
+	public ProductCacheStats getStats() {
+		return productCache.stats();
+	}
+	
+	@DeleteMapping
+	public ResponseEntity<Void> clear() {
+		productCache.invalidateAll();
+		return ResponseEntity.noContent().build();
+	}
+}
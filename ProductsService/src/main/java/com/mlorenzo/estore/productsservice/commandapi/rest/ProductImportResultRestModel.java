@@ -0,0 +1,20 @@
+package com.mlorenzo.estore.productsservice.commandapi.rest;
+
+import lombok.Value;
+
+// Resultado de la importación de una fila(línea del CSV o elemento del array JSON, empezando por 1) de una importación masiva de productos
+@Value
+public class ProductImportResultRestModel {
+	private int row;
+	private String productId;
+	private boolean created;
+	private String message;
+	
+	public static ProductImportResultRestModel created(int row, String productId) {
+		return new ProductImportResultRestModel(row, productId, true, null);
+	}
+	
+	public static ProductImportResultRestModel rejected(int row, String productId, String message) {
+		return new ProductImportResultRestModel(row, productId, false, message);
+	}
+}
@@ -0,0 +1,55 @@
+package com.mlorenzo.estore.productsservice.commandapi.rest;
+
+import javax.validation.constraints.Max;
+import javax.validation.constraints.Min;
+
+import org.axonframework.commandhandling.gateway.CommandGateway;
+import org.springframework.http.ResponseEntity;
+import org.springframework.validation.annotation.Validated;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import com.mlorenzo.estore.productsservice.commandapi.PartitionProductStockCommand;
+import com.mlorenzo.estore.productsservice.commandapi.ProductStockPartitions;
+import com.mlorenzo.estore.productsservice.commandapi.ProductStockPartitions.Partition;
+import com.mlorenzo.estore.productsservice.commandapi.RebalanceProductStockCommand;
+
+import lombok.AllArgsConstructor;
+
+// Activa el reparto del stock de un producto en cubos(Por ejemplo, antes de una venta flash) y permite consultar y reequilibrar sus cubos
+@AllArgsConstructor
+@Validated
+@RestController
+@RequestMapping("/management/stock-buckets")
+public class ProductStockBucketsController {
+	private final CommandGateway commandGateway;
+	private final ProductStockPartitions productStockPartitions;
+	
+	@PostMapping("/{productId}")
+	public ResponseEntity<Void> partition(@PathVariable String productId,
+			@RequestParam @Min(value = 2, message = "Bucket count cannot be lower than 2") @Max(value = 64, message = "Bucket count cannot be larger than 64") int bucketCount) {
+		commandGateway.sendAndWait(PartitionProductStockCommand.builder()
+				.productId(productId)
+				.bucketCount(bucketCount)
+				.build());
+		return ResponseEntity.noContent().build();
+	}
+	
+	@PostMapping("/{productId}/rebalance")
+	public ResponseEntity<Void> rebalance(@PathVariable String productId) {
+		commandGateway.sendAndWait(new RebalanceProductStockCommand(productId));
+		return ResponseEntity.noContent().build();
+	}
+	
+	@GetMapping("/{productId}")
+	public ResponseEntity<ProductStockBucketsRestModel> getBuckets(@PathVariable String productId) {
+		Partition partition = productStockPartitions.get(productId);
+		if(partition == null)
+			return ResponseEntity.notFound().build();
+		return ResponseEntity.ok(new ProductStockBucketsRestModel(productId, partition.getBucketCount(), partition.getBucketQuantities()));
+	}
+}
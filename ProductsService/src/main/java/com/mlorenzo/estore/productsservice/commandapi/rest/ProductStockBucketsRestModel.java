@@ -0,0 +1,11 @@
+package com.mlorenzo.estore.productsservice.commandapi.rest;
+
+import lombok.Value;
+
+@Value
+public class ProductStockBucketsRestModel {
+	private String productId;
+	private int bucketCount;
+	// Unidades de cada cubo la última vez que esta instancia lo cargó(-1 si aún no lo ha cargado)
+	private int[] bucketQuantities;
+}
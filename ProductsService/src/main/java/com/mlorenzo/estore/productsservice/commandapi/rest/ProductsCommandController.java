@@ -1,38 +1,147 @@
 package com.mlorenzo.estore.productsservice.commandapi.rest;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+import javax.validation.ConstraintViolation;
+import javax.validation.Validator;
 
 import org.axonframework.commandhandling.gateway.CommandGateway;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.validation.annotation.Validated;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.ResponseStatus;
 import org.springframework.web.bind.annotation.RestController;
 
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.csv.CsvMapper;
+import com.fasterxml.jackson.dataformat.csv.CsvSchema;
 import com.mlorenzo.estore.productsservice.commandapi.CreateProductCommand;
 
 import lombok.RequiredArgsConstructor;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
 
 @RequiredArgsConstructor
 @RestController
 @RequestMapping("/products")
 public class ProductsCommandController {
+	private static final String TEXT_CSV_VALUE = "text/csv";
+	private static final CsvMapper CSV_MAPPER = new CsvMapper();
+	
 	private final CommandGateway commandGateway;
+	private final ObjectMapper objectMapper;
+	private final Validator validator;
+	
+	// Número máximo de Commands CreateProductCommand en vuelo durante una importación masiva
+	@Value("${products.import.max-concurrency:32}")
+	private int importMaxConcurrency;
 	
 	// Nota: Puede usarse tanto la anotación @Valid de JPA como la anotación @Validated de Spring para realizar las validaciones
 	@ResponseStatus(HttpStatus.CREATED)
 	@PostMapping
 	public String createProduct(@Validated @RequestBody CreateProductRestModel createProductRestModel) {
-		CreateProductCommand createProductCommand = CreateProductCommand.builder()
+		CreateProductCommand createProductCommand = toCreateProductCommand(createProductRestModel);
+		// Método que hace que el Command Gateway despache o envíe un command(En este caso de tipo CreateProductCommand) al Command Bus.
+		// Operación bloqueante. Existe otro método llamado "send" que es no bloqueante.
+		return commandGateway.sendAndWait(createProductCommand);
+	}
+	
+	// Importación masiva de productos a partir de un array JSON o de un CSV con cabecera(title,price,quantity).
+	// El cuerpo de la petición se lee fila a fila, sin cargarlo completo en memoria, y cada fila válida se despacha con el método no bloqueante "send" del Command Gateway,
+	// con un máximo de "products.import.max-concurrency" Commands en vuelo. El resultado de cada fila se devuelve como un flujo NDJSON en el mismo orden que las filas.
+	@PostMapping(path = "/bulk", consumes = {MediaType.APPLICATION_JSON_VALUE, TEXT_CSV_VALUE}, produces = MediaType.APPLICATION_NDJSON_VALUE)
+	public Flux<ProductImportResultRestModel> importProducts(@RequestHeader(HttpHeaders.CONTENT_TYPE) MediaType contentType, InputStream body) {
+		// Títulos ya importados en esta petición para rechazar los duplicados sin esperar a que falle su persistencia en la tabla de Look-up
+		Set<String> importedTitles = ConcurrentHashMap.newKeySet();
+		return Flux.using(() -> openRows(contentType, body), this::readRows, ProductsCommandController::closeRows)
+				// La lectura del cuerpo de la petición es bloqueante
+				.subscribeOn(Schedulers.boundedElastic())
+				.flatMapSequential(row -> importRow(row, importedTitles), importMaxConcurrency);
+	}
+	
+	private MappingIterator<CreateProductRestModel> openRows(MediaType contentType, InputStream body) throws IOException {
+		if(MediaType.APPLICATION_JSON.isCompatibleWith(contentType))
+			return objectMapper.readerFor(CreateProductRestModel.class).readValues(body);
+		return CSV_MAPPER.readerFor(CreateProductRestModel.class)
+				.with(CsvSchema.emptySchema().withHeader())
+				.readValues(body);
+	}
+	
+	// Una fila que no se puede convertir(Por ejemplo, un precio no numérico) se rechaza y se continúa con la siguiente. Un cuerpo mal formado termina la importación
+	private Flux<ImportRow> readRows(MappingIterator<CreateProductRestModel> rows) {
+		return Flux.generate(() -> 1, (rowNumber, sink) -> {
+			try {
+				if(!rows.hasNextValue())
+					sink.complete();
+				else
+					sink.next(new ImportRow(rowNumber, rows.nextValue(), null));
+			}
+			catch(JsonMappingException ex) {
+				sink.next(new ImportRow(rowNumber, null, ex.getOriginalMessage()));
+			}
+			catch(IOException ex) {
+				sink.error(ex);
+			}
+			return rowNumber + 1;
+		});
+	}
+	
+	private Mono<ProductImportResultRestModel> importRow(ImportRow row, Set<String> importedTitles) {
+		if(row.getError() != null)
+			return Mono.just(ProductImportResultRestModel.rejected(row.getNumber(), null, row.getError()));
+		Set<ConstraintViolation<CreateProductRestModel>> violations = validator.validate(row.getProduct());
+		if(!violations.isEmpty())
+			return Mono.just(ProductImportResultRestModel.rejected(row.getNumber(), null, violations.stream()
+					.map(ConstraintViolation::getMessage)
+					.sorted()
+					.collect(Collectors.joining(", "))));
+		if(!importedTitles.add(row.getProduct().getTitle()))
+			return Mono.just(ProductImportResultRestModel.rejected(row.getNumber(), null,
+					String.format("Product with title %s is duplicated in this import", row.getProduct().getTitle())));
+		CreateProductCommand createProductCommand = toCreateProductCommand(row.getProduct());
+		// Los interceptores de Commands se ejecutan al despachar el Command y pueden lanzar excepciones, así que el despacho se difiere para convertirlas en un resultado de la fila
+		return Mono.defer(() -> Mono.fromFuture(commandGateway.<String>send(createProductCommand)))
+				.map(productId -> ProductImportResultRestModel.created(row.getNumber(), productId))
+				.onErrorResume(ex -> Mono.just(ProductImportResultRestModel.rejected(row.getNumber(), createProductCommand.getProductId(), ex.getMessage())));
+	}
+	
+	private static void closeRows(MappingIterator<CreateProductRestModel> rows) {
+		try {
+			rows.close();
+		}
+		catch(IOException ex) {
+			// El cuerpo de la petición ya se ha leído o la importación ya ha terminado con error
+		}
+	}
+	
+	private static CreateProductCommand toCreateProductCommand(CreateProductRestModel createProductRestModel) {
+		return CreateProductCommand.builder()
 				.productId(UUID.randomUUID().toString())
 				.title(createProductRestModel.getTitle())
 				.price(createProductRestModel.getPrice())
 				.quantity(createProductRestModel.getQuantity())
 				.build();
-		// Método que hace que el Command Gateway despache o envíe un command(En este caso de tipo CreateProductCommand) al Command Bus.
-		// Operación bloqueante. Existe otro método llamado "send" que es no bloqueante.
-		return commandGateway.sendAndWait(createProductCommand);
+	}
+	
+	// Fila leída del cuerpo de la petición: el producto o el error de conversión
+	@lombok.Value
+	private static class ImportRow {
+		private int number;
+		private CreateProductRestModel product;
+		private String error;
 	}
 }
@@ -0,0 +1,23 @@
+package com.mlorenzo.estore.productsservice.commandapi.rest;
+
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import com.mlorenzo.estore.core.commandhandling.CommandBatcher;
+import com.mlorenzo.estore.core.commandhandling.CommandBatcherStats;
+
+import lombok.AllArgsConstructor;
+
+@AllArgsConstructor
+@RestController
+@RequestMapping("/management/reservation-batching")
+public class ReservationBatchingController {
+	private final CommandBatcher reservationBatcher;
+	
+	// Devuelve los lotes de reservas ejecutados por esta instancia, su tamaño medio y máximo y las reservas que han fallado individualmente o con su lote
+	@GetMapping("/stats")
+	public CommandBatcherStats getStats() {
+		return reservationBatcher.stats();
+	}
+}
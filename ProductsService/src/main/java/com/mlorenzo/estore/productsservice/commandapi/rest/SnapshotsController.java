@@ -0,0 +1,32 @@
+package com.mlorenzo.estore.productsservice.commandapi.rest;
+
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import com.mlorenzo.estore.core.snapshotting.AdaptiveSnapshotTriggerDefinition;
+import com.mlorenzo.estore.core.snapshotting.AggregateLoadStats;
+import com.mlorenzo.estore.core.snapshotting.CoalescingSnapshotter;
+import com.mlorenzo.estore.core.snapshotting.SnapshotterStats;
+
+import lombok.AllArgsConstructor;
+
+@AllArgsConstructor
+@RestController
+@RequestMapping("/management/snapshots")
+public class SnapshotsController {
+	private final CoalescingSnapshotter snapshotter;
+	private final AdaptiveSnapshotTriggerDefinition productSnapshotTriggerDefinition;
+	
+	// Devuelve las peticiones de Snapshots de productos encoladas, agrupadas, descartadas y procesadas por esta instancia
+	@GetMapping("/stats")
+	public SnapshotterStats getStats() {
+		return snapshotter.stats();
+	}
+	
+	// Devuelve los tiempos de carga del Aggregate ProductAggregate en esta instancia, separando las cargas que parten de un Snapshot de las que aplican todos los eventos
+	@GetMapping("/load-stats")
+	public AggregateLoadStats getLoadStats() {
+		return productSnapshotTriggerDefinition.stats();
+	}
+}
@@ -0,0 +1,11 @@
+package com.mlorenzo.estore.productsservice.core.errorhandler;
+
+// Excepción de los parámetros de consulta no válidos de las peticiones REST(Por ejemplo, una propiedad de ordenación que no existe). Es la única excepción propia que el manejador
+// centralizado de excepciones ProductServiceErrorHandler convierte en una respuesta 400(Bad Request). El resto de excepciones, como las IllegalArgumentException de los Aggregates, se tratan como errores del servidor
+public class InvalidQueryParameterException extends RuntimeException {
+	private static final long serialVersionUID = 1L;
+
+	public InvalidQueryParameterException(String message) {
+		super(message);
+	}
+}
@@ -3,6 +3,8 @@ package com.mlorenzo.estore.productsservice.core.errorhandler;
 import java.util.Date;
 import java.util.stream.Collectors;
 
+import javax.validation.ConstraintViolationException;
+
 import org.axonframework.commandhandling.CommandExecutionException;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
@@ -25,6 +27,13 @@ public class ProductServiceErrorHandler {
 		return new ErrorMessage(new Date(), message);
 	}
 	
+	@ResponseBody
+	@ResponseStatus(HttpStatus.BAD_REQUEST)
+	@ExceptionHandler(value = {ConstraintViolationException.class, InvalidQueryParameterException.class})
+	public ErrorMessage handleInvalidRequestParameterException(Exception ex) {
+		return new ErrorMessage(new Date(), ex.getMessage());
+	}
+	
 	@ExceptionHandler(value = CommandExecutionException.class)
 	public ResponseEntity<ErrorMessage> handleCommandExecutionException(CommandExecutionException ex) {
 		ErrorMessage errorMessage = new ErrorMessage(new Date(), ex.getMessage());
@@ -0,0 +1,13 @@
+package com.mlorenzo.estore.productsservice.core.events;
+
+import lombok.Builder;
+import lombok.Value;
+
+// Unidades movidas entre el stock sin repartir de un producto y uno de sus cubos de stock. Una cantidad negativa indica que las unidades vuelven del cubo al producto
+@Builder
+@Value
+public class ProductStockAllocatedEvent {
+	private String productId;
+	private int bucketIndex;
+	private int quantity;
+}
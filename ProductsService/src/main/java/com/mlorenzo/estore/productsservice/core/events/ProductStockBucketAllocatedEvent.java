@@ -0,0 +1,13 @@
+package com.mlorenzo.estore.productsservice.core.events;
+
+import lombok.Builder;
+import lombok.Value;
+
+// Contrapartida del evento ProductStockAllocatedEvent en el cubo de stock. Una cantidad negativa indica que las unidades salen del cubo y vuelven al producto
+@Builder
+@Value
+public class ProductStockBucketAllocatedEvent {
+	private String bucketId;
+	private String productId;
+	private int quantity;
+}
@@ -0,0 +1,12 @@
+package com.mlorenzo.estore.productsservice.core.events;
+
+import lombok.Builder;
+import lombok.Value;
+
+@Builder
+@Value
+public class ProductStockBucketCreatedEvent {
+	private String bucketId;
+	private String productId;
+	private int bucketIndex;
+}
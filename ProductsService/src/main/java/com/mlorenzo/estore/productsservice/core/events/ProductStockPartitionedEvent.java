@@ -0,0 +1,11 @@
+package com.mlorenzo.estore.productsservice.core.events;
+
+import lombok.Builder;
+import lombok.Value;
+
+@Builder
+@Value
+public class ProductStockPartitionedEvent {
+	private String productId;
+	private int bucketCount;
+}
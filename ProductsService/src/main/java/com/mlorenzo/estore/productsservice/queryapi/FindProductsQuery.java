@@ -1,7 +1,15 @@
 package com.mlorenzo.estore.productsservice.queryapi;
 
-// Esta clase está vacía porque no se necesita ningún parámetro para realizar la consulta que obtiene todos los productos de la base de datos
+import lombok.Value;
 
-public class FindProductsQuery {
+// Consulta paginada de productos.
+// Admite 2 tipos de paginación: por número de página("page") y ordenación("sortBy"), o por cursor("afterProductId"). La paginación por cursor devuelve los productos cuyo id es mayor que el indicado,
+// ordenados por id, y su coste no depende de la posición de la página dentro del catálogo, por lo que es la que debe usarse para recorrer el catálogo completo.
 
+@Value
+public class FindProductsQuery {
+	private int page;
+	private int size;
+	private String sortBy;
+	private String afterProductId;
 }
@@ -0,0 +1,455 @@
+package com.mlorenzo.estore.productsservice.queryapi;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.axonframework.eventhandling.GlobalSequenceTrackingToken;
+import org.axonframework.eventhandling.TrackedEventMessage;
+import org.axonframework.eventhandling.TrackingToken;
+import org.axonframework.messaging.StreamableMessageSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import com.mlorenzo.estore.productsservice.core.events.ProductCreatedEvent;
+import com.mlorenzo.estore.productsservice.queryapi.rest.ProductRestModel;
+
+// Proyección de productos del lado del Query API guardada en memoria en lugar de en la tabla "products"(se activa con la propiedad "products.projection.store=memory").
+// Los productos se guardan por columnas en arrays de tipos primitivos(el precio en céntimos como long y la cantidad como int) y cada producto ocupa la misma posición en todas ellas.
+// Un índice hash de direccionamiento abierto sobre un array de int localiza la posición de un producto a partir de su id sin crear objetos, así que aplicar una reserva o una cancelación
+// sólo suma la variación a su cantidad. Para las consultas paginadas se mantienen además las posiciones de los productos ordenadas por id, por título y por precio(valores que no cambian).
+// Los productos nuevos se ordenan y se mezclan con las posiciones ya ordenadas de una sola vez en la siguiente consulta, por lo que una importación masiva no reordena nada hasta entonces.
+// Cada "products.projection.memory.snapshot-interval" se guarda una copia completa en disco junto con la posición del último evento aplicado. Al arrancar se carga esa copia y el procesador
+// de eventos "product-catalog"(ver clase InMemoryProductEventsHandler) continúa desde esa posición, así que no hay que recrear todos los eventos.
+// Nota: La proyección es propia de cada instancia de este microservicio y cada instancia procesa todos los eventos de productos.
+@Component
+@ConditionalOnProperty(name = "products.projection.store", havingValue = "memory")
+public class InMemoryProductCatalog {
+	private static final Logger LOGGER = LoggerFactory.getLogger(InMemoryProductCatalog.class);
+	private static final int SNAPSHOT_FORMAT_VERSION = 1;
+	private static final int NOT_FOUND = -1;
+	private static final int INITIAL_CAPACITY = 1024;
+
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	private final Path snapshotFile;
+	private final Duration snapshotInterval;
+	private final ScheduledExecutorService snapshotExecutor = Executors.newSingleThreadScheduledExecutor();
+
+	private String[] productIds = new String[INITIAL_CAPACITY];
+	private String[] titles = new String[INITIAL_CAPACITY];
+	private long[] priceCents = new long[INITIAL_CAPACITY];
+	private int[] quantities = new int[INITIAL_CAPACITY];
+	private int size;
+	// Índice hash: cada celda guarda la posición del producto más 1, o 0 si está libre. Se dimensiona para estar como mucho medio lleno
+	private int[] slots = new int[INITIAL_CAPACITY * 2];
+	// Posiciones ordenadas por id, por título y por precio(y, a igualdad de precio, por id). Sólo incluyen los productos anteriores a "sortedSize"
+	private int[] byProductId = new int[0];
+	private int[] byTitle = new int[0];
+	private int[] byPrice = new int[0];
+	private int sortedSize;
+	// Posición global en el Event Store del último evento aplicado y del último evento incluido en la copia en disco
+	private long lastEventPosition = -1;
+	private volatile long snapshotEventPosition = -1;
+
+	public InMemoryProductCatalog(@Value("${products.projection.memory.snapshot-file:../products-catalog.snapshot}") String snapshotFile,
+			@Value("${products.projection.memory.snapshot-interval:60s}") Duration snapshotInterval) {
+		this.snapshotFile = Paths.get(snapshotFile);
+		this.snapshotInterval = snapshotInterval;
+	}
+
+	@PostConstruct
+	public void load() throws IOException {
+		if(Files.exists(snapshotFile)) {
+			try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshotFile)))) {
+				if(in.readInt() != SNAPSHOT_FORMAT_VERSION)
+					throw new IOException("Unsupported product catalog snapshot format: " + snapshotFile);
+				long position = in.readLong();
+				int count = in.readInt();
+				for(int i = 0; i < count; i++)
+					add(in.readUTF(), in.readUTF(), in.readLong(), in.readInt());
+				lastEventPosition = position;
+				snapshotEventPosition = position;
+			}
+			LOGGER.info("Loaded {} products from the catalog snapshot at event position {}", size, lastEventPosition);
+		}
+		snapshotExecutor.scheduleWithFixedDelay(this::snapshotIfChanged, snapshotInterval.toMillis(), snapshotInterval.toMillis(), TimeUnit.MILLISECONDS);
+	}
+
+	// Token inicial del procesador de eventos "product-catalog": la posición de la copia cargada desde disco o, si no hay copia, el principio del Event Store
+	public TrackingToken initialToken(StreamableMessageSource<TrackedEventMessage<?>> messageSource) {
+		lock.readLock().lock();
+		try {
+			return lastEventPosition < 0 ? messageSource.createTailToken() : new GlobalSequenceTrackingToken(lastEventPosition);
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	// Aplica los cambios de un lote de eventos: primero los productos creados y después las variaciones de cantidad, igual que la proyección de la tabla "products"
+	public void apply(Collection<ProductCreatedEvent> createdProducts, Map<String, Integer> quantityDeltas, long eventPosition) {
+		lock.writeLock().lock();
+		try {
+			for(ProductCreatedEvent event : createdProducts)
+				if(indexOf(event.getProductId()) == NOT_FOUND)
+					add(event.getProductId(), event.getTitle(), toCents(event.getPrice()), event.getQuantity());
+			quantityDeltas.forEach((productId, delta) -> {
+				int index = indexOf(productId);
+				if(index != NOT_FOUND)
+					quantities[index] += delta;
+				else
+					LOGGER.warn("Ignoring a quantity change of the unknown product {}", productId);
+			});
+			lastEventPosition = Math.max(lastEventPosition, eventPosition);
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	// Vacía la proyección antes de una recreación de eventos(ver manejador @ResetHandler de la clase InMemoryProductEventsHandler)
+	public void clear() {
+		lock.writeLock().lock();
+		try {
+			Arrays.fill(productIds, 0, size, null);
+			Arrays.fill(titles, 0, size, null);
+			Arrays.fill(slots, 0);
+			byProductId = new int[0];
+			byTitle = new int[0];
+			byPrice = new int[0];
+			size = 0;
+			sortedSize = 0;
+			lastEventPosition = -1;
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return size;
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	// Devuelve una página de productos con la misma ordenación que la consulta sobre la tabla "products": por la propiedad indicada y, a igualdad, por id
+	public List<ProductRestModel> find(FindProductsQuery findProductsQuery) {
+		sortPendingProducts();
+		lock.readLock().lock();
+		try {
+			int pageSize = findProductsQuery.getSize();
+			if(findProductsQuery.getAfterProductId() != null) {
+				int from = firstProductIdGreaterThan(findProductsQuery.getAfterProductId());
+				return toRestModels(byProductId, from, Math.min(sortedSize, from + pageSize));
+			}
+			long from = (long) findProductsQuery.getPage() * pageSize;
+			if(from >= sortedSize)
+				return new ArrayList<>();
+			int to = (int) Math.min(sortedSize, from + pageSize);
+			switch(findProductsQuery.getSortBy()) {
+				case "title":
+					return toRestModels(byTitle, (int) from, to);
+				case "price":
+					return toRestModels(byPrice, (int) from, to);
+				case "quantity":
+					return toRestModels(lowestQuantities(to), (int) from, to);
+				default:
+					return toRestModels(byProductId, (int) from, to);
+			}
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@PreDestroy
+	public void shutDown() {
+		snapshotExecutor.shutdownNow();
+		snapshotIfChanged();
+	}
+
+	private void add(String productId, String title, long price, int quantity) {
+		if(size == productIds.length) {
+			int capacity = size * 2;
+			productIds = Arrays.copyOf(productIds, capacity);
+			titles = Arrays.copyOf(titles, capacity);
+			priceCents = Arrays.copyOf(priceCents, capacity);
+			quantities = Arrays.copyOf(quantities, capacity);
+			rehash(capacity * 2);
+		}
+		int index = size++;
+		productIds[index] = productId;
+		titles[index] = title;
+		priceCents[index] = price;
+		quantities[index] = quantity;
+		insertSlot(index);
+	}
+
+	private int indexOf(String productId) {
+		int mask = slots.length - 1;
+		for(int slot = hash(productId) & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+			int index = slots[slot] - 1;
+			if(productIds[index].equals(productId))
+				return index;
+		}
+		return NOT_FOUND;
+	}
+
+	private void insertSlot(int index) {
+		int mask = slots.length - 1;
+		int slot = hash(productIds[index]) & mask;
+		while(slots[slot] != 0)
+			slot = (slot + 1) & mask;
+		slots[slot] = index + 1;
+	}
+
+	private void rehash(int slotCount) {
+		slots = new int[slotCount];
+		for(int index = 0; index < size; index++)
+			insertSlot(index);
+	}
+
+	// Mezcla los hashes de los ids para que ids con hashes parecidos no se agrupen en celdas contiguas
+	private static int hash(String productId) {
+		int h = productId.hashCode() * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	// Para ordenar los productos nuevos hace falta el bloqueo exclusivo, así que sólo se pide si hay productos pendientes. Las consultas sólo ven los productos ya ordenados
+	private void sortPendingProducts() {
+		boolean pendingProducts;
+		lock.readLock().lock();
+		try {
+			pendingProducts = sortedSize < size;
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+		if(!pendingProducts)
+			return;
+		lock.writeLock().lock();
+		try {
+			if(sortedSize < size)
+				mergePendingProducts();
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private void mergePendingProducts() {
+		int[] pending = new int[size - sortedSize];
+		for(int i = 0; i < pending.length; i++)
+			pending[i] = sortedSize + i;
+		byProductId = merge(byProductId, pending, this::compareByProductId);
+		byTitle = merge(byTitle, pending, this::compareByTitle);
+		byPrice = merge(byPrice, pending, this::compareByPrice);
+		sortedSize = size;
+	}
+
+	// Ordena las posiciones nuevas y las mezcla con las ya ordenadas en un único recorrido
+	private static int[] merge(int[] sorted, int[] pending, IndexComparator comparator) {
+		int[] sortedPending = pending.clone();
+		mergeSort(sortedPending, pending.clone(), 0, pending.length, comparator);
+		int[] result = new int[sorted.length + sortedPending.length];
+		int i = 0, j = 0, k = 0;
+		while(i < sorted.length && j < sortedPending.length)
+			result[k++] = comparator.compare(sorted[i], sortedPending[j]) <= 0 ? sorted[i++] : sortedPending[j++];
+		while(i < sorted.length)
+			result[k++] = sorted[i++];
+		while(j < sortedPending.length)
+			result[k++] = sortedPending[j++];
+		return result;
+	}
+
+	// Ordenación por mezcla de posiciones sin crear objetos por elemento. "source" es una copia de "target" que se usa como espacio auxiliar
+	private static void mergeSort(int[] target, int[] source, int from, int to, IndexComparator comparator) {
+		if(to - from < 2)
+			return;
+		int middle = (from + to) >>> 1;
+		mergeSort(source, target, from, middle, comparator);
+		mergeSort(source, target, middle, to, comparator);
+		int i = from, j = middle;
+		for(int k = from; k < to; k++)
+			target[k] = j >= to || (i < middle && comparator.compare(source[i], source[j]) <= 0) ? source[i++] : source[j++];
+	}
+
+	private int firstProductIdGreaterThan(String productId) {
+		int low = 0, high = sortedSize;
+		while(low < high) {
+			int middle = (low + high) >>> 1;
+			if(productIds[byProductId[middle]].compareTo(productId) <= 0)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+		return low;
+	}
+
+	// La cantidad cambia con cada reserva, así que no se mantiene ordenada: se seleccionan los "count" productos con menos cantidad con un montículo de tamaño "count"
+	// y se ordenan sólo ésos
+	private int[] lowestQuantities(int count) {
+		int[] heap = new int[count];
+		int heapSize = 0;
+		for(int index = 0; index < sortedSize; index++) {
+			if(heapSize < count) {
+				heap[heapSize] = index;
+				siftUp(heap, heapSize++);
+			}
+			else if(compareByQuantity(index, heap[0]) < 0) {
+				heap[0] = index;
+				siftDown(heap, heapSize);
+			}
+		}
+		int[] result = Arrays.copyOf(heap, heapSize);
+		mergeSort(result, result.clone(), 0, heapSize, this::compareByQuantity);
+		return result;
+	}
+
+	// Montículo de máximos: la raíz es el producto con más cantidad de los seleccionados
+	private void siftUp(int[] heap, int position) {
+		while(position > 0) {
+			int parent = (position - 1) >>> 1;
+			if(compareByQuantity(heap[position], heap[parent]) <= 0)
+				return;
+			swap(heap, position, parent);
+			position = parent;
+		}
+	}
+
+	private void siftDown(int[] heap, int heapSize) {
+		int position = 0;
+		while(true) {
+			int largest = position;
+			int left = position * 2 + 1;
+			int right = left + 1;
+			if(left < heapSize && compareByQuantity(heap[left], heap[largest]) > 0)
+				largest = left;
+			if(right < heapSize && compareByQuantity(heap[right], heap[largest]) > 0)
+				largest = right;
+			if(largest == position)
+				return;
+			swap(heap, position, largest);
+			position = largest;
+		}
+	}
+
+	private static void swap(int[] array, int i, int j) {
+		int value = array[i];
+		array[i] = array[j];
+		array[j] = value;
+	}
+
+	private int compareByProductId(int a, int b) {
+		return productIds[a].compareTo(productIds[b]);
+	}
+
+	private int compareByTitle(int a, int b) {
+		int result = titles[a].compareTo(titles[b]);
+		return result != 0 ? result : compareByProductId(a, b);
+	}
+
+	private int compareByPrice(int a, int b) {
+		int result = Long.compare(priceCents[a], priceCents[b]);
+		return result != 0 ? result : compareByProductId(a, b);
+	}
+
+	private int compareByQuantity(int a, int b) {
+		int result = Integer.compare(quantities[a], quantities[b]);
+		return result != 0 ? result : compareByProductId(a, b);
+	}
+
+	private List<ProductRestModel> toRestModels(int[] sortedIndexes, int from, int to) {
+		List<ProductRestModel> products = new ArrayList<>(Math.max(0, to - from));
+		for(int i = from; i < to; i++) {
+			int index = sortedIndexes[i];
+			ProductRestModel productRestModel = new ProductRestModel();
+			productRestModel.setProductId(productIds[index]);
+			productRestModel.setTitle(titles[index]);
+			productRestModel.setPrice(BigDecimal.valueOf(priceCents[index], 2));
+			productRestModel.setQuantity(quantities[index]);
+			products.add(productRestModel);
+		}
+		return products;
+	}
+
+	// Igual que la columna "price" de la tabla "products", el precio se guarda con 2 decimales
+	private static long toCents(BigDecimal price) {
+		return price.setScale(2, RoundingMode.HALF_UP).unscaledValue().longValueExact();
+	}
+
+	// Copia las columnas con el bloqueo compartido(los eventos sólo esperan lo que dura la copia en memoria) y las escribe en un fichero temporal que después sustituye a la copia anterior
+	private void snapshotIfChanged() {
+		String[] productIdsCopy;
+		String[] titlesCopy;
+		long[] priceCentsCopy;
+		int[] quantitiesCopy;
+		long position;
+		lock.readLock().lock();
+		try {
+			if(lastEventPosition == snapshotEventPosition)
+				return;
+			productIdsCopy = Arrays.copyOf(productIds, size);
+			titlesCopy = Arrays.copyOf(titles, size);
+			priceCentsCopy = Arrays.copyOf(priceCents, size);
+			quantitiesCopy = Arrays.copyOf(quantities, size);
+			position = lastEventPosition;
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+		Path temporaryFile = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+		try {
+			try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporaryFile)))) {
+				out.writeInt(SNAPSHOT_FORMAT_VERSION);
+				out.writeLong(position);
+				out.writeInt(productIdsCopy.length);
+				for(int i = 0; i < productIdsCopy.length; i++) {
+					out.writeUTF(productIdsCopy[i]);
+					out.writeUTF(titlesCopy[i]);
+					out.writeLong(priceCentsCopy[i]);
+					out.writeInt(quantitiesCopy[i]);
+				}
+			}
+			Files.move(temporaryFile, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			snapshotEventPosition = position;
+			LOGGER.debug("Saved a catalog snapshot with {} products at event position {}", productIdsCopy.length, position);
+		}
+		catch(IOException ex) {
+			LOGGER.error("Could not save the product catalog snapshot: {}", ex.getMessage());
+		}
+	}
+
+	@FunctionalInterface
+	private interface IndexComparator {
+		int compare(int a, int b);
+	}
+}
@@ -0,0 +1,82 @@
+package com.mlorenzo.estore.productsservice.queryapi;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.axonframework.config.ProcessingGroup;
+import org.axonframework.eventhandling.EventHandler;
+import org.axonframework.eventhandling.ResetHandler;
+import org.axonframework.eventhandling.TrackingToken;
+import org.axonframework.messaging.unitofwork.CurrentUnitOfWork;
+import org.axonframework.messaging.unitofwork.UnitOfWork;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import com.mlorenzo.estore.core.events.ProductReservationCancelledEvent;
+import com.mlorenzo.estore.core.events.ProductReservedEvent;
+import com.mlorenzo.estore.productsservice.core.events.ProductCreatedEvent;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+// Manejador de eventos de la proyección de productos en memoria(ver clase InMemoryProductCatalog). Sustituye a la clase ProductEventsHandler con la propiedad "products.projection.store=memory".
+// Pertenece a su propio procesador de eventos de tipo Tracking("product-catalog"), con un único segmento y un almacén de tokens en memoria(ver método "configure" de la clase ProductsServiceApplication),
+// porque la posición desde la que continúa al arrancar es la de la copia en disco de la proyección y no la de la tabla de tokens.
+// Igual que la clase ProductEventsHandler, acumula los cambios de todo el lote de eventos y los aplica de una vez cuando se confirma la unidad de trabajo, así que si el lote falla y se reintenta,
+// sus cambios no se aplican 2 veces.
+@ProcessingGroup("product-catalog")
+@ConditionalOnProperty(name = "products.projection.store", havingValue = "memory")
+@RequiredArgsConstructor
+@Component
+public class InMemoryProductEventsHandler {
+	private static final String CATALOG_CHANGES_RESOURCE = InMemoryProductEventsHandler.class.getName() + ".catalogChanges";
+	
+	private final InMemoryProductCatalog productCatalog;
+	
+	// El argumento de entrada de tipo TrackingToken lo inyecta el framework Axon e indica la posición del evento en el Event Store
+	@EventHandler
+	public void on(ProductCreatedEvent event, TrackingToken trackingToken) {
+		catalogChanges(trackingToken).getCreatedProducts().add(event);
+	}
+	
+	@EventHandler
+	public void on(ProductReservedEvent event, TrackingToken trackingToken) {
+		catalogChanges(trackingToken).getQuantityDeltas().merge(event.getProductId(), -event.getQuantity(), Integer::sum);
+	}
+	
+	@EventHandler
+	public void on(ProductReservationCancelledEvent event, TrackingToken trackingToken) {
+		catalogChanges(trackingToken).getQuantityDeltas().merge(event.getProductId(), event.getQuantity(), Integer::sum);
+	}
+	
+	// La recreación de eventos de este procesador(ver clase EventsReplayController) parte de una proyección vacía
+	@ResetHandler
+	public void reset() {
+		productCatalog.clear();
+	}
+	
+	private CatalogChanges catalogChanges(TrackingToken trackingToken) {
+		UnitOfWork<?> unitOfWork = CurrentUnitOfWork.get().root();
+		CatalogChanges catalogChanges = unitOfWork.getOrComputeResource(CATALOG_CHANGES_RESOURCE, key -> {
+			CatalogChanges changes = new CatalogChanges();
+			unitOfWork.afterCommit(u -> productCatalog.apply(changes.getCreatedProducts(), changes.getQuantityDeltas(), changes.getLastEventPosition()));
+			return changes;
+		});
+		catalogChanges.setLastEventPosition(trackingToken.position().orElse(catalogChanges.getLastEventPosition()));
+		return catalogChanges;
+	}
+	
+	// Cambios de la proyección acumulados durante una unidad de trabajo
+	@Getter
+	private static class CatalogChanges {
+		private final List<ProductCreatedEvent> createdProducts = new ArrayList<>();
+		private final Map<String, Integer> quantityDeltas = new LinkedHashMap<>();
+		private long lastEventPosition = -1;
+		
+		void setLastEventPosition(long lastEventPosition) {
+			this.lastEventPosition = Math.max(this.lastEventPosition, lastEventPosition);
+		}
+	}
+}
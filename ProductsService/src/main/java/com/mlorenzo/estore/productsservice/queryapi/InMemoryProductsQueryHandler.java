@@ -0,0 +1,25 @@
+package com.mlorenzo.estore.productsservice.queryapi;
+
+import java.util.List;
+
+import org.axonframework.queryhandling.QueryHandler;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import com.mlorenzo.estore.productsservice.queryapi.rest.ProductRestModel;
+
+import lombok.RequiredArgsConstructor;
+
+// Manejador de Queries de la proyección de productos en memoria(ver clase InMemoryProductCatalog). Sustituye a la clase ProductsQueryHandler con la propiedad "products.projection.store=memory".
+// Las consultas no acceden a la base de datos ni a la caché de productos(ver clase ProductCache): la página se resuelve directamente sobre la proyección.
+@ConditionalOnProperty(name = "products.projection.store", havingValue = "memory")
+@RequiredArgsConstructor
+@Component
+public class InMemoryProductsQueryHandler {
+	private final InMemoryProductCatalog productCatalog;
+	
+	@QueryHandler
+	public List<ProductRestModel> findProducts(FindProductsQuery findProductsQuery) {
+		return productCatalog.find(findProductsQuery);
+	}
+}
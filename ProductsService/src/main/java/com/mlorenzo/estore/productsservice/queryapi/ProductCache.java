@@ -0,0 +1,93 @@
+package com.mlorenzo.estore.productsservice.queryapi;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.mlorenzo.estore.productsservice.queryapi.rest.ProductRestModel;
+
+// Caché en memoria de productos del lado del Query API situada delante de la tabla de productos.
+// Usa la librería Caffeine, cuya política de desalojo(W-TinyLFU) mantiene en la caché los productos más consultados cuando se alcanza el tamaño máximo.
+// Las entradas no caducan por tiempo: la clase ProductEventsHandler mantiene la caché coherente con el flujo de eventos(ver métodos "put" e "invalidate").
+// Una carga desde la tabla puede leer un producto antes de que se confirme un cambio y guardarlo en la caché después de que ese cambio lo haya invalidado. Para que ese valor desactualizado
+// no se quede en la caché, cada invalidación incrementa el contador de invalidaciones de los productos afectados y, después de guardar los productos cargados, se vuelven a eliminar los productos
+// cuyo contador ha cambiado durante la carga(ver método "getAll").
+// Nota: Con la propiedad "products.cache.maximum-size" a 0 la caché no guarda ningún producto y todas las consultas van a la base de datos.
+@Component
+public class ProductCache {
+	// Número de contadores de invalidaciones. Cada producto usa el contador que le corresponde según el hash de su id, así que la memoria no depende del número de productos
+	private static final int INVALIDATION_STRIPES = 1024;
+	
+	private final Cache<String, ProductRestModel> cache;
+	private final AtomicLongArray invalidations = new AtomicLongArray(INVALIDATION_STRIPES);
+	
+	public ProductCache(@Value("${products.cache.maximum-size:100000}") long maximumSize) {
+		this.cache = Caffeine.newBuilder()
+				.maximumSize(maximumSize)
+				.recordStats()
+				.build();
+	}
+	
+	// Devuelve los productos con los ids indicados en el mismo orden. Los productos que no están en la caché se cargan todos juntos mediante la función "loader" y se guardan en la caché
+	public List<ProductRestModel> getAll(List<String> productIds, Function<Collection<String>, Map<String, ProductRestModel>> loader) {
+		Map<String, ProductRestModel> products = new HashMap<>(cache.getAllPresent(productIds));
+		List<String> missingProductIds = productIds.stream()
+				.filter(productId -> !products.containsKey(productId))
+				.distinct()
+				.collect(Collectors.toList());
+		if(!missingProductIds.isEmpty()) {
+			long[] invalidationsBeforeLoad = new long[missingProductIds.size()];
+			for(int i = 0; i < invalidationsBeforeLoad.length; i++)
+				invalidationsBeforeLoad[i] = invalidations.get(stripe(missingProductIds.get(i)));
+			Map<String, ProductRestModel> loadedProducts = loader.apply(missingProductIds);
+			cache.putAll(loadedProducts);
+			// Si alguno de los productos cargados se ha invalidado durante la carga, puede que se haya leído antes del cambio, así que se elimina de la caché(pero se devuelve en esta consulta)
+			for(int i = 0; i < invalidationsBeforeLoad.length; i++) {
+				String productId = missingProductIds.get(i);
+				if(invalidations.get(stripe(productId)) != invalidationsBeforeLoad[i])
+					cache.invalidate(productId);
+			}
+			products.putAll(loadedProducts);
+		}
+		return productIds.stream()
+				.map(products::get)
+				.filter(Objects::nonNull)
+				.collect(Collectors.toList());
+	}
+	
+	public void put(ProductRestModel product) {
+		cache.put(product.getProductId(), product);
+	}
+	
+	// El contador de invalidaciones se incrementa antes de eliminar los productos de la caché para que las cargas en curso detecten la invalidación(ver método "getAll")
+	public void invalidate(Collection<String> productIds) {
+		productIds.forEach(productId -> invalidations.incrementAndGet(stripe(productId)));
+		cache.invalidateAll(productIds);
+	}
+	
+	public void invalidateAll() {
+		for(int i = 0; i < INVALIDATION_STRIPES; i++)
+			invalidations.incrementAndGet(i);
+		cache.invalidateAll();
+	}
+	
+	public ProductCacheStats stats() {
+		CacheStats stats = cache.stats();
+		return new ProductCacheStats(cache.estimatedSize(), stats.hitCount(), stats.missCount(), stats.hitRate(), stats.evictionCount());
+	}
+	
+	private static int stripe(String productId) {
+		return productId.hashCode() & (INVALIDATION_STRIPES - 1);
+	}
+}
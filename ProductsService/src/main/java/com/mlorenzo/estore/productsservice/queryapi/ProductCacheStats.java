@@ -0,0 +1,12 @@
+package com.mlorenzo.estore.productsservice.queryapi;
+
+import lombok.Value;
+
+@Value
+public class ProductCacheStats {
+	private long size;
+	private long hitCount;
+	private long missCount;
+	private double hitRate;
+	private long evictionCount;
+}
@@ -1,11 +1,22 @@
 package com.mlorenzo.estore.productsservice.queryapi;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 import org.axonframework.eventhandling.EventHandler;
+import org.axonframework.eventhandling.ReplayStatus;
 import org.axonframework.eventhandling.ResetHandler;
 import org.axonframework.messaging.interceptors.ExceptionHandler;
+import org.axonframework.messaging.unitofwork.CurrentUnitOfWork;
+import org.axonframework.messaging.unitofwork.UnitOfWork;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.BeanUtils;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.stereotype.Component;
 
 import com.mlorenzo.estore.core.events.ProductReservationCancelledEvent;
@@ -13,19 +24,27 @@ import com.mlorenzo.estore.core.events.ProductReservedEvent;
 import com.mlorenzo.estore.productsservice.core.events.ProductCreatedEvent;
 import com.mlorenzo.estore.productsservice.queryapi.data.ProductEntity;
 import com.mlorenzo.estore.productsservice.queryapi.data.ProductRepository;
+import com.mlorenzo.estore.productsservice.queryapi.rest.ProductRestModel;
 
+import lombok.Getter;
 import lombok.RequiredArgsConstructor;
 
 // Nota: En caso de usar el procesador de eventos Tracking(procesador por defecto si no se indica otro), por defecto, 2 o más manejadores de eventos de tipo @EventHandler se agrupan para ejecutarse en un mismo hilo si pertenecen a la misma clase(mismo paquete)
 // o a clases distintas que pertenecen al mismo paquete, es decir, se agrupan por nombre de paquete. Si queremos que un conjunto de manejadores de eventos, que pertenecen a clases de distintos paquetes, se agrupen en un mismo grupo para que se ejecuten en un
 // mismo hilo, tenemos que usar la anotación @ProcessingGroup a nivel de clase como en este caso.
 
+// Proyección de productos en la tabla "products"(por defecto). Con la propiedad "products.projection.store=memory" se usa en su lugar la proyección en memoria(ver clase InMemoryProductCatalog)
+@ConditionalOnProperty(name = "products.projection.store", havingValue = "jpa", matchIfMissing = true)
 @RequiredArgsConstructor
 @Component
 public class ProductEventsHandler {
 	private static final Logger LOGGER = LoggerFactory.getLogger(ProductEventsHandler.class);
+	private static final String PROJECTION_CHANGES_RESOURCE = ProductEventsHandler.class.getName() + ".projectionChanges";
 	
 	private final ProductRepository productRepository;
+	private final JdbcTemplate jdbcTemplate;
+	private final ProductProjectionRebuilder productProjectionRebuilder;
+	private final ProductCache productCache;
 	
 	// Nota: El manejo de excepciones en un Event Handler es diferente al manejo de excepciones en un Command Handler, es decir, si queremos realizar el manejo de excepciones en un sitio centralizado(ProductServiceErrorHandling) como es nuestro caso,
 	// desde un Event Handler, como éste, tenemos que ir propagando las excepciones usando, para ello, el propagador de excepciones de Axon PropagatingErrorHandler o usando un propagador personalizado(ProductServiceEventsErrorHandler) como es nuestro caso
@@ -44,39 +63,99 @@ public class ProductEventsHandler {
 	}
 	
 	// Anotación para que este método sea un manejador de eventos(En este caso, de tipo ProductCreatedEvent)
+	// El argumento de entrada de tipo ReplayStatus lo inyecta el framework Axon e indica si el evento se está procesando durante una recreación de eventos
 	@EventHandler
-	public void on(ProductCreatedEvent event) {
+	public void on(ProductCreatedEvent event, ReplayStatus replayStatus) {
+		// Se obtienen antes de escribir en la tabla de productos para que la unidad de trabajo no escriba mientras se sustituye la tabla(ver método "projectionChanges")
+		ProjectionChanges projectionChanges = projectionChanges();
+		// Durante la recreación de eventos, los productos se escriben únicamente en la tabla sombra(ver clase ProductProjectionRebuilder)
+		if(replayStatus.isReplay()) {
+			projectionChanges.addRebuildProduct(event);
+			return;
+		}
 		ProductEntity productEntity = new ProductEntity();
 		BeanUtils.copyProperties(event, productEntity);
 		productRepository.save(productEntity);
+		projectionChanges.addLiveProduct(event);
+		// Si hay una reconstrucción en curso y este segmento ya terminó la recreación, los nuevos eventos también se escriben en la tabla sombra para que no se pierdan al sustituir la tabla de productos
+		if(productProjectionRebuilder.isActive())
+			projectionChanges.addRebuildProduct(event);
 		// En este punto, la transacción que se encarga de persistir los datos en la tabla de Lookup y en la tabla de productos aún sigue en el aire y, debido a esta excepción, Axon realizará un rollback sin que llegue a completarse esa transacción
 		// Se comenta porque es para pruebas
 		//if(true) throw new RuntimeException("Forcing exception in the Event Handler class");
 	}
 	
-	// Anotación para que este método sea un manejador de eventos(En este caso, de tipo ProductCreatedEvent)
+	// Anotación para que este método sea un manejador de eventos(En este caso, de tipo ProductReservedEvent)
 	@EventHandler
-	public void on(ProductReservedEvent event) {
-		productRepository.findById(event.getProductId())
-			.ifPresent(productEntity -> {
-				LOGGER.debug("ProductReservedEvent: Current product quantity {}", productEntity.getQuantity());
-				productEntity.setQuantity(productEntity.getQuantity() - event.getQuantity());
-				productRepository.save(productEntity);
-				LOGGER.debug("ProductReservedEvent: New product quantity {}", productEntity.getQuantity());
-			});
+	public void on(ProductReservedEvent event, ReplayStatus replayStatus) {
+		addQuantityDelta(event.getProductId(), -event.getQuantity(), replayStatus);
 		LOGGER.info("ProductReservedEvent is called for productId: {} and orderId: {}", event.getProductId(), event.getOrderId());
 	}
 	
 	// Anotación para que este método sea un manejador de eventos(En este caso, de tipo ProductReservationCancelledEvent)
 	@EventHandler
-	public void on(ProductReservationCancelledEvent event) {
-		productRepository.findById(event.getProductId())
-			.ifPresent(productEntity -> {
-				LOGGER.debug("ProductReservationCancelledEvent: Current product quantity {}", productEntity.getQuantity());
-				productEntity.setQuantity(productEntity.getQuantity() + event.getQuantity());
-				productRepository.save(productEntity);
-				LOGGER.debug("ProductReservationCancelledEvent: New product quantity {}", productEntity.getQuantity());
-			});
+	public void on(ProductReservationCancelledEvent event, ReplayStatus replayStatus) {
+		addQuantityDelta(event.getProductId(), event.getQuantity(), replayStatus);
+	}
+	
+	private void addQuantityDelta(String productId, int delta, ReplayStatus replayStatus) {
+		ProjectionChanges projectionChanges = projectionChanges();
+		if(!replayStatus.isReplay())
+			projectionChanges.addLiveQuantityDelta(productId, delta);
+		if(replayStatus.isReplay() || productProjectionRebuilder.isActive())
+			projectionChanges.addRebuildQuantityDelta(productId, delta);
+	}
+	
+	// En vez de leer y guardar el producto por cada evento, acumulamos en memoria los cambios de la proyección durante la unidad de trabajo.
+	// El procesador de eventos de tipo Tracking procesa los eventos por lotes(ver propiedad "batch-size" del archivo de propiedades) dentro de una misma unidad de trabajo y transacción,
+	// así que todos los cambios de un lote se escriben juntos, con una única sentencia por producto, justo antes de confirmar la transacción.
+	// La unidad de trabajo no escribe en las tablas de productos mientras la clase ProductProjectionRebuilder sustituye la tabla de productos por la tabla sombra, ni la sustitución empieza hasta que termina la unidad de trabajo.
+	private ProjectionChanges projectionChanges() {
+		UnitOfWork<?> unitOfWork = CurrentUnitOfWork.get().root();
+		return unitOfWork.getOrComputeResource(PROJECTION_CHANGES_RESOURCE, key -> {
+			productProjectionRebuilder.lockProjectionWrites(unitOfWork);
+			ProjectionChanges projectionChanges = new ProjectionChanges();
+			unitOfWork.onPrepareCommit(u -> flush(projectionChanges));
+			unitOfWork.afterCommit(u -> updateCache(projectionChanges));
+			return projectionChanges;
+		});
+	}
+	
+	private void flush(ProjectionChanges projectionChanges) {
+		Map<String, Integer> liveQuantityDeltas = projectionChanges.getLiveQuantityDeltas();
+		if(!liveQuantityDeltas.isEmpty()) {
+			// Escribimos primero los productos creados en este mismo lote mediante JPA para que las sentencias UPDATE los encuentren en la tabla
+			productRepository.flush();
+			jdbcTemplate.batchUpdate("UPDATE products SET quantity = quantity + ? WHERE product_id = ?", liveQuantityDeltas.entrySet(), liveQuantityDeltas.size(),
+					(preparedStatement, quantityDelta) -> {
+						preparedStatement.setInt(1, quantityDelta.getValue());
+						preparedStatement.setString(2, quantityDelta.getKey());
+					});
+			LOGGER.debug("Flushed quantity changes for {} products", liveQuantityDeltas.size());
+		}
+		if(projectionChanges.getRebuildEvents() > 0)
+			productProjectionRebuilder.write(projectionChanges.getRebuildProducts(), projectionChanges.getRebuildQuantityDeltas(), projectionChanges.getRebuildEvents());
+	}
+	
+	// Mantenemos la caché de productos coherente con la tabla una vez confirmada la transacción: los productos creados se añaden a la caché y los productos cuya cantidad ha cambiado
+	// se eliminan de ella para que la siguiente consulta los lea de nuevo de la tabla. No aplicamos las variaciones de cantidad directamente sobre la caché porque un producto que se cargue en la caché
+	// entre la escritura en la tabla y este punto ya incluiría esas variaciones.
+	// Los cambios de la recreación de eventos no afectan a la caché porque se escriben en la tabla sombra(ver método "complete" de la clase ProductProjectionRebuilder).
+	private void updateCache(ProjectionChanges projectionChanges) {
+		projectionChanges.getLiveProducts().forEach(event -> {
+			if(!projectionChanges.getLiveQuantityDeltas().containsKey(event.getProductId()))
+				productCache.put(toRestModel(event));
+		});
+		productCache.invalidate(projectionChanges.getLiveQuantityDeltas().keySet());
+	}
+	
+	private static ProductRestModel toRestModel(ProductCreatedEvent event) {
+		ProductRestModel productRestModel = new ProductRestModel();
+		productRestModel.setProductId(event.getProductId());
+		productRestModel.setTitle(event.getTitle());
+		productRestModel.setPrice(event.getPrice());
+		productRestModel.setQuantity(event.getQuantity());
+		return productRestModel;
 	}
 	
 	// Anotación para que este método se ejecute justo antes de que comience la recreación de eventos asociados a un determinado Tracking Event Processor
@@ -85,8 +164,41 @@ public class ProductEventsHandler {
 	// Tracking Event Processor. Si queremos excluir de la recreación a alguno de estos manejadores de eventos, tenemos que anotar a sus métodos con la anotación @DisallowReplay.
 	// En este caso en concreto, limpiamos la tabla de Productos de la base de datos para que se recreé de nuevo de forma automática a partir
 	// de los eventos almacenados en el Event Store asociados al procesador de eventos de tipo Tracking del grupo "com.mlorenzo.estore.productsservice.queryapi".
+	// Ahora, en vez de vaciar la tabla de Productos, preparamos una tabla sombra donde se reconstruye la proyección mientras la tabla de Productos sigue atendiendo las consultas(ver clase ProductProjectionRebuilder).
 	@ResetHandler
 	public void reset() {
-		productRepository.deleteAll();
+		productProjectionRebuilder.start();
+	}
+	
+	// Cambios de la proyección acumulados durante una unidad de trabajo
+	@Getter
+	private static class ProjectionChanges {
+		private final List<ProductCreatedEvent> liveProducts = new ArrayList<>();
+		private final Map<String, Integer> liveQuantityDeltas = new LinkedHashMap<>();
+		private final Map<String, ProductCreatedEvent> rebuildProducts = new LinkedHashMap<>();
+		private final Map<String, Integer> rebuildQuantityDeltas = new LinkedHashMap<>();
+		private int rebuildEvents;
+		
+		void addLiveProduct(ProductCreatedEvent event) {
+			liveProducts.add(event);
+		}
+		
+		void addLiveQuantityDelta(String productId, int delta) {
+			liveQuantityDeltas.merge(productId, delta, Integer::sum);
+		}
+		
+		void addRebuildProduct(ProductCreatedEvent event) {
+			rebuildProducts.put(event.getProductId(), event);
+			rebuildEvents++;
+		}
+		
+		void addRebuildQuantityDelta(String productId, int delta) {
+			rebuildQuantityDeltas.merge(productId, delta, Integer::sum);
+			rebuildEvents++;
+		}
+		
+		Collection<ProductCreatedEvent> getRebuildProducts() {
+			return rebuildProducts.values();
+		}
 	}
 }
@@ -0,0 +1,220 @@
+package com.mlorenzo.estore.productsservice.queryapi;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.axonframework.config.EventProcessingConfiguration;
+import org.axonframework.eventhandling.EventTrackerStatus;
+import org.axonframework.eventhandling.ReplayToken;
+import org.axonframework.eventhandling.TrackingEventProcessor;
+import org.axonframework.messaging.unitofwork.UnitOfWork;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.mlorenzo.estore.productsservice.core.events.ProductCreatedEvent;
+
+// Componente que reconstruye la tabla de productos del lado del Query API en una tabla sombra(products_rebuild) durante la recreación de eventos.
+// Mientras dura la recreación, la tabla "products" no se vacía y sigue atendiendo las consultas FindProductsQuery. Los eventos recreados se escriben en la tabla sombra mediante
+// sentencias JDBC por lotes y, cuando todos los segmentos del procesador de eventos han terminado la recreación, el contenido de la tabla sombra sustituye al de la tabla "products"
+// en una única transacción.
+// El estado de la reconstrucción se guarda en la tabla "products_rebuild_state", que se actualiza en las mismas transacciones que la tabla sombra. Los tokens del procesador de eventos también se guardan
+// en la base de datos, así que, si el microservicio se reinicia durante la recreación, el procesador continúa recreando los eventos desde su último token y la reconstrucción continúa con la tabla sombra
+// tal y como quedó. Si no hay ninguna reconstrucción en curso al arrancar, se elimina la tabla sombra que haya podido quedar.
+// La sustitución espera a que los tokens de todos los segmentos del procesador de eventos en el Token Store hayan terminado la recreación(ver método "allSegmentsReplayed"), aunque los procese otra instancia.
+// Nota: El progreso y el número de eventos recreados se siguen desde la instancia en la que se inició la recreación, por lo que están pensados para un despliegue con una única instancia del procesador de eventos.
+@Component
+public class ProductProjectionRebuilder {
+	private static final Logger LOGGER = LoggerFactory.getLogger(ProductProjectionRebuilder.class);
+	// Procesador de eventos de la clase ProductEventsHandler(Su nombre es el nombre de su paquete)
+	private static final String PROCESSOR_NAME = ProductEventsHandler.class.getPackage().getName();
+
+	private final JdbcTemplate jdbcTemplate;
+	private final TransactionTemplate transactionTemplate;
+	private final ProductCache productCache;
+	private final ObjectProvider<EventProcessingConfiguration> eventProcessingConfiguration;
+	private final ScheduledExecutorService monitorExecutor = Executors.newSingleThreadScheduledExecutor();
+	private final AtomicLong replayedEvents = new AtomicLong();
+	// Las unidades de trabajo del procesador de eventos que escriben en las tablas de productos mantienen el bloqueo de lectura hasta que terminan y la sustitución de la tabla "products"
+	// mantiene el bloqueo de escritura, así que ningún evento se escribe en la tabla "products" o en la tabla sombra mientras se sustituye la tabla
+	private final ReadWriteLock swapLock = new ReentrantReadWriteLock();
+
+	private volatile boolean active;
+	private volatile long startTime;
+	private volatile long endTime;
+	private ScheduledFuture<?> monitor;
+
+	public ProductProjectionRebuilder(JdbcTemplate jdbcTemplate, TransactionTemplate transactionTemplate, ProductCache productCache,
+			ObjectProvider<EventProcessingConfiguration> eventProcessingConfiguration) {
+		this.jdbcTemplate = jdbcTemplate;
+		this.transactionTemplate = transactionTemplate;
+		this.productCache = productCache;
+		this.eventProcessingConfiguration = eventProcessingConfiguration;
+	}
+
+	// Se ejecuta antes de que arranquen los procesadores de eventos: continúa la reconstrucción que estuviera en curso al pararse el microservicio o elimina la tabla sombra que haya podido quedar
+	@PostConstruct
+	public synchronized void recover() {
+		jdbcTemplate.execute("CREATE TABLE IF NOT EXISTS products_rebuild_state (id INTEGER PRIMARY KEY, active BOOLEAN NOT NULL, started_at BIGINT NOT NULL, replayed_events BIGINT NOT NULL)");
+		List<Map<String, Object>> state = jdbcTemplate.queryForList("SELECT active, started_at, replayed_events FROM products_rebuild_state WHERE id = 1 AND active = TRUE");
+		if(state.isEmpty()) {
+			jdbcTemplate.execute("DROP TABLE IF EXISTS products_rebuild");
+			return;
+		}
+		replayedEvents.set(((Number) state.get(0).get("replayed_events")).longValue());
+		startTime = ((Number) state.get(0).get("started_at")).longValue();
+		endTime = 0;
+		active = true;
+		startMonitor();
+		LOGGER.info("Resuming the rebuild of the products projection into the shadow table after {} replayed events", replayedEvents.get());
+	}
+
+	// Prepara una tabla sombra vacía y sigue el progreso de la recreación para sustituir la tabla "products" cuando todos los segmentos del procesador de eventos la terminen.
+	// Se invoca desde el manejador @ResetHandler de la clase ProductEventsHandler
+	public synchronized void start() {
+		jdbcTemplate.execute("CREATE TABLE IF NOT EXISTS products_rebuild (product_id VARCHAR(255) PRIMARY KEY, price DECIMAL(19,2), quantity INTEGER, title VARCHAR(255))");
+		jdbcTemplate.execute("TRUNCATE TABLE products_rebuild");
+		replayedEvents.set(0);
+		startTime = System.currentTimeMillis();
+		endTime = 0;
+		jdbcTemplate.update("MERGE INTO products_rebuild_state (id, active, started_at, replayed_events) KEY (id) VALUES (1, TRUE, ?, 0)", startTime);
+		active = true;
+		startMonitor();
+		LOGGER.info("Started rebuilding the products projection into the shadow table");
+	}
+
+	public boolean isActive() {
+		return active;
+	}
+
+	// Mantiene el bloqueo de lectura de la sustitución de la tabla "products" hasta que termina la unidad de trabajo indicada(ver atributo "swapLock").
+	// Se invoca desde la clase ProductEventsHandler antes de la primera escritura de cada unidad de trabajo
+	public void lockProjectionWrites(UnitOfWork<?> unitOfWork) {
+		swapLock.readLock().lock();
+		unitOfWork.onCleanup(u -> swapLock.readLock().unlock());
+	}
+
+	// Escribe en la tabla sombra los productos creados y las variaciones de cantidad de un lote de eventos mediante sentencias JDBC por lotes.
+	// Se ejecuta dentro de la transacción de la unidad de trabajo del procesador de eventos.
+	public void write(Collection<ProductCreatedEvent> createdProducts, Map<String, Integer> quantityDeltas, int eventCount) {
+		if(!createdProducts.isEmpty())
+			jdbcTemplate.batchUpdate("MERGE INTO products_rebuild (product_id, price, quantity, title) KEY (product_id) VALUES (?, ?, ?, ?)", createdProducts, createdProducts.size(),
+					(preparedStatement, event) -> {
+						preparedStatement.setString(1, event.getProductId());
+						preparedStatement.setBigDecimal(2, event.getPrice());
+						preparedStatement.setInt(3, event.getQuantity());
+						preparedStatement.setString(4, event.getTitle());
+					});
+		if(!quantityDeltas.isEmpty())
+			jdbcTemplate.batchUpdate("UPDATE products_rebuild SET quantity = quantity + ? WHERE product_id = ?", quantityDeltas.entrySet(), quantityDeltas.size(),
+					(preparedStatement, quantityDelta) -> {
+						preparedStatement.setInt(1, quantityDelta.getValue());
+						preparedStatement.setString(2, quantityDelta.getKey());
+					});
+		jdbcTemplate.update("UPDATE products_rebuild_state SET replayed_events = replayed_events + ? WHERE id = 1", eventCount);
+		replayedEvents.addAndGet(eventCount);
+	}
+
+	// Progreso de la recreación: porcentaje del segmento más atrasado respecto a la posición en la que se inició la recreación y eventos procesados por segundo
+	public ProjectionRebuildProgress progress() {
+		long replayed = replayedEvents.get();
+		long elapsedMillis = startTime == 0 ? 0 : (endTime == 0 ? System.currentTimeMillis() : endTime) - startTime;
+		double eventsPerSecond = elapsedMillis == 0 ? 0 : replayed * 1000.0 / elapsedMillis;
+		double percentage = active ? 0 : (startTime == 0 ? 0 : 100);
+		Optional<TrackingEventProcessor> processor = trackingEventProcessor();
+		if(active && processor.isPresent()) {
+			List<Double> segmentPercentages = new ArrayList<>();
+			for(EventTrackerStatus status : processor.get().processingStatus().values()) {
+				if(!status.isReplaying())
+					segmentPercentages.add(100.0);
+				else if(status.getCurrentPosition().isPresent() && status.getResetPosition().isPresent() && status.getResetPosition().getAsLong() > 0)
+					segmentPercentages.add(Math.min(100.0, status.getCurrentPosition().getAsLong() * 100.0 / status.getResetPosition().getAsLong()));
+				else
+					segmentPercentages.add(0.0);
+			}
+			percentage = segmentPercentages.stream().mapToDouble(Double::doubleValue).min().orElse(0);
+		}
+		return new ProjectionRebuildProgress(active, percentage, replayed, eventsPerSecond);
+	}
+
+	private synchronized void startMonitor() {
+		if(monitor != null)
+			monitor.cancel(false);
+		monitor = monitorExecutor.scheduleWithFixedDelay(this::completeIfReplayFinished, 1, 1, TimeUnit.SECONDS);
+	}
+
+	private Optional<TrackingEventProcessor> trackingEventProcessor() {
+		EventProcessingConfiguration configuration = eventProcessingConfiguration.getIfAvailable();
+		return configuration == null ? Optional.empty() : configuration.eventProcessor(PROCESSOR_NAME, TrackingEventProcessor.class);
+	}
+
+	private void completeIfReplayFinished() {
+		Optional<TrackingEventProcessor> processor = trackingEventProcessor();
+		if(!active || !processor.isPresent())
+			return;
+		if(processor.get().processingStatus().values().stream().anyMatch(EventTrackerStatus::isReplaying) || !allSegmentsReplayed())
+			return;
+		try {
+			complete();
+		}
+		catch(Exception ex) {
+			LOGGER.error("Could not swap the rebuilt products projection: {}", ex.getMessage());
+		}
+	}
+
+	// El estado del procesador de eventos sólo incluye los segmentos que esta instancia tiene reclamados en este momento, así que se comprueban los tokens de todos los segmentos en el Token Store:
+	// un segmento sigue recreando eventos mientras su token sea de tipo ReplayToken, tanto si lo procesa esta instancia como otra o si no lo procesa ninguna. El token de un segmento se guarda en la misma
+	// transacción que sus escrituras en la tabla sombra, así que, cuando ningún token es de tipo ReplayToken, la tabla sombra ya contiene todos los eventos recreados
+	private boolean allSegmentsReplayed() {
+		List<String> tokenTypes = jdbcTemplate.queryForList("SELECT token_type FROM token_entry WHERE processor_name = ?", String.class, PROCESSOR_NAME);
+		return !tokenTypes.isEmpty() && tokenTypes.stream().noneMatch(ReplayToken.class.getName()::equals);
+	}
+
+	// Sustituye el contenido de la tabla "products" por el de la tabla sombra en una única transacción para que las consultas nunca vean la tabla a medio reconstruir.
+	// Los eventos en vivo que se procesan durante la sustitución esperan a que termine(ver atributo "swapLock") y, después, ya sólo se escriben en la tabla "products"
+	private synchronized void complete() {
+		if(!active)
+			return;
+		swapLock.writeLock().lock();
+		try {
+			transactionTemplate.executeWithoutResult(status -> {
+				jdbcTemplate.update("DELETE FROM products");
+				jdbcTemplate.update("INSERT INTO products (product_id, price, quantity, title) SELECT product_id, price, quantity, title FROM products_rebuild");
+				jdbcTemplate.update("UPDATE products_rebuild_state SET active = FALSE WHERE id = 1");
+			});
+			// Los productos de la caché pueden no coincidir con la proyección reconstruida, así que se vacía por completo
+			productCache.invalidateAll();
+			active = false;
+		}
+		finally {
+			swapLock.writeLock().unlock();
+		}
+		endTime = System.currentTimeMillis();
+		// Si el microservicio se para antes de vaciar la tabla sombra, se elimina al arrancar(ver método "recover")
+		jdbcTemplate.execute("TRUNCATE TABLE products_rebuild");
+		if(monitor != null)
+			monitor.cancel(false);
+		LOGGER.info("Products projection rebuilt with {} replayed events", replayedEvents.get());
+	}
+
+	@PreDestroy
+	public void shutDown() {
+		monitorExecutor.shutdownNow();
+	}
+}
@@ -1,34 +1,62 @@
 package com.mlorenzo.estore.productsservice.queryapi;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 import org.axonframework.queryhandling.QueryHandler;
-import org.springframework.beans.BeanUtils;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Sort;
 import org.springframework.stereotype.Component;
 
+import com.mlorenzo.estore.productsservice.queryapi.data.ProductEntity;
 import com.mlorenzo.estore.productsservice.queryapi.data.ProductRepository;
 import com.mlorenzo.estore.productsservice.queryapi.rest.ProductRestModel;
 
 import lombok.RequiredArgsConstructor;
 
+// Proyección de productos en la tabla "products"(por defecto). Con la propiedad "products.projection.store=memory" se usa en su lugar la proyección en memoria(ver clase InMemoryProductCatalog)
+@ConditionalOnProperty(name = "products.projection.store", havingValue = "jpa", matchIfMissing = true)
 @RequiredArgsConstructor
 @Component
 public class ProductsQueryHandler {
 	private final ProductRepository productRepository;
+	private final ProductCache productCache;
 	
 	// Nota sobre los manejadores de Queries.
 	// Estos manejadores consumen Queries, en función de su tipo, que son despachados o publicados en el Query Bus por el Query Gateway.
 	
 	// Anotación para que este método sea un manejador de Queries(En este caso, de tipo FindProductsQuery)
+	// En vez de cargar toda la tabla de productos, sólo se carga la página solicitada.
+	// La consulta de la página sólo obtiene los ids de los productos y los productos se resuelven a través de la caché(ver clase ProductCache). Los que no están en la caché se cargan todos juntos con una única consulta
 	@QueryHandler
 	public List<ProductRestModel> findProducts(FindProductsQuery findProductsQuery) {
-		return productRepository.findAll().stream()
-				.map(productEntity -> {
-					ProductRestModel productRestModel = new ProductRestModel();
-					BeanUtils.copyProperties(productEntity, productRestModel);
-					return productRestModel;
-				})
-				.collect(Collectors.toList());
+		List<String> productIds;
+		if(findProductsQuery.getAfterProductId() != null)
+			productIds = productRepository.findProductIdsGreaterThan(findProductsQuery.getAfterProductId(),
+					PageRequest.of(0, findProductsQuery.getSize(), Sort.by("productId")));
+		else
+			productIds = productRepository.findProductIds(PageRequest.of(findProductsQuery.getPage(), findProductsQuery.getSize(),
+					Sort.by(findProductsQuery.getSortBy()).and(Sort.by("productId"))));
+		return productCache.getAll(productIds, this::loadProducts);
+	}
+	
+	private Map<String, ProductRestModel> loadProducts(Collection<String> productIds) {
+		return productRepository.findAllById(productIds).stream()
+				.map(ProductsQueryHandler::toRestModel)
+				.collect(Collectors.toMap(ProductRestModel::getProductId, Function.identity()));
+	}
+	
+	// Copiamos las propiedades de forma explícita en vez de usar BeanUtils.copyProperties, que usa reflexión por cada producto
+	private static ProductRestModel toRestModel(ProductEntity productEntity) {
+		ProductRestModel productRestModel = new ProductRestModel();
+		productRestModel.setProductId(productEntity.getProductId());
+		productRestModel.setTitle(productEntity.getTitle());
+		productRestModel.setPrice(productEntity.getPrice());
+		productRestModel.setQuantity(productEntity.getQuantity());
+		return productRestModel;
 	}
 }
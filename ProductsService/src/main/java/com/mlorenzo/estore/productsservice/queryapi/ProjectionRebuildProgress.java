@@ -0,0 +1,11 @@
+package com.mlorenzo.estore.productsservice.queryapi;
+
+import lombok.Value;
+
+@Value
+public class ProjectionRebuildProgress {
+	private boolean replaying;
+	private double percentage;
+	private long replayedEvents;
+	private double eventsPerSecond;
+}
@@ -1,7 +1,19 @@
 package com.mlorenzo.estore.productsservice.queryapi.data;
 
+import java.util.List;
+
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 
 public interface ProductRepository extends JpaRepository<ProductEntity, String> {
-
+	List<ProductEntity> findByProductIdGreaterThan(String productId, Pageable pageable);
+	
+	// Consultas que sólo devuelven los ids de los productos de una página para resolver después los productos a través de la caché(ver clase ProductCache)
+	@Query("select p.productId from ProductEntity p")
+	List<String> findProductIds(Pageable pageable);
+	
+	@Query("select p.productId from ProductEntity p where p.productId > :productId")
+	List<String> findProductIdsGreaterThan(@Param("productId") String productId, Pageable pageable);
 }
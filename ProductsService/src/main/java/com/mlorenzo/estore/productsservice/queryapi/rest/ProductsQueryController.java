@@ -1,22 +1,37 @@
 package com.mlorenzo.estore.productsservice.queryapi.rest;
 
 import java.util.List;
+import java.util.Set;
+
+import javax.validation.constraints.Max;
+import javax.validation.constraints.Min;
 
 import org.axonframework.messaging.responsetypes.ResponseTypes;
 import org.axonframework.queryhandling.QueryGateway;
 import org.springframework.core.env.Environment;
+import org.springframework.http.MediaType;
+import org.springframework.validation.annotation.Validated;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
+import com.mlorenzo.estore.productsservice.core.errorhandler.InvalidQueryParameterException;
 import com.mlorenzo.estore.productsservice.queryapi.FindProductsQuery;
 
 import lombok.RequiredArgsConstructor;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 
+@Validated
 @RequiredArgsConstructor
 @RestController
 @RequestMapping("products")
 public class ProductsQueryController {
+	private static final int MAX_PAGE_SIZE = 1000;
+	private static final int STREAM_CHUNK_SIZE = 500;
+	private static final Set<String> SORTABLE_PROPERTIES = Set.of("productId", "title", "price", "quantity");
+	
 	private final QueryGateway queryGateway;
 	private final Environment env;
 	
@@ -25,13 +40,36 @@ public class ProductsQueryController {
 		return "Working on port: " + env.getProperty("local.server.port");
 	}
 	
+	// Devuelve una página de productos. Si se indica el parámetro "after"(id del último producto de la página anterior), se usa la paginación por cursor en vez de la paginación por número de página.
+	// La paginación por cursor siempre ordena por el id del producto, así que no se puede combinar con otra ordenación ni con un número de página
 	@GetMapping
-	public List<ProductRestModel> getProducts() {
-		FindProductsQuery findProductsQuery = new FindProductsQuery();
+	public List<ProductRestModel> getProducts(@RequestParam(defaultValue = "0") @Min(0) int page,
+			@RequestParam(defaultValue = "100") @Min(1) @Max(MAX_PAGE_SIZE) int size,
+			@RequestParam(defaultValue = "productId") String sort,
+			@RequestParam(required = false) String after) {
+		if(!SORTABLE_PROPERTIES.contains(sort))
+			throw new InvalidQueryParameterException(String.format("Products cannot be sorted by %s", sort));
+		if(after != null && (!"productId".equals(sort) || page != 0))
+			throw new InvalidQueryParameterException("The after parameter can only be used with the default sort(productId) and page(0)");
+		FindProductsQuery findProductsQuery = new FindProductsQuery(page, size, sort, after);
 		// Método que hace que el Query Gateway despache o envíe una query(En este caso de tipo FindProductsQuery) al Query Bus
 		List<ProductRestModel> products = queryGateway
 				.query(findProductsQuery, ResponseTypes.multipleInstancesOf(ProductRestModel.class))
 				.join();
 		return products;
 	}
+	
+	// Devuelve el catálogo completo como un flujo NDJSON(un producto JSON por línea). Los productos se consultan por bloques usando la paginación por cursor y cada bloque se envía al cliente
+	// en cuanto se obtiene, por lo que el catálogo nunca se carga completo en memoria
+	@GetMapping(value = "stream", produces = MediaType.APPLICATION_NDJSON_VALUE)
+	public Flux<ProductRestModel> streamProducts() {
+		return findProductsChunk(null)
+				.expand(products -> products.size() < STREAM_CHUNK_SIZE ? Mono.empty() : findProductsChunk(products.get(products.size() - 1).getProductId()))
+				.flatMapIterable(products -> products);
+	}
+	
+	private Mono<List<ProductRestModel>> findProductsChunk(String afterProductId) {
+		FindProductsQuery findProductsQuery = new FindProductsQuery(0, STREAM_CHUNK_SIZE, "productId", afterProductId);
+		return Mono.fromFuture(queryGateway.query(findProductsQuery, ResponseTypes.multipleInstancesOf(ProductRestModel.class)));
+	}
 }
@@ -2,8 +2,16 @@ package com.mlorenzo.estore.usersservice;
 
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.context.annotation.Import;
+
+import com.mlorenzo.estore.core.eventstore.FileEventStoreConfiguration;
+import com.mlorenzo.estore.core.monitoring.MetricsConfiguration;
+import com.mlorenzo.estore.core.serialization.CompactSerializerConfiguration;
 
 @SpringBootApplication
+// Los mensajes, eventos y snapshots se serializan con el serializador binario CompactSerializer del módulo "core". El Event Store embebido en ficheros se activa con la propiedad "estore.event-store.type=file".
+// Las métricas propias se añaden a las del framework Axon con la configuración MetricsConfiguration
+@Import({CompactSerializerConfiguration.class, FileEventStoreConfiguration.class, MetricsConfiguration.class})
 public class UsersServiceApplication {
 
 	public static void main(String[] args) {
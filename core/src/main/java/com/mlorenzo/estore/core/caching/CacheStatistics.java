@@ -0,0 +1,12 @@
+package com.mlorenzo.estore.core.caching;
+
+import lombok.Value;
+
+@Value
+public class CacheStatistics {
+	private long size;
+	private long hitCount;
+	private long missCount;
+	private double hitRate;
+	private long evictionCount;
+}
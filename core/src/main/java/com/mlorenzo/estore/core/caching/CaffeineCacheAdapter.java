@@ -0,0 +1,80 @@
+package com.mlorenzo.estore.core.caching;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.axonframework.common.Registration;
+import org.axonframework.common.caching.Cache;
+
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+
+// Adaptador que permite usar una caché Caffeine allí donde el framework Axon acepta una caché(Por ejemplo, para las instancias SAGA o los Aggregates).
+// El framework Axon sólo incluye una caché de referencias débiles(WeakReferenceCache), cuyo tamaño depende del recolector de basura, y adaptadores para JCache y EhCache.
+// Con esta caché, el número máximo de entradas es configurable y, al alcanzarse, se desalojan las entradas menos usadas(política W-TinyLFU).
+// Además, la caché registra sus aciertos, fallos y desalojos para poder consultar su eficacia(ver método "stats").
+public class CaffeineCacheAdapter implements Cache {
+	private final com.github.benmanes.caffeine.cache.Cache<Object, Object> cache;
+	private final List<EntryListener> listeners = new CopyOnWriteArrayList<>();
+	
+	public CaffeineCacheAdapter(long maximumSize) {
+		this.cache = Caffeine.newBuilder()
+				.maximumSize(maximumSize)
+				.recordStats()
+				.removalListener((key, value, cause) -> {
+					if(cause.wasEvicted())
+						listeners.forEach(listener -> listener.onEntryExpired(key));
+				})
+				.build();
+	}
+	
+	@SuppressWarnings("unchecked")
+	@Override
+	public <K, V> V get(K key) {
+		Object value = cache.getIfPresent(key);
+		if(value != null)
+			listeners.forEach(listener -> listener.onEntryRead(key, value));
+		return (V) value;
+	}
+	
+	@Override
+	public void put(Object key, Object value) {
+		Object previous = cache.asMap().put(key, value);
+		if(previous == null)
+			listeners.forEach(listener -> listener.onEntryCreated(key, value));
+		else
+			listeners.forEach(listener -> listener.onEntryUpdated(key, value));
+	}
+	
+	@Override
+	public boolean putIfAbsent(Object key, Object value) {
+		boolean created = cache.asMap().putIfAbsent(key, value) == null;
+		if(created)
+			listeners.forEach(listener -> listener.onEntryCreated(key, value));
+		return created;
+	}
+	
+	@Override
+	public boolean remove(Object key) {
+		boolean removed = cache.asMap().remove(key) != null;
+		if(removed)
+			listeners.forEach(listener -> listener.onEntryRemoved(key));
+		return removed;
+	}
+	
+	@Override
+	public boolean containsKey(Object key) {
+		return cache.asMap().containsKey(key);
+	}
+	
+	@Override
+	public Registration registerCacheEntryListener(EntryListener cacheEntryListener) {
+		listeners.add(cacheEntryListener);
+		return () -> listeners.remove(cacheEntryListener);
+	}
+	
+	public CacheStatistics stats() {
+		CacheStats stats = cache.stats();
+		return new CacheStatistics(cache.estimatedSize(), stats.hitCount(), stats.missCount(), stats.hitRate(), stats.evictionCount());
+	}
+}
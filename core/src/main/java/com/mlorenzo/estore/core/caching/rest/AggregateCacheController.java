@@ -0,0 +1,25 @@
+package com.mlorenzo.estore.core.caching.rest;
+
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import com.mlorenzo.estore.core.caching.CacheStatistics;
+import com.mlorenzo.estore.core.caching.CaffeineCacheAdapter;
+
+import lombok.AllArgsConstructor;
+
+// Endpoint de gestión de la caché de instancias de Aggregates compartido por los microservicios. Cada microservicio lo define como bean de Spring desde su clase principal
+// con la caché de su Aggregate(Por ejemplo, "productAggregateCache" u "orderAggregateCache")
+@AllArgsConstructor
+@RestController
+@RequestMapping("/management/aggregate-cache")
+public class AggregateCacheController {
+	private final CaffeineCacheAdapter aggregateCache;
+	
+	// Devuelve el tamaño, los aciertos, los fallos y los desalojos de la caché de instancias del Aggregate en esta instancia
+	@GetMapping("/stats")
+	public CacheStatistics getStats() {
+		return aggregateCache.stats();
+	}
+}
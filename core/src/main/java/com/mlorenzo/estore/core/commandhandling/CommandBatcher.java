@@ -0,0 +1,163 @@
+package com.mlorenzo.estore.core.commandhandling;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.axonframework.messaging.unitofwork.CurrentUnitOfWork;
+import org.axonframework.messaging.unitofwork.UnitOfWork;
+
+// Agrupa en lotes los Commands que llegan a la vez para un mismo Aggregate y los ejecuta en una única unidad de trabajo, de forma que el Aggregate se carga y se bloquea una sola vez
+// y todos los eventos del lote se guardan en el Event Store en una única transacción.
+// Cada manejador de Commands encola su tarea con el método "execute". Si no hay ningún lote en curso para ese Aggregate, su hilo pasa a ser el "líder": ejecuta su propia tarea y, a continuación,
+// las tareas que se han encolado mientras tanto, todas en la unidad de trabajo de su Command. El resto de hilos espera el resultado de su tarea, igual que esperaría por el bloqueo del Aggregate.
+// Cuando la unidad de trabajo del líder termina, si quedan tareas encoladas, el hilo de la primera de ellas pasa a ser el nuevo líder. Con "window" mayor que 0, el líder espera además ese tiempo,
+// después de ejecutar su tarea, a que lleguen más tareas.
+// Las tareas se ejecutan siempre en la unidad de trabajo de un Command, así que no necesitan transacciones ni conexiones a la base de datos adicionales.
+// Cada tarea recibe su propio resultado: si una tarea lanza una excepción, el resto del lote continúa y sólo esa tarea falla. Por eso, las tareas deben validar antes de aplicar eventos
+// (igual que los manejadores de Commands de los Aggregates), ya que los eventos aplicados por una tarea que falla después se guardarían con el resto del lote. La tarea del líder se ejecuta
+// la primera y, si falla, el lote no llega a empezar. Si la unidad de trabajo del lote se deshace(Por ejemplo, por un error del Event Store), fallan todas las tareas del lote.
+// Nota: Los datos de correlación(Por ejemplo, "traceId" o "correlationId") de todos los eventos del lote son los del Command del líder.
+public class CommandBatcher {
+	private final int maxBatchSize;
+	private final long windowNanos;
+	private final ConcurrentMap<Object, Batch> batches = new ConcurrentHashMap<>();
+	private final AtomicLong executedBatches = new AtomicLong();
+	private final AtomicLong executedTasks = new AtomicLong();
+	private final AtomicLong failedTasks = new AtomicLong();
+	private final AtomicLong rolledBackBatches = new AtomicLong();
+	private final AtomicInteger largestBatch = new AtomicInteger();
+
+	public CommandBatcher(int maxBatchSize, Duration window) {
+		this.maxBatchSize = maxBatchSize;
+		this.windowNanos = window.toNanos();
+	}
+
+	// Ejecuta la tarea en el lote del Aggregate indicado. Debe invocarse desde un manejador de Commands y antes de cargar el Aggregate. Lanza la excepción de la propia tarea o,
+	// si el lote se deshace, la excepción que lo deshizo
+	public void execute(Object aggregateIdentifier, Runnable task) {
+		Batch batch = batches.computeIfAbsent(aggregateIdentifier, key -> new Batch());
+		Task pendingTask = new Task(task);
+		batch.tasks.add(pendingTask);
+		if(batch.leading.compareAndSet(false, true)) {
+			if(batch.tasks.remove(pendingTask)) {
+				lead(aggregateIdentifier, batch, pendingTask);
+				return;
+			}
+			// Otro hilo ya ha recogido esta tarea, así que se cede el liderazgo a la siguiente tarea encolada
+			handOver(aggregateIdentifier, batch);
+		}
+		// Otro hilo es el líder o ya ha recogido esta tarea en su lote
+		if(await(pendingTask) == Outcome.LEAD)
+			lead(aggregateIdentifier, batch, pendingTask);
+	}
+
+	public CommandBatcherStats stats() {
+		long batchCount = executedBatches.get();
+		return new CommandBatcherStats(batchCount, executedTasks.get(), failedTasks.get(), rolledBackBatches.get(),
+				batchCount == 0 ? 0 : (double) executedTasks.get() / batchCount, largestBatch.get());
+	}
+
+	private void lead(Object aggregateIdentifier, Batch batch, Task ownTask) {
+		UnitOfWork<?> unitOfWork = CurrentUnitOfWork.get();
+		List<Task> succeeded = new ArrayList<>();
+		unitOfWork.onCleanup(uow -> handOver(aggregateIdentifier, batch));
+		// La tarea del líder se ejecuta fuera del bloque try para que, si falla, su excepción deshaga la unidad de trabajo antes de recoger otras tareas
+		ownTask.task.run();
+		if(windowNanos > 0 && batch.tasks.size() < maxBatchSize - 1)
+			sleep();
+		List<Task> tasks = new ArrayList<>();
+		Task task;
+		while(tasks.size() < maxBatchSize - 1 && (task = batch.tasks.poll()) != null)
+			tasks.add(task);
+		for(Task followerTask : tasks) {
+			try {
+				followerTask.task.run();
+				succeeded.add(followerTask);
+			}
+			catch(RuntimeException ex) {
+				failedTasks.incrementAndGet();
+				followerTask.result.completeExceptionally(ex);
+			}
+		}
+		unitOfWork.afterCommit(uow -> succeeded.forEach(followerTask -> followerTask.result.complete(Outcome.DONE)));
+		unitOfWork.onRollback(uow -> {
+			rolledBackBatches.incrementAndGet();
+			Throwable cause = uow.getExecutionResult() != null && uow.getExecutionResult().isExceptionResult()
+					? uow.getExecutionResult().getExceptionResult() : new IllegalStateException("The command batch was rolled back");
+			succeeded.forEach(followerTask -> followerTask.result.completeExceptionally(cause));
+		});
+		executedBatches.incrementAndGet();
+		executedTasks.addAndGet(tasks.size() + 1);
+		largestBatch.accumulateAndGet(tasks.size() + 1, Math::max);
+	}
+
+	// Al terminar la unidad de trabajo del líder, el primer hilo que sigue esperando pasa a ser el nuevo líder. Si no queda ninguno, el lote se elimina del mapa. Una tarea que se encole a la vez
+	// se encuentra el lote sin líder y toma ella misma el relevo
+	private void handOver(Object aggregateIdentifier, Batch batch) {
+		batch.leading.set(false);
+		while(!batch.tasks.isEmpty() && batch.leading.compareAndSet(false, true)) {
+			Task next = batch.tasks.poll();
+			if(next != null && next.result.complete(Outcome.LEAD))
+				return;
+			batch.leading.set(false);
+		}
+		if(batch.tasks.isEmpty())
+			batches.remove(aggregateIdentifier, batch);
+	}
+
+	// Espera el resultado de la tarea aunque el hilo se interrumpa: cuando el líder ya ha recogido la tarea, su resultado depende sólo del lote, y si el resultado es LEAD, este hilo tiene
+	// que ejecutar el lote para que el liderazgo no se pierda. El método "join" mantiene la marca de interrupción del hilo, así que la interrupción sigue visible después
+	private Outcome await(Task task) {
+		try {
+			return task.result.join();
+		}
+		catch(CompletionException ex) {
+			if(ex.getCause() instanceof RuntimeException)
+				throw (RuntimeException) ex.getCause();
+			if(ex.getCause() instanceof Error)
+				throw (Error) ex.getCause();
+			throw new IllegalStateException(ex.getCause());
+		}
+	}
+
+	private void sleep() {
+		try {
+			TimeUnit.NANOSECONDS.sleep(windowNanos);
+		}
+		catch(InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private enum Outcome {
+		// La tarea se ha ejecutado en el lote de otro hilo y el lote se ha confirmado
+		DONE,
+		// El hilo de la tarea pasa a ser el líder y debe ejecutarla él mismo
+		LEAD
+	}
+
+	private static class Batch {
+		private final Queue<Task> tasks = new ConcurrentLinkedQueue<>();
+		private final AtomicBoolean leading = new AtomicBoolean();
+	}
+
+	private static class Task {
+		private final Runnable task;
+		private final CompletableFuture<Outcome> result = new CompletableFuture<>();
+
+		Task(Runnable task) {
+			this.task = task;
+		}
+	}
+}
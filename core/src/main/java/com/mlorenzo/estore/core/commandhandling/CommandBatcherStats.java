@@ -0,0 +1,16 @@
+package com.mlorenzo.estore.core.commandhandling;
+
+import lombok.Value;
+
+@Value
+public class CommandBatcherStats {
+	// Lotes ejecutados y tareas(Commands) ejecutadas en ellos
+	private long batches;
+	private long tasks;
+	// Tareas que han fallado individualmente sin afectar al resto de su lote
+	private long failedTasks;
+	// Lotes deshechos por completo(Por ejemplo, por un error del Event Store)
+	private long rolledBackBatches;
+	private double averageBatchSize;
+	private int largestBatch;
+}
@@ -0,0 +1,56 @@
+package com.mlorenzo.estore.core.commandhandling;
+
+import java.util.Collections;
+
+import org.axonframework.commandhandling.DuplicateCommandHandlerResolver;
+import org.axonframework.common.transaction.TransactionManager;
+import org.axonframework.disruptor.commandhandling.DisruptorCommandBus;
+import org.axonframework.messaging.interceptors.CorrelationDataInterceptor;
+import org.axonframework.spring.config.AxonConfiguration;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import com.mlorenzo.estore.core.caching.CaffeineCacheAdapter;
+
+// Configuración compartida por los microservicios con Aggregates(se importa con la anotación @Import desde la clase principal de cada uno de ellos) que, con la propiedad
+// "estore.command-bus.type=disruptor", sustituye el Command Bus local por defecto del framework Axon(SimpleCommandBus) por un DisruptorCommandBus.
+// Con el SimpleCommandBus, cada Command se ejecuta de principio a fin en el hilo que lo recibe: carga del Aggregate desde el Event Store, bloqueo, ejecución del manejador y escritura de los eventos.
+// El DisruptorCommandBus encola los Commands en un buffer circular y los procesa en 2 etapas con hilos propios: los hilos "invoker" ejecutan los manejadores de Commands sobre los Aggregates, que se mantienen
+// en memoria entre Commands(no se recrean desde el Event Store ni se bloquean), y los hilos "publisher" guardan y publican los eventos en la transacción de cada Command. Los Commands de un mismo Aggregate
+// van siempre al mismo hilo "invoker", así que se ejecutan en orden sin bloqueos.
+// El bean se registra con el calificador "localSegment", así que, con Axon Server, el Command Bus de Axon Server sigue enrutando los Commands entre instancias y entrega a este bus los que le corresponden.
+// Importante:
+// - Cada Aggregate tiene que usar un repositorio creado por este bus(ver método "createRepository"), definido como bean de Spring con el nombre "<nombreAggregate>Repository" sólo con esta propiedad.
+//   Con ese repositorio, el framework Axon no usa la caché ni el Snapshot Trigger de la anotación @Aggregate.
+// - Un Command sólo puede cargar un Aggregate. Los manejadores de Commands que cargan varios Aggregates en un mismo Command fallan con este bus.
+// - Las instancias de los Aggregates en memoria son propias de cada instancia del microservicio. Si otra instancia modifica un Aggregate(Por ejemplo, porque han cambiado las instancias que reciben sus Commands),
+//   el error de concurrencia al guardar sus eventos hace que el bus descarte la instancia en memoria y vuelva a ejecutar el Command.
+@Configuration
+@ConditionalOnProperty(name = "estore.command-bus.type", havingValue = "disruptor")
+public class DisruptorCommandBusConfiguration {
+
+	@Qualifier("localSegment")
+	@Bean(destroyMethod = "stop")
+	public DisruptorCommandBus commandBus(TransactionManager transactionManager, AxonConfiguration configuration, DuplicateCommandHandlerResolver duplicateCommandHandlerResolver,
+			@Value("${estore.command-bus.disruptor.buffer-size:4096}") int bufferSize,
+			@Value("${estore.command-bus.disruptor.invoker-threads:2}") int invokerThreads,
+			@Value("${estore.command-bus.disruptor.publisher-threads:1}") int publisherThreads,
+			@Value("${estore.command-bus.disruptor.cache-size:10000}") long cacheSize) {
+		return DisruptorCommandBus.builder()
+				.transactionManager(transactionManager)
+				.messageMonitor(configuration.messageMonitor(DisruptorCommandBus.class, "commandBus"))
+				.duplicateCommandHandlerResolver(duplicateCommandHandlerResolver)
+				// Igual que el SimpleCommandBus por defecto, los eventos aplicados heredan los datos de correlación del Command(Por ejemplo, "traceId" o "correlationId")
+				.invokerInterceptors(Collections.singletonList(new CorrelationDataInterceptor<>(configuration.correlationDataProviders())))
+				// Tiene que ser una potencia de 2
+				.bufferSize(bufferSize)
+				.invokerThreadCount(invokerThreads)
+				.publisherThreadCount(publisherThreads)
+				// Además de las instancias que siguen referenciadas, el bus mantiene en esta caché las instancias de los Aggregates usadas más recientemente
+				.cache(new CaffeineCacheAdapter(cacheSize))
+				.build();
+	}
+}
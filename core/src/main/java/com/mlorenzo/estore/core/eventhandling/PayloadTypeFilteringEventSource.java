@@ -0,0 +1,166 @@
+package com.mlorenzo.estore.core.eventhandling;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+import org.axonframework.common.stream.BlockingStream;
+import org.axonframework.config.EventProcessingConfiguration;
+import org.axonframework.eventhandling.AbstractEventProcessor;
+import org.axonframework.eventhandling.TrackedEventMessage;
+import org.axonframework.eventhandling.TrackingToken;
+import org.axonframework.messaging.StreamableMessageSource;
+
+// Fuente de eventos para los procesadores de eventos de tipo Tracking que descarta los eventos cuyo tipo no maneja el procesador antes de deserializarlos o de aplicarles los upcasters.
+// Los procesadores sólo deserializan los eventos que manejan, pero reciben todos los eventos del Event Store. Con Axon Server, el procesador indica al flujo de eventos(método "blacklist") los tipos que
+// no maneja y el servidor deja de enviárselos, pero el Event Store embebido(ver clase FileEventStoreConfiguration) ignora esa indicación y, además, durante las recreaciones de las proyecciones
+// el framework Axon(versión 4.4) ni siquiera la envía, así que el procesador lee y descarta uno a uno todos los eventos del Event Store.
+// Este flujo pregunta a los manejadores del procesador(método "canHandleType") si manejan cada tipo de evento la primera vez que aparece y descarta los eventos de los tipos que no manejan usando sólo
+// el tipo del evento serializado, así que no se deserializan ni se convierten a la representación intermedia de los upcasters. Las indicaciones del procesador se siguen enviando al Event Store.
+// Se asocia a un procesador con la propiedad "axon.eventhandling.processors.<nombre_procesador>.source=<nombre_del_bean>" o al registrar el procesador mediante la clase EventProcessingConfigurer.
+// Nota: El procesador sólo guarda su token con los eventos que recibe, así que, mientras se descartan eventos, su token se queda en el último evento recibido. Para que el token avance hasta el final del Event Store
+// (y, Por ejemplo, no se vuelvan a leer todos los eventos descartados después de reiniciar el microservicio), cuando se descarta el último evento disponible o "maxSkippedInARow" eventos seguidos,
+// ese evento se entrega igualmente al procesador, que lo ignora sin deserializarlo.
+public class PayloadTypeFilteringEventSource implements StreamableMessageSource<TrackedEventMessage<?>> {
+	private final StreamableMessageSource<TrackedEventMessage<?>> delegate;
+	private final Predicate<Class<?>> handledPayloadTypes;
+	private final int maxSkippedInARow;
+
+	public PayloadTypeFilteringEventSource(StreamableMessageSource<TrackedEventMessage<?>> delegate, Predicate<Class<?>> handledPayloadTypes, int maxSkippedInARow) {
+		this.delegate = delegate;
+		this.handledPayloadTypes = handledPayloadTypes;
+		this.maxSkippedInARow = maxSkippedInARow;
+	}
+
+	// Crea la fuente de eventos del procesador indicado, que sólo recibe los tipos de eventos que manejan sus manejadores.
+	// El procesador se busca la primera vez que aparece cada tipo de evento, ya que la fuente de eventos se crea antes que el propio procesador. Si no existe, no se descarta ningún evento
+	public static PayloadTypeFilteringEventSource forProcessor(StreamableMessageSource<TrackedEventMessage<?>> delegate, Supplier<EventProcessingConfiguration> eventProcessingConfiguration,
+			String processorName, int maxSkippedInARow) {
+		return new PayloadTypeFilteringEventSource(delegate, payloadType -> eventProcessingConfiguration.get().eventProcessor(processorName, AbstractEventProcessor.class)
+				.map(processor -> processor.eventHandlerInvoker().canHandleType(payloadType))
+				.orElse(true), maxSkippedInARow);
+	}
+
+	@Override
+	public BlockingStream<TrackedEventMessage<?>> openStream(TrackingToken trackingToken) {
+		return new FilteringStream(delegate.openStream(trackingToken), handledPayloadTypes, maxSkippedInARow);
+	}
+
+	@Override
+	public TrackingToken createTailToken() {
+		return delegate.createTailToken();
+	}
+
+	@Override
+	public TrackingToken createHeadToken() {
+		return delegate.createHeadToken();
+	}
+
+	@Override
+	public TrackingToken createTokenAt(Instant dateTime) {
+		return delegate.createTokenAt(dateTime);
+	}
+
+	@Override
+	public TrackingToken createTokenSince(Duration duration) {
+		return delegate.createTokenSince(duration);
+	}
+
+	// Cada procesador usa su flujo desde un único hilo por segmento, así que el estado del flujo no necesita sincronización
+	private static class FilteringStream implements BlockingStream<TrackedEventMessage<?>> {
+		private final BlockingStream<TrackedEventMessage<?>> delegate;
+		private final Predicate<Class<?>> handledPayloadTypes;
+		private final int maxSkippedInARow;
+		// Resultado de la consulta a los manejadores del procesador para cada tipo de evento
+		private final Map<Class<?>, Boolean> skippedPayloadTypes = new HashMap<>();
+		// Evento descartado que se entrega al procesador para que su token avance
+		private TrackedEventMessage<?> pending;
+		private int skippedInARow;
+
+		FilteringStream(BlockingStream<TrackedEventMessage<?>> delegate, Predicate<Class<?>> handledPayloadTypes, int maxSkippedInARow) {
+			this.delegate = delegate;
+			this.handledPayloadTypes = handledPayloadTypes;
+			this.maxSkippedInARow = maxSkippedInARow;
+		}
+
+		@Override
+		public Optional<TrackedEventMessage<?>> peek() {
+			skipAvailable();
+			return pending != null ? Optional.of(pending) : delegate.peek();
+		}
+
+		@Override
+		public boolean hasNextAvailable(int timeout, TimeUnit unit) throws InterruptedException {
+			long deadline = System.nanoTime() + unit.toNanos(timeout);
+			do {
+				skipAvailable();
+				if(pending != null || delegate.peek().isPresent())
+					return true;
+			}
+			while(delegate.hasNextAvailable((int) Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())), TimeUnit.MILLISECONDS));
+			return false;
+		}
+
+		@Override
+		public TrackedEventMessage<?> nextAvailable() throws InterruptedException {
+			skipAvailable();
+			if(pending != null) {
+				TrackedEventMessage<?> message = pending;
+				pending = null;
+				return message;
+			}
+			TrackedEventMessage<?> message = delegate.nextAvailable();
+			while(isSkipped(message) && !passThrough()) {
+				message = delegate.nextAvailable();
+			}
+			skippedInARow = 0;
+			return message;
+		}
+
+		@Override
+		public void blacklist(TrackedEventMessage<?> trackedEventMessage) {
+			delegate.blacklist(trackedEventMessage);
+		}
+
+		@Override
+		public void close() {
+			delegate.close();
+		}
+
+		// Descarta, sin esperar, los eventos ya disponibles de los tipos indicados por el procesador
+		private void skipAvailable() {
+			while(pending == null) {
+				Optional<TrackedEventMessage<?>> next = delegate.peek();
+				if(!next.isPresent() || !isSkipped(next.get()))
+					return;
+				TrackedEventMessage<?> message;
+				try {
+					message = delegate.nextAvailable();
+				}
+				catch(InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+				if(passThrough()) {
+					pending = message;
+					skippedInARow = 0;
+				}
+			}
+		}
+
+		// Indica si el evento descartado que se acaba de leer debe entregarse igualmente al procesador
+		private boolean passThrough() {
+			return ++skippedInARow >= maxSkippedInARow || !delegate.peek().isPresent();
+		}
+
+		// El tipo del payload se obtiene del tipo del evento serializado, sin deserializarlo
+		private boolean isSkipped(TrackedEventMessage<?> message) {
+			return skippedPayloadTypes.computeIfAbsent(message.getPayloadType(), payloadType -> !handledPayloadTypes.test(payloadType));
+		}
+	}
+}
@@ -0,0 +1,43 @@
+package com.mlorenzo.estore.core.eventhandling;
+
+import java.beans.PropertyDescriptor;
+import java.lang.reflect.Method;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.axonframework.eventhandling.EventMessage;
+import org.axonframework.eventhandling.async.SequencingPolicy;
+import org.axonframework.eventhandling.async.SequentialPerAggregatePolicy;
+import org.springframework.beans.BeanUtils;
+import org.springframework.util.ReflectionUtils;
+
+// Política de secuenciación de eventos que usa el valor de una propiedad del evento(Por ejemplo, "orderId" o "productId") como identificador de secuencia.
+// Cuando un procesador de eventos de tipo Tracking trabaja con varios segmentos e hilos, los eventos con el mismo identificador de secuencia se procesan siempre en el mismo segmento y en orden,
+// mientras que los eventos con identificadores distintos pueden procesarse en paralelo.
+// Si el evento no tiene esa propiedad, se usa la política por defecto del framework Axon, que secuencia por el identificador del Aggregate que publicó el evento.
+public class PropertySequencingPolicy implements SequencingPolicy<EventMessage<?>> {
+	private final String propertyName;
+	// Caché de los métodos "getter" de la propiedad por tipo de evento para no tener que resolverlos por reflexión en cada evento
+	private final ConcurrentMap<Class<?>, Optional<Method>> readMethods = new ConcurrentHashMap<>();
+	
+	public PropertySequencingPolicy(String propertyName) {
+		this.propertyName = propertyName;
+	}
+
+	@Override
+	public Object getSequenceIdentifierFor(EventMessage<?> event) {
+		Optional<Method> readMethod = readMethods.computeIfAbsent(event.getPayloadType(), this::findReadMethod);
+		if(readMethod.isPresent()) {
+			Object sequenceIdentifier = ReflectionUtils.invokeMethod(readMethod.get(), event.getPayload());
+			if(sequenceIdentifier != null)
+				return sequenceIdentifier;
+		}
+		return SequentialPerAggregatePolicy.instance().getSequenceIdentifierFor(event);
+	}
+	
+	private Optional<Method> findReadMethod(Class<?> payloadType) {
+		PropertyDescriptor propertyDescriptor = BeanUtils.getPropertyDescriptor(payloadType, propertyName);
+		return Optional.ofNullable(propertyDescriptor).map(PropertyDescriptor::getReadMethod);
+	}
+}
@@ -0,0 +1,11 @@
+package com.mlorenzo.estore.core.eventhandling.rest;
+
+import lombok.Value;
+
+@Value
+public class EventProcessorSegmentRestModel {
+	private int segmentId;
+	private int mask;
+	private boolean replaying;
+	private Long currentPosition;
+}
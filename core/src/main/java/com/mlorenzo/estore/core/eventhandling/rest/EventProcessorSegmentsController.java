@@ -0,0 +1,68 @@
+package com.mlorenzo.estore.core.eventhandling.rest;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+
+import org.axonframework.config.EventProcessingConfiguration;
+import org.axonframework.eventhandling.TrackingEventProcessor;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import lombok.AllArgsConstructor;
+
+// Endpoints de gestión de los segmentos de los procesadores de eventos compartidos por los microservicios(se importa con la anotación @Import desde la clase principal de cada uno de ellos).
+// Nota: La división y la unión de segmentos sólo funciona en los procesadores de eventos de tipo Tracking.
+// Nota: Una instancia de un microservicio sólo puede dividir o unir los segmentos que tenga reclamados en ese momento(ver endpoint de consulta de segmentos).
+@AllArgsConstructor
+@RestController
+@RequestMapping("/management")
+public class EventProcessorSegmentsController {
+	private final EventProcessingConfiguration eventProcessingConfiguration;
+	
+	// Devuelve los segmentos que procesa esta instancia para un determinado procesador de eventos de tipo Tracking junto con su posición actual en el Event Store
+	@GetMapping("/event-processor/{processorName}/segments")
+	public ResponseEntity<List<EventProcessorSegmentRestModel>> getSegments(@PathVariable String processorName) {
+		return eventProcessingConfiguration.eventProcessor(processorName, TrackingEventProcessor.class)
+				.map(trackingEventProcessor -> ResponseEntity.ok(trackingEventProcessor.processingStatus().values().stream()
+						.map(status -> new EventProcessorSegmentRestModel(
+								status.getSegment().getSegmentId(),
+								status.getSegment().getMask(),
+								status.isReplaying(),
+								status.getCurrentPosition().isPresent() ? status.getCurrentPosition().getAsLong() : null))
+						.collect(Collectors.toList())))
+				.orElseGet(() -> ResponseEntity.notFound().build());
+	}
+	
+	// Divide un segmento en 2 para que su carga pueda repartirse entre más hilos o instancias
+	@PostMapping("/event-processor/{processorName}/segments/{segmentId}/split")
+	public CompletableFuture<ResponseEntity<String>> splitSegment(@PathVariable String processorName, @PathVariable int segmentId) {
+		Optional<TrackingEventProcessor> optionalProcessor = eventProcessingConfiguration.eventProcessor(processorName, TrackingEventProcessor.class);
+		if(optionalProcessor.isPresent())
+			return optionalProcessor.get().splitSegment(segmentId)
+					.thenApply(result -> toResponse(result, String.format("The segment [%d] of the event processor with name [%s] has been split", segmentId, processorName)));
+		return CompletableFuture.completedFuture(new ResponseEntity<>(String.format("The event processor with name [%s] is not exists", processorName), HttpStatus.NOT_FOUND));
+	}
+	
+	// Une un segmento con su segmento complementario para liberar hilos cuando la carga disminuye
+	@PostMapping("/event-processor/{processorName}/segments/{segmentId}/merge")
+	public CompletableFuture<ResponseEntity<String>> mergeSegment(@PathVariable String processorName, @PathVariable int segmentId) {
+		Optional<TrackingEventProcessor> optionalProcessor = eventProcessingConfiguration.eventProcessor(processorName, TrackingEventProcessor.class);
+		if(optionalProcessor.isPresent())
+			return optionalProcessor.get().mergeSegment(segmentId)
+					.thenApply(result -> toResponse(result, String.format("The segment [%d] of the event processor with name [%s] has been merged", segmentId, processorName)));
+		return CompletableFuture.completedFuture(new ResponseEntity<>(String.format("The event processor with name [%s] is not exists", processorName), HttpStatus.NOT_FOUND));
+	}
+	
+	private ResponseEntity<String> toResponse(boolean result, String message) {
+		if(result)
+			return ResponseEntity.ok(message);
+		return new ResponseEntity<>("The operation could not be completed. Check that this instance has claimed the segment", HttpStatus.CONFLICT);
+	}
+}
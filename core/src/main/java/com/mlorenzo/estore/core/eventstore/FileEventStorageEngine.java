@@ -0,0 +1,407 @@
+package com.mlorenzo.estore.core.eventstore;
+
+import static org.axonframework.common.BuilderUtils.assertNonNull;
+import static org.axonframework.common.BuilderUtils.assertStrictPositive;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+
+import org.axonframework.common.Assert;
+import org.axonframework.common.jdbc.PersistenceExceptionResolver;
+import org.axonframework.eventhandling.DomainEventData;
+import org.axonframework.eventhandling.DomainEventMessage;
+import org.axonframework.eventhandling.EventMessage;
+import org.axonframework.eventhandling.EventUtils;
+import org.axonframework.eventhandling.GenericDomainEventEntry;
+import org.axonframework.eventhandling.GlobalSequenceTrackingToken;
+import org.axonframework.eventhandling.TrackedDomainEventData;
+import org.axonframework.eventhandling.TrackedEventData;
+import org.axonframework.eventhandling.TrackingToken;
+import org.axonframework.eventsourcing.eventstore.AbstractEventStorageEngine;
+import org.axonframework.eventsourcing.eventstore.EventStoreException;
+import org.axonframework.eventsourcing.snapshotting.SnapshotFilter;
+import org.axonframework.messaging.unitofwork.CurrentUnitOfWork;
+import org.axonframework.messaging.unitofwork.UnitOfWork;
+import org.axonframework.serialization.SerializedObject;
+import org.axonframework.serialization.Serializer;
+import org.axonframework.serialization.upcasting.event.EventUpcaster;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Motor de almacenamiento de eventos embebido que guarda los eventos en ficheros locales en lugar de en Axon Server, de forma que los Aggregates se reconstruyen sin
+// salir del proceso(ver clase FileEventStoreConfiguration para activarlo).
+// - Los eventos se añaden, en el orden en que se confirman, a un log segmentado en memoria mapeada(ver clase SegmentedLog). La posición de cada evento en el log es su posición global,
+//   que es lo que guardan los tokens de los procesadores de eventos Tracking(GlobalSequenceTrackingToken).
+// - Un índice en memoria guarda, para cada Aggregate, las posiciones de sus eventos ordenadas por número de secuencia, así que reconstruir un Aggregate sólo lee sus propios eventos.
+//   El índice no se persiste: se reconstruye recorriendo el log al arrancar.
+// - Los snapshots se guardan en otro log independiente y sólo se indexa el último de cada Aggregate.
+// - Un número de secuencia repetido en un mismo Aggregate se trata igual que la violación de clave única de los motores JPA/JDBC del framework Axon,
+//   que la convierten en una excepción de concurrencia.
+// - El log no admite deshacer escrituras, así que los eventos de una unidad de trabajo sólo se escriben cuando se confirma(fase "commit", después de confirmar su transacción). Hasta entonces, en la fase
+//   "prepare commit", se comprueban y se reservan sus números de secuencia, de forma que otra unidad de trabajo que intente guardar eventos del mismo Aggregate falla con una excepción de concurrencia.
+//   Si la unidad de trabajo se deshace(Por ejemplo, porque falla el manejador de eventos de la tabla de Lookup o la transacción de la base de datos), sus eventos se descartan sin llegar al log,
+//   por lo que ni los procesadores de eventos ni los Aggregates los ven nunca.
+// Nota: Los ficheros sólo pueden ser utilizados por un único proceso a la vez, por lo que este motor está pensado para despliegues de una única instancia, pruebas locales y benchmarks.
+// Si el proceso se para justo entre la confirmación de la transacción y la escritura en el log, se pierden los eventos de esa unidad de trabajo.
+public class FileEventStorageEngine extends AbstractEventStorageEngine {
+	private static final Logger LOGGER = LoggerFactory.getLogger(FileEventStorageEngine.class);
+
+	private final SegmentedLog eventLog;
+	private final SegmentedLog snapshotLog;
+	private final boolean forceOnAppend;
+	private final Map<String, AggregateStream> aggregateStreams = new ConcurrentHashMap<>();
+	private final Map<String, SnapshotPosition> latestSnapshots = new ConcurrentHashMap<>();
+	// Último número de secuencia reservado por las unidades de trabajo pendientes de confirmar para cada Aggregate. Sólo se usa bajo el bloqueo de escritura
+	private final Map<String, Long> reservedSequenceNumbers = new HashMap<>();
+	private final Object appendLock = new Object();
+	private final Object snapshotLock = new Object();
+
+	protected FileEventStorageEngine(Builder builder) {
+		super(builder);
+		this.forceOnAppend = builder.forceOnAppend;
+		this.eventLog = new SegmentedLog(builder.directory.resolve("events"), builder.segmentSize);
+		this.snapshotLog = new SegmentedLog(builder.directory.resolve("snapshots"), builder.segmentSize);
+		long events = eventLog.size();
+		for(long position = 0; position < events; position++) {
+			DomainEventData<byte[]> event = decode(eventLog.read(position));
+			if(event.getType() != null)
+				aggregateStreams.computeIfAbsent(event.getAggregateIdentifier(), id -> new AggregateStream(event.getSequenceNumber())).add(position);
+		}
+		long snapshots = snapshotLog.size();
+		for(long position = 0; position < snapshots; position++) {
+			DomainEventData<byte[]> snapshot = decode(snapshotLog.read(position));
+			latestSnapshots.merge(snapshot.getAggregateIdentifier(), new SnapshotPosition(position, snapshot.getSequenceNumber()),
+					(current, candidate) -> candidate.sequenceNumber >= current.sequenceNumber ? candidate : current);
+		}
+		LOGGER.info("Opened the event store in {} with {} events of {} aggregates and {} snapshots", builder.directory, events, aggregateStreams.size(), latestSnapshots.size());
+	}
+
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	@Override
+	protected void appendEvents(List<? extends EventMessage<?>> events, Serializer serializer) {
+		if(events.isEmpty())
+			return;
+		// Los eventos que no pertenecen a un Aggregate se guardan como eventos de dominio sin tipo, igual que en el motor JPA del framework Axon
+		List<DomainEventMessage<?>> domainEvents = events.stream().map(EventUtils::asDomainEventMessage).collect(Collectors.toList());
+		// La serialización se hace fuera del bloqueo para que las escrituras concurrentes sólo compitan por la escritura en el log
+		List<byte[]> records = domainEvents.stream().map(event -> encode(event, serializer)).collect(Collectors.toList());
+		// Fuera de una unidad de trabajo, o si ya se ha confirmado, los eventos se escriben directamente
+		UnitOfWork<?> unitOfWork = CurrentUnitOfWork.isStarted() ? CurrentUnitOfWork.get().root() : null;
+		if(unitOfWork == null || unitOfWork.phase().isAfter(UnitOfWork.Phase.PREPARE_COMMIT)) {
+			synchronized(appendLock) {
+				validateSequenceNumbers(domainEvents);
+				write(domainEvents, records);
+			}
+			return;
+		}
+		Map<String, Long> lastSequenceNumbers;
+		synchronized(appendLock) {
+			lastSequenceNumbers = validateSequenceNumbers(domainEvents);
+			reservedSequenceNumbers.putAll(lastSequenceNumbers);
+		}
+		unitOfWork.onCommit(u -> {
+			synchronized(appendLock) {
+				write(domainEvents, records);
+				release(lastSequenceNumbers);
+			}
+		});
+		unitOfWork.onRollback(u -> {
+			synchronized(appendLock) {
+				release(lastSequenceNumbers);
+			}
+		});
+	}
+
+	// Añade los eventos al log y al índice de cada Aggregate. Se invoca bajo el bloqueo de escritura
+	private void write(List<DomainEventMessage<?>> domainEvents, List<byte[]> records) {
+		long firstPosition = eventLog.append(records);
+		if(forceOnAppend)
+			eventLog.force();
+		for(int i = 0; i < domainEvents.size(); i++) {
+			DomainEventMessage<?> event = domainEvents.get(i);
+			if(event.getType() != null)
+				aggregateStreams.computeIfAbsent(event.getAggregateIdentifier(), id -> new AggregateStream(event.getSequenceNumber())).add(firstPosition + i);
+		}
+	}
+
+	// Libera los números de secuencia reservados por una unidad de trabajo, salvo que otra unidad de trabajo los haya reservado después. Se invoca bajo el bloqueo de escritura
+	private void release(Map<String, Long> lastSequenceNumbers) {
+		lastSequenceNumbers.forEach(reservedSequenceNumbers::remove);
+	}
+
+	@Override
+	protected void storeSnapshot(DomainEventMessage<?> snapshot, Serializer serializer) {
+		byte[] record = encode(snapshot, serializer);
+		synchronized(snapshotLock) {
+			SnapshotPosition current = latestSnapshots.get(snapshot.getAggregateIdentifier());
+			if(current != null && current.sequenceNumber >= snapshot.getSequenceNumber())
+				return;
+			long position = snapshotLog.append(List.of(record));
+			if(forceOnAppend)
+				snapshotLog.force();
+			latestSnapshots.put(snapshot.getAggregateIdentifier(), new SnapshotPosition(position, snapshot.getSequenceNumber()));
+		}
+	}
+
+	@Override
+	protected Stream<? extends DomainEventData<?>> readEventData(String aggregateIdentifier, long firstSequenceNumber) {
+		AggregateStream stream = aggregateStreams.get(aggregateIdentifier);
+		if(stream == null)
+			return Stream.empty();
+		return stream.positionsFrom(firstSequenceNumber).mapToObj(position -> decode(eventLog.read(position)));
+	}
+
+	// El flujo devuelto llega hasta el último evento escrito en el momento de la llamada. La espera de nuevos eventos la gestiona el Event Store(EmbeddedEventStore),
+	// que vuelve a invocar este método cuando se añaden eventos
+	@Override
+	protected Stream<? extends TrackedEventData<?>> readEventData(TrackingToken trackingToken, boolean mayBlock) {
+		Assert.isTrue(trackingToken == null || trackingToken instanceof GlobalSequenceTrackingToken, () -> "Unsupported token format: " + trackingToken);
+		long firstPosition = trackingToken == null ? 0 : ((GlobalSequenceTrackingToken) trackingToken).getGlobalIndex() + 1;
+		return LongStream.range(firstPosition, eventLog.size())
+				.mapToObj(position -> new TrackedDomainEventData<>(new GlobalSequenceTrackingToken(position), decode(eventLog.read(position))));
+	}
+
+	@Override
+	protected Stream<? extends DomainEventData<?>> readSnapshotData(String aggregateIdentifier) {
+		SnapshotPosition snapshot = latestSnapshots.get(aggregateIdentifier);
+		return snapshot == null ? Stream.empty() : Stream.of(decode(snapshotLog.read(snapshot.position)));
+	}
+
+	@Override
+	public Optional<Long> lastSequenceNumberFor(String aggregateIdentifier) {
+		return Optional.ofNullable(aggregateStreams.get(aggregateIdentifier)).map(AggregateStream::lastSequenceNumber);
+	}
+
+	@Override
+	public TrackingToken createTailToken() {
+		return null;
+	}
+
+	@Override
+	public TrackingToken createHeadToken() {
+		long size = eventLog.size();
+		return size == 0 ? null : new GlobalSequenceTrackingToken(size - 1);
+	}
+
+	// Los eventos se escriben en orden de confirmación, así que sus fechas sólo están ordenadas aproximadamente. Se devuelve el token anterior al primer evento con una fecha igual o posterior
+	@Override
+	public TrackingToken createTokenAt(Instant dateTime) {
+		long size = eventLog.size();
+		for(long position = 0; position < size; position++)
+			if(!decode(eventLog.read(position)).getTimestamp().isBefore(dateTime))
+				return position == 0 ? null : new GlobalSequenceTrackingToken(position - 1);
+		return createHeadToken();
+	}
+
+	public void close() {
+		eventLog.close();
+		snapshotLog.close();
+	}
+
+	// Comprueba que los eventos de cada Aggregate continúan la secuencia ya guardada o reservada por otra unidad de trabajo(incluidos los eventos anteriores del mismo lote)
+	// y devuelve el último número de secuencia de cada Aggregate del lote. Se invoca bajo el bloqueo de escritura
+	private Map<String, Long> validateSequenceNumbers(List<DomainEventMessage<?>> domainEvents) {
+		Map<String, Long> lastSequenceNumbers = new HashMap<>();
+		for(DomainEventMessage<?> event : domainEvents) {
+			if(event.getType() == null)
+				continue;
+			Long lastSequenceNumber = lastSequenceNumbers.computeIfAbsent(event.getAggregateIdentifier(),
+					id -> reservedSequenceNumbers.containsKey(id) ? reservedSequenceNumbers.get(id) : lastSequenceNumberFor(id).orElse(null));
+			if(lastSequenceNumber != null && event.getSequenceNumber() <= lastSequenceNumber)
+				handlePersistenceException(new DuplicateSequenceNumberException("The event with sequence number " + event.getSequenceNumber() + " of the aggregate "
+						+ event.getAggregateIdentifier() + " already exists"), event);
+			if(lastSequenceNumber != null && event.getSequenceNumber() != lastSequenceNumber + 1)
+				throw new EventStoreException("The event with sequence number " + event.getSequenceNumber() + " of the aggregate " + event.getAggregateIdentifier()
+						+ " does not follow the last sequence number " + lastSequenceNumber);
+			lastSequenceNumbers.put(event.getAggregateIdentifier(), event.getSequenceNumber());
+		}
+		return lastSequenceNumbers;
+	}
+
+	private static byte[] encode(DomainEventMessage<?> event, Serializer serializer) {
+		SerializedObject<byte[]> payload = event.serializePayload(serializer, byte[].class);
+		SerializedObject<byte[]> metaData = event.serializeMetaData(serializer, byte[].class);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(payload.getData().length + metaData.getData().length + 128);
+		try(DataOutputStream output = new DataOutputStream(bytes)) {
+			writeNullableString(output, event.getType());
+			output.writeUTF(event.getAggregateIdentifier());
+			output.writeLong(event.getSequenceNumber());
+			output.writeUTF(event.getIdentifier());
+			output.writeLong(event.getTimestamp().getEpochSecond());
+			output.writeInt(event.getTimestamp().getNano());
+			output.writeUTF(payload.getType().getName());
+			writeNullableString(output, payload.getType().getRevision());
+			output.writeInt(payload.getData().length);
+			output.write(payload.getData());
+			output.writeInt(metaData.getData().length);
+			output.write(metaData.getData());
+		}
+		catch(IOException ex) {
+			throw new UncheckedIOException(ex);
+		}
+		return bytes.toByteArray();
+	}
+
+	private static GenericDomainEventEntry<byte[]> decode(byte[] record) {
+		try(DataInputStream input = new DataInputStream(new ByteArrayInputStream(record))) {
+			String type = readNullableString(input);
+			String aggregateIdentifier = input.readUTF();
+			long sequenceNumber = input.readLong();
+			String eventIdentifier = input.readUTF();
+			Instant timestamp = Instant.ofEpochSecond(input.readLong(), input.readInt());
+			String payloadType = input.readUTF();
+			String payloadRevision = readNullableString(input);
+			byte[] payload = new byte[input.readInt()];
+			input.readFully(payload);
+			byte[] metaData = new byte[input.readInt()];
+			input.readFully(metaData);
+			return new GenericDomainEventEntry<>(type, aggregateIdentifier, sequenceNumber, eventIdentifier, timestamp, payloadType, payloadRevision, payload, metaData);
+		}
+		catch(IOException ex) {
+			throw new UncheckedIOException(ex);
+		}
+	}
+
+	private static void writeNullableString(DataOutputStream output, String value) throws IOException {
+		output.writeBoolean(value != null);
+		if(value != null)
+			output.writeUTF(value);
+	}
+
+	private static String readNullableString(DataInputStream input) throws IOException {
+		return input.readBoolean() ? input.readUTF() : null;
+	}
+
+	// Posiciones en el log de los eventos de un Aggregate. Sólo se modifica bajo el bloqueo de escritura y se lee sin bloqueos
+	// con la misma técnica que los segmentos del log: el array se sustituye antes de incrementar el contador(volatile)
+	private static class AggregateStream {
+		private final long firstSequenceNumber;
+		private volatile long[] positions = new long[8];
+		private volatile int count;
+
+		AggregateStream(long firstSequenceNumber) {
+			this.firstSequenceNumber = firstSequenceNumber;
+		}
+
+		void add(long position) {
+			long[] current = positions;
+			if(count == current.length)
+				current = positions = Arrays.copyOf(current, current.length * 2);
+			current[count] = position;
+			count++;
+		}
+
+		long lastSequenceNumber() {
+			return firstSequenceNumber + count - 1;
+		}
+
+		LongStream positionsFrom(long sequenceNumber) {
+			int end = count;
+			long[] current = positions;
+			int start = (int) Math.max(0, sequenceNumber - firstSequenceNumber);
+			return start >= end ? LongStream.empty() : Arrays.stream(current, start, end);
+		}
+	}
+
+	@lombok.Value
+	private static class SnapshotPosition {
+		long position;
+		long sequenceNumber;
+	}
+
+	// El método "handlePersistenceException" la traduce en una excepción de concurrencia(ConcurrencyException) mediante el PersistenceExceptionResolver por defecto del Builder
+	private static class DuplicateSequenceNumberException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		DuplicateSequenceNumberException(String message) {
+			super(message);
+		}
+	}
+
+	public static class Builder extends AbstractEventStorageEngine.Builder {
+		private Path directory;
+		private int segmentSize = 64 * 1024 * 1024;
+		private boolean forceOnAppend;
+
+		public Builder() {
+			persistenceExceptionResolver(DuplicateSequenceNumberException.class::isInstance);
+		}
+
+		@Override
+		public Builder snapshotSerializer(Serializer snapshotSerializer) {
+			super.snapshotSerializer(snapshotSerializer);
+			return this;
+		}
+
+		@Override
+		public Builder upcasterChain(EventUpcaster upcasterChain) {
+			super.upcasterChain(upcasterChain);
+			return this;
+		}
+
+		@Override
+		public Builder persistenceExceptionResolver(PersistenceExceptionResolver persistenceExceptionResolver) {
+			super.persistenceExceptionResolver(persistenceExceptionResolver);
+			return this;
+		}
+
+		@Override
+		public Builder eventSerializer(Serializer eventSerializer) {
+			super.eventSerializer(eventSerializer);
+			return this;
+		}
+
+		@Override
+		public Builder snapshotFilter(SnapshotFilter snapshotFilter) {
+			super.snapshotFilter(snapshotFilter);
+			return this;
+		}
+
+		// Directorio donde se crean los subdirectorios "events" y "snapshots" con los segmentos de cada log
+		public Builder directory(Path directory) {
+			this.directory = directory;
+			return this;
+		}
+
+		// Tamaño de cada segmento. Un registro mayor que este tamaño se guarda en un segmento propio de su mismo tamaño
+		public Builder segmentSize(int segmentSize) {
+			this.segmentSize = segmentSize;
+			return this;
+		}
+
+		// Si es true, cada escritura espera a que los datos lleguen al disco. Por defecto se deja en manos del sistema operativo
+		public Builder forceOnAppend(boolean forceOnAppend) {
+			this.forceOnAppend = forceOnAppend;
+			return this;
+		}
+
+		@Override
+		protected void validate() {
+			super.validate();
+			assertNonNull(directory, "The directory is a hard requirement and should be provided");
+			assertStrictPositive(segmentSize, "The segment size should be a positive number");
+		}
+
+		public FileEventStorageEngine build() {
+			return new FileEventStorageEngine(this);
+		}
+	}
+}
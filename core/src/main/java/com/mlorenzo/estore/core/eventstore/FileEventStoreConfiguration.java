@@ -0,0 +1,51 @@
+package com.mlorenzo.estore.core.eventstore;
+
+import java.nio.file.Paths;
+
+import org.axonframework.eventsourcing.eventstore.EmbeddedEventStore;
+import org.axonframework.eventsourcing.eventstore.EventStorageEngine;
+import org.axonframework.eventsourcing.eventstore.EventStore;
+import org.axonframework.serialization.Serializer;
+import org.axonframework.spring.config.AxonConfiguration;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.util.unit.DataSize;
+
+// Configuración compartida por todos los microservicios(se importa con la anotación @Import desde la clase principal de cada uno de ellos) que, con la propiedad
+// "estore.event-store.type=file", sustituye el Event Store de Axon Server por un Event Store embebido sobre el motor de almacenamiento en ficheros FileEventStorageEngine.
+// Los Commands y Queries se siguen enrutando a través de Axon Server salvo que también se desactive con la propiedad "axon.axonserver.enabled=false".
+// Importante: Cada microservicio tiene entonces su propio Event Store, así que los eventos de un microservicio no llegan a los demás(Por ejemplo, al componente SAGA del microservicio de órdenes).
+// Además, las posiciones de los tokens de los procesadores de eventos guardados con Axon Server no se corresponden con las del nuevo Event Store, por lo que al cambiar de Event Store
+// hay que empezar con una base de datos de tokens vacía.
+@Configuration
+@ConditionalOnProperty(name = "estore.event-store.type", havingValue = "file")
+public class FileEventStoreConfiguration {
+
+	@Bean(destroyMethod = "close")
+	public FileEventStorageEngine eventStorageEngine(@Qualifier("eventSerializer") Serializer eventSerializer, AxonConfiguration configuration,
+			@Value("${estore.event-store.directory:../${spring.application.name}-events}") String directory,
+			@Value("${estore.event-store.segment-size:64MB}") DataSize segmentSize,
+			@Value("${estore.event-store.force-on-append:false}") boolean forceOnAppend) {
+		return FileEventStorageEngine.builder()
+				.directory(Paths.get(directory))
+				.segmentSize((int) segmentSize.toBytes())
+				.forceOnAppend(forceOnAppend)
+				.eventSerializer(eventSerializer)
+				.snapshotSerializer(eventSerializer)
+				.upcasterChain(configuration.upcasterChain())
+				.snapshotFilter(configuration.snapshotFilter())
+				.build();
+	}
+
+	// Al parar el microservicio, el Event Store detiene los hilos que leen del motor de almacenamiento antes de que se cierren sus ficheros
+	@Bean(destroyMethod = "shutDown")
+	public EmbeddedEventStore eventStore(EventStorageEngine storageEngine, AxonConfiguration configuration) {
+		return EmbeddedEventStore.builder()
+				.storageEngine(storageEngine)
+				.messageMonitor(configuration.messageMonitor(EventStore.class, "eventStore"))
+				.build();
+	}
+}
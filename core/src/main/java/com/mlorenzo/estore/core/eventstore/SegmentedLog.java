@@ -0,0 +1,238 @@
+package com.mlorenzo.estore.core.eventstore;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Log de registros de sólo escritura al final repartido en ficheros(segmentos) de tamaño fijo que se acceden mediante memoria mapeada(MappedByteBuffer).
+// Cada registro se identifica por su posición global en el log(0, 1, 2...) y se guarda como [longitud][CRC32][datos]. La longitud se escribe la última,
+// así que un registro a medio escribir(Por ejemplo, por una caída del proceso) se detecta al abrir el log y se descarta junto con todo lo que le sigue.
+// Admite un único escritor(las escrituras están sincronizadas) y lectores concurrentes sin bloqueos: un registro sólo es visible para los lectores
+// cuando el contador de registros de su segmento(volatile) se ha incrementado, lo que ocurre después de escribirlo por completo.
+class SegmentedLog {
+	private static final Logger LOGGER = LoggerFactory.getLogger(SegmentedLog.class);
+	private static final int HEADER_SIZE = 8;
+	private static final String SEGMENT_SUFFIX = ".log";
+
+	private final Path directory;
+	private final int segmentSize;
+	private final List<Segment> segments = new CopyOnWriteArrayList<>();
+
+	SegmentedLog(Path directory, int segmentSize) {
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		try {
+			Files.createDirectories(directory);
+			List<Path> files;
+			try(Stream<Path> paths = Files.list(directory)) {
+				files = paths.filter(path -> path.getFileName().toString().endsWith(SEGMENT_SUFFIX)).sorted().collect(Collectors.toList());
+			}
+			long expectedFirstPosition = 0;
+			for(Path file : files) {
+				Segment segment = Segment.open(file, firstPositionOf(file));
+				if(segment.firstPosition != expectedFirstPosition)
+					throw new IllegalStateException("The log segment " + file + " does not follow the previous segment(expected first position " + expectedFirstPosition + ")");
+				segments.add(segment);
+				expectedFirstPosition = segment.firstPosition + segment.count;
+			}
+		}
+		catch(IOException ex) {
+			throw new UncheckedIOException("Could not open the log in " + directory, ex);
+		}
+	}
+
+	// Número de registros del log, que también es la posición que tendrá el siguiente registro
+	long size() {
+		if(segments.isEmpty())
+			return 0;
+		Segment last = segments.get(segments.size() - 1);
+		return last.firstPosition + last.count;
+	}
+
+	// Añade los registros al final del log y devuelve la posición del primero de ellos
+	synchronized long append(List<byte[]> records) {
+		long firstPosition = size();
+		for(byte[] record : records) {
+			Segment segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+			if(segment == null || !segment.fits(record.length))
+				segment = roll(Math.max(segmentSize, record.length + HEADER_SIZE));
+			segment.append(record);
+		}
+		return firstPosition;
+	}
+
+	byte[] read(long position) {
+		Segment segment = segmentFor(position);
+		if(segment == null || position >= segment.firstPosition + segment.count)
+			throw new IllegalArgumentException("There is no record at position " + position);
+		return segment.read((int) (position - segment.firstPosition));
+	}
+
+	// Fuerza la escritura en disco de los segmentos modificados. Sin ésto, el sistema operativo decide cuándo escribirlos, lo que no afecta a la consistencia
+	// entre procesos pero sí a la durabilidad ante una caída del propio sistema operativo
+	synchronized void force() {
+		if(!segments.isEmpty())
+			segments.get(segments.size() - 1).buffer.force();
+	}
+
+	synchronized void close() {
+		for(Segment segment : segments)
+			segment.close();
+		segments.clear();
+	}
+
+	private Segment roll(int capacity) {
+		if(!segments.isEmpty())
+			segments.get(segments.size() - 1).buffer.force();
+		long firstPosition = size();
+		Path file = directory.resolve(String.format("%020d%s", firstPosition, SEGMENT_SUFFIX));
+		try {
+			Segment segment = Segment.create(file, firstPosition, capacity);
+			segments.add(segment);
+			LOGGER.debug("Created log segment {}", file);
+			return segment;
+		}
+		catch(IOException ex) {
+			throw new UncheckedIOException("Could not create the log segment " + file, ex);
+		}
+	}
+
+	// Búsqueda binaria del segmento que contiene la posición indicada
+	private Segment segmentFor(long position) {
+		List<Segment> current = segments;
+		int low = 0;
+		int high = current.size() - 1;
+		Segment result = null;
+		while(low <= high) {
+			int middle = (low + high) >>> 1;
+			Segment segment = current.get(middle);
+			if(segment.firstPosition <= position) {
+				result = segment;
+				low = middle + 1;
+			}
+			else
+				high = middle - 1;
+		}
+		return result;
+	}
+
+	private static long firstPositionOf(Path file) {
+		String name = file.getFileName().toString();
+		return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+	}
+
+	private static class Segment {
+		private final long firstPosition;
+		private final FileChannel channel;
+		private final MappedByteBuffer buffer;
+		// Desplazamiento dentro del fichero de cada registro del segmento
+		private volatile int[] offsets;
+		private volatile int count;
+		private int writeOffset;
+
+		private Segment(long firstPosition, FileChannel channel, MappedByteBuffer buffer) {
+			this.firstPosition = firstPosition;
+			this.channel = channel;
+			this.buffer = buffer;
+			this.offsets = new int[1024];
+		}
+
+		static Segment create(Path file, long firstPosition, int capacity) throws IOException {
+			FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			return new Segment(firstPosition, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity));
+		}
+
+		// Abre un segmento existente y recorre sus registros para localizarlos. Se detiene en el primer hueco vacío o en el primer registro incompleto o dañado,
+		// cuyo espacio se limpia para que las siguientes escrituras lo reutilicen
+		static Segment open(Path file, long firstPosition) throws IOException {
+			FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			Segment segment = new Segment(firstPosition, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size()));
+			ByteBuffer buffer = segment.buffer.duplicate();
+			int offset = 0;
+			while(offset + HEADER_SIZE <= buffer.capacity()) {
+				int length = buffer.getInt(offset);
+				if(length <= 0 || offset + HEADER_SIZE + length > buffer.capacity())
+					break;
+				byte[] data = new byte[length];
+				buffer.position(offset + HEADER_SIZE);
+				buffer.get(data);
+				if(checksum(data) != buffer.getInt(offset + 4)) {
+					LOGGER.warn("Discarding a corrupted record and everything after it at offset {} of the log segment {}", offset, file);
+					break;
+				}
+				segment.addOffset(offset);
+				offset += HEADER_SIZE + length;
+			}
+			segment.writeOffset = offset;
+			for(int position = offset; position < Math.min(buffer.capacity(), offset + HEADER_SIZE); position++)
+				buffer.put(position, (byte) 0);
+			return segment;
+		}
+
+		boolean fits(int length) {
+			return writeOffset + HEADER_SIZE + length <= buffer.capacity();
+		}
+
+		void append(byte[] data) {
+			ByteBuffer writer = buffer.duplicate();
+			writer.position(writeOffset + HEADER_SIZE);
+			writer.put(data);
+			writer.putInt(writeOffset + 4, checksum(data));
+			// Se limpia la cabecera del siguiente registro por si el espacio se había usado antes de una recuperación
+			if(writeOffset + 2 * HEADER_SIZE + data.length <= buffer.capacity())
+				writer.putInt(writeOffset + HEADER_SIZE + data.length, 0);
+			writer.putInt(writeOffset, data.length);
+			addOffset(writeOffset);
+			writeOffset += HEADER_SIZE + data.length;
+		}
+
+		byte[] read(int index) {
+			int offset = offsets[index];
+			ByteBuffer reader = buffer.duplicate();
+			byte[] data = new byte[reader.getInt(offset)];
+			reader.position(offset + HEADER_SIZE);
+			reader.get(data);
+			return data;
+		}
+
+		// El array de desplazamientos se sustituye(nunca se modifica una posición ya publicada) antes de incrementar el contador, así que un lector
+		// que lee primero el contador y después el array siempre ve los desplazamientos de todos los registros contados
+		private void addOffset(int offset) {
+			int[] current = offsets;
+			if(count == current.length)
+				current = offsets = Arrays.copyOf(current, current.length * 2);
+			current[count] = offset;
+			count++;
+		}
+
+		void close() {
+			try {
+				buffer.force();
+				channel.close();
+			}
+			catch(IOException ex) {
+				LOGGER.warn("Could not close a log segment: {}", ex.getMessage());
+			}
+		}
+
+		private static int checksum(byte[] data) {
+			CRC32 crc = new CRC32();
+			crc.update(data);
+			return (int) crc.getValue();
+		}
+	}
+}
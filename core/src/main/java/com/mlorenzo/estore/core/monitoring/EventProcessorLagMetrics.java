@@ -0,0 +1,70 @@
+package com.mlorenzo.estore.core.monitoring;
+
+import java.util.Map;
+
+import org.axonframework.config.EventProcessingConfiguration;
+import org.axonframework.eventhandling.EventTrackerStatus;
+import org.axonframework.eventhandling.TrackingEventProcessor;
+import org.axonframework.eventhandling.TrackingToken;
+import org.axonframework.eventsourcing.eventstore.EventStore;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+// Métrica "estore.processor.lag" con el retraso de cada procesador de eventos de tipo Tracking de esta instancia: número de eventos entre la cabeza del Event Store y la posición del segmento más atrasado del procesador.
+// A diferencia de la métrica de latencia del framework Axon(tiempo desde la creación del último evento procesado), este retraso no depende de la frecuencia con la que llegan los eventos
+// y sigue creciendo mientras el procesador está bloqueado o reintentando un lote de eventos.
+// Los procesadores se registran cuando la aplicación ya ha arrancado, ya que el framework Axon los crea al iniciar la configuración. Si esta instancia no procesa ningún segmento del procesador, el valor es NaN.
+// La posición de la cabeza del Event Store se consulta como mucho una vez por "headRefreshMillis" milisegundos, aunque se lean a la vez las métricas de varios procesadores
+public class EventProcessorLagMetrics {
+	private final EventProcessingConfiguration eventProcessingConfiguration;
+	private final EventStore eventStore;
+	private final MeterRegistry meterRegistry;
+	private final long headRefreshMillis;
+	private long headPosition;
+	private long headReadTime;
+
+	public EventProcessorLagMetrics(EventProcessingConfiguration eventProcessingConfiguration, EventStore eventStore, MeterRegistry meterRegistry, long headRefreshMillis) {
+		this.eventProcessingConfiguration = eventProcessingConfiguration;
+		this.eventStore = eventStore;
+		this.meterRegistry = meterRegistry;
+		this.headRefreshMillis = headRefreshMillis;
+	}
+
+	@EventListener(ApplicationReadyEvent.class)
+	public void registerProcessors() {
+		eventProcessingConfiguration.eventProcessors().values().stream()
+				.filter(TrackingEventProcessor.class::isInstance)
+				.map(TrackingEventProcessor.class::cast)
+				.forEach(processor -> Gauge.builder("estore.processor.lag", processor, this::lag)
+						.tag("processor", processor.getName())
+						.description("Events between the head of the event store and the slowest segment of the processor")
+						.baseUnit("events")
+						.register(meterRegistry));
+	}
+
+	private double lag(TrackingEventProcessor processor) {
+		Map<Integer, EventTrackerStatus> processingStatus = processor.processingStatus();
+		if(processingStatus.isEmpty())
+			return Double.NaN;
+		// Un segmento sin token todavía no ha procesado ningún evento
+		long slowestPosition = processingStatus.values().stream()
+				.mapToLong(status -> status.getCurrentPosition().orElse(-1))
+				.min()
+				.getAsLong();
+		return Math.max(0, headPosition() - slowestPosition);
+	}
+
+	private synchronized long headPosition() {
+		long now = System.currentTimeMillis();
+		if(headReadTime == 0 || now - headReadTime >= headRefreshMillis) {
+			// Con el Event Store vacío, no hay token de cabeza
+			TrackingToken headToken = eventStore.createHeadToken();
+			headPosition = headToken == null ? -1 : headToken.position().orElse(-1);
+			headReadTime = now;
+		}
+		return headPosition;
+	}
+}
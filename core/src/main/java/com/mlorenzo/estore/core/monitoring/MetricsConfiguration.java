@@ -0,0 +1,25 @@
+package com.mlorenzo.estore.core.monitoring;
+
+import org.axonframework.config.EventProcessingConfiguration;
+import org.axonframework.eventsourcing.eventstore.EventStore;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import io.micrometer.core.instrument.MeterRegistry;
+
+// Configuración compartida por todos los microservicios(se importa con la anotación @Import desde la clase principal de cada uno de ellos) con las métricas propias que se añaden a las del framework Axon.
+// Todas las métricas se registran en Micrometer y se publican en el endpoint "/actuator/prometheus" de cada microservicio(ver propiedades "management.*" del archivo de propiedades de cada uno de ellos):
+// - Tiempos de procesamiento de los mensajes en los buses de Commands, Queries y eventos y en los procesadores de eventos: los registra el módulo "axon-micrometer" del framework Axon. Con la propiedad
+//   "axon.metrics.micrometer.dimensional=true", cada métrica incluye el tipo del mensaje en la etiqueta "payloadType" y el procesador de eventos en la etiqueta "processorName".
+// - Retraso de los procesadores de eventos de tipo Tracking respecto a la cabeza del Event Store(ver clase EventProcessorLagMetrics).
+// - Tiempos de carga de los Aggregates(ver clase AdaptiveSnapshotTriggerDefinition) y de los pasos de los componentes SAGA(ver clase OrderSagaMetrics del microservicio de órdenes), definidos en cada componente.
+@Configuration
+public class MetricsConfiguration {
+
+	@Bean
+	public EventProcessorLagMetrics eventProcessorLagMetrics(EventProcessingConfiguration eventProcessingConfiguration, EventStore eventStore, MeterRegistry meterRegistry,
+			@Value("${estore.metrics.processor-lag.head-refresh-millis:1000}") long headRefreshMillis) {
+		return new EventProcessorLagMetrics(eventProcessingConfiguration, eventStore, meterRegistry, headRefreshMillis);
+	}
+}
@@ -0,0 +1,131 @@
+package com.mlorenzo.estore.core.serialization;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.axonframework.serialization.Converter;
+import org.axonframework.serialization.SerializedObject;
+import org.axonframework.serialization.SerializedType;
+import org.axonframework.serialization.Serializer;
+import org.axonframework.serialization.SimpleSerializedObject;
+import org.axonframework.serialization.SimpleSerializedType;
+import org.axonframework.serialization.json.JacksonSerializer;
+import org.axonframework.serialization.xml.CompactDriver;
+import org.axonframework.serialization.xml.XStreamSerializer;
+
+import com.fasterxml.jackson.annotation.JsonAutoDetect.Visibility;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.PropertyAccessor;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.thoughtworks.xstream.XStream;
+
+// Serializador binario compacto basado en el formato Smile de Jackson(JSON binario), que ocupa bastante menos y es más rápido de generar y de leer que el XML del serializador por defecto del framework Axon(XStream).
+// Siempre serializa en formato Smile, pero sigue pudiendo leer los datos serializados previamente en XML: los datos en formato Smile empiezan por la cabecera ":)\n" y, si no la tienen, se leen con XStream.
+// Los objetos se serializan a partir de sus campos(sin necesidad de métodos "getter"), se ignoran los campos "transient"(Por ejemplo, los componentes inyectados en una instancia SAGA)
+// y no se incluyen los campos con valor null. Las clases inmutables generadas con Lombok se crean a partir de su constructor(ver fichero "lombok.config" de la raíz del proyecto).
+// Opcionalmente, se le puede indicar una tabla de identificadores de tipo(ver clase SerializedTypeAliases) para que en el tipo de los datos serializados se guarde un identificador corto
+// en lugar del nombre completo de la clase. Los datos serializados previamente con el nombre completo de la clase se siguen pudiendo leer.
+public class CompactSerializer implements Serializer {
+	private static final byte[] SMILE_HEADER = {':', ')', '\n'};
+	
+	private final Serializer smileSerializer;
+	private final Serializer xmlSerializer;
+	private final Map<String, Class<?>> classesByAlias;
+	private final Map<Class<?>, String> aliasesByClass = new HashMap<>();
+	
+	public CompactSerializer(Serializer smileSerializer, Serializer xmlSerializer) {
+		this(smileSerializer, xmlSerializer, SerializedTypeAliases.builder().build());
+	}
+	
+	public CompactSerializer(Serializer smileSerializer, Serializer xmlSerializer, SerializedTypeAliases typeAliases) {
+		this.smileSerializer = smileSerializer;
+		this.xmlSerializer = xmlSerializer;
+		this.classesByAlias = typeAliases.getClassesByAlias();
+		classesByAlias.forEach((alias, type) -> aliasesByClass.put(type, alias));
+	}
+	
+	public static CompactSerializer defaultSerializer() {
+		return defaultSerializer(SerializedTypeAliases.builder().build());
+	}
+	
+	public static CompactSerializer defaultSerializer(SerializedTypeAliases typeAliases) {
+		return new CompactSerializer(JacksonSerializer.builder().objectMapper(smileObjectMapper()).build(), xmlSerializer(), typeAliases);
+	}
+	
+	// Serializador con el que se leen los datos serializados previamente en XML. Igual que el ObjectMapper del formato Smile, ignora los campos que ya no existen en las clases
+	// (Por ejemplo, los campos eliminados del estado de un componente SAGA), que XStream rechaza por defecto
+	public static XStreamSerializer xmlSerializer() {
+		XStream xStream = new XStream(new CompactDriver());
+		xStream.ignoreUnknownElements();
+		return XStreamSerializer.builder().xStream(xStream).build();
+	}
+	
+	public static ObjectMapper smileObjectMapper() {
+		ObjectMapper objectMapper = new ObjectMapper(new SmileFactory());
+		objectMapper.findAndRegisterModules();
+		objectMapper.setVisibility(PropertyAccessor.ALL, Visibility.NONE);
+		objectMapper.setVisibility(PropertyAccessor.FIELD, Visibility.ANY);
+		objectMapper.setSerializationInclusion(JsonInclude.Include.NON_NULL);
+		objectMapper.disable(SerializationFeature.FAIL_ON_EMPTY_BEANS);
+		objectMapper.disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+		return objectMapper;
+	}
+	
+	@Override
+	public <T> SerializedObject<T> serialize(Object object, Class<T> expectedRepresentation) {
+		SerializedObject<T> serializedObject = smileSerializer.serialize(object, expectedRepresentation);
+		String alias = object == null ? null : aliasesByClass.get(object.getClass());
+		if(alias == null)
+			return serializedObject;
+		return new SimpleSerializedObject<>(serializedObject.getData(), serializedObject.getContentType(), new SimpleSerializedType(alias, serializedObject.getType().getRevision()));
+	}
+	
+	@Override
+	public <T> boolean canSerializeTo(Class<T> expectedRepresentation) {
+		return smileSerializer.canSerializeTo(expectedRepresentation);
+	}
+	
+	@Override
+	public <S, T> T deserialize(SerializedObject<S> serializedObject) {
+		if(SerializedType.emptyType().equals(serializedObject.getType()))
+			return null;
+		SerializedObject<byte[]> bytes = smileSerializer.getConverter().convert(serializedObject, byte[].class);
+		// Los serializadores delegados sólo conocen los nombres completos de las clases, así que se les pasa el tipo con el identificador ya resuelto
+		Class<?> aliasedClass = classesByAlias.get(serializedObject.getType().getName());
+		if(aliasedClass != null)
+			bytes = new SimpleSerializedObject<>(bytes.getData(), byte[].class, new SimpleSerializedType(aliasedClass.getName(), serializedObject.getType().getRevision()));
+		return isSmile(bytes.getData()) ? smileSerializer.deserialize(bytes) : xmlSerializer.deserialize(bytes);
+	}
+	
+	@SuppressWarnings("rawtypes")
+	@Override
+	public Class classForType(SerializedType type) {
+		Class<?> aliasedClass = classesByAlias.get(type.getName());
+		return aliasedClass != null ? aliasedClass : smileSerializer.classForType(type);
+	}
+	
+	@SuppressWarnings("rawtypes")
+	@Override
+	public SerializedType typeForClass(Class type) {
+		SerializedType serializedType = smileSerializer.typeForClass(type);
+		String alias = aliasesByClass.get(type);
+		return alias == null ? serializedType : new SimpleSerializedType(alias, serializedType.getRevision());
+	}
+	
+	@Override
+	public Converter getConverter() {
+		return smileSerializer.getConverter();
+	}
+	
+	static boolean isSmile(byte[] data) {
+		if(data == null || data.length < SMILE_HEADER.length)
+			return false;
+		for(int i = 0; i < SMILE_HEADER.length; i++)
+			if(data[i] != SMILE_HEADER[i])
+				return false;
+		return true;
+	}
+}
@@ -0,0 +1,79 @@
+package com.mlorenzo.estore.core.serialization;
+
+import java.util.List;
+
+import org.axonframework.axonserver.connector.AxonServerConfiguration;
+import org.axonframework.axonserver.connector.AxonServerConnectionManager;
+import org.axonframework.axonserver.connector.event.axon.AxonServerEventStore;
+import org.axonframework.eventsourcing.eventstore.EventStore;
+import org.axonframework.serialization.Serializer;
+import org.axonframework.serialization.upcasting.event.EventUpcaster;
+import org.axonframework.serialization.upcasting.event.EventUpcasterChain;
+import org.axonframework.spring.config.AxonConfiguration;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import com.mlorenzo.estore.core.commands.CancelProductReservationCommand;
+import com.mlorenzo.estore.core.commands.ProcessPaymentCommand;
+import com.mlorenzo.estore.core.commands.ReserveProductCommand;
+import com.mlorenzo.estore.core.events.PaymentProcessedEvent;
+import com.mlorenzo.estore.core.events.ProductReservationCancelledEvent;
+import com.mlorenzo.estore.core.events.ProductReservedEvent;
+import com.mlorenzo.estore.core.models.PaymentDetails;
+import com.mlorenzo.estore.core.models.User;
+import com.mlorenzo.estore.core.queries.FetchUserPaymentDetailsQuery;
+
+// Configuración compartida por todos los microservicios(se importa con la anotación @Import desde la clase principal de cada uno de ellos) que sustituye el serializador XStream
+// por defecto del framework Axon por el serializador binario CompactSerializer para los mensajes(Commands, Queries y sus respuestas) y para los eventos y snapshots del Event Store.
+// El serializador general(tokens de los procesadores de eventos, deadlines, etc.) sigue siendo el de por defecto.
+// Importante: Un microservicio que todavía use XStream no puede leer los mensajes en formato Smile, así que todos los microservicios deben desplegarse con esta configuración a la vez.
+@Configuration
+public class CompactSerializerConfiguration {
+	
+	// Identificadores de los tipos compartidos del módulo "core". Cada microservicio añade los suyos con otro bean de tipo SerializedTypeAliases
+	@Bean
+	public SerializedTypeAliases coreSerializedTypeAliases() {
+		return SerializedTypeAliases.of(
+				CancelProductReservationCommand.class, ProcessPaymentCommand.class, ReserveProductCommand.class,
+				PaymentProcessedEvent.class, ProductReservationCancelledEvent.class, ProductReservedEvent.class,
+				FetchUserPaymentDetailsQuery.class, User.class, PaymentDetails.class);
+	}
+	
+	// Cadena de upcasters de los eventos compartidos del módulo "core"(ver clase JsonEventUpcaster). Cuando cambie la forma de uno de estos eventos, su upcaster se añade aquí, en el orden de sus revisiones.
+	// Cada microservicio registra la cadena de upcasters de sus propios eventos con otro bean de tipo EventUpcaster
+	@Bean
+	public EventUpcaster coreEventUpcasters() {
+		return new EventUpcasterChain();
+	}
+	
+	@Bean
+	@Qualifier("messageSerializer")
+	public Serializer messageSerializer(List<SerializedTypeAliases> typeAliases) {
+		return CompactSerializer.defaultSerializer(SerializedTypeAliases.combine(typeAliases));
+	}
+	
+	@Bean
+	@Qualifier("eventSerializer")
+	public Serializer eventSerializer(List<SerializedTypeAliases> typeAliases) {
+		return CompactSerializer.defaultSerializer(SerializedTypeAliases.combine(typeAliases));
+	}
+	
+	// El Event Store de Axon Server que crea por defecto el framework Axon serializa los snapshots con el serializador general(XStream). Lo sustituimos por uno equivalente
+	// que serializa también los snapshots con el serializador de eventos. No se crea cuando se usa el Event Store embebido(ver clase FileEventStoreConfiguration)
+	@Bean
+	@ConditionalOnExpression("${axon.axonserver.enabled:true} and '${estore.event-store.type:axon-server}' != 'file'")
+	public EventStore eventStore(AxonServerConfiguration axonServerConfiguration, AxonConfiguration configuration, AxonServerConnectionManager axonServerConnectionManager,
+			@Qualifier("eventSerializer") Serializer eventSerializer) {
+		return AxonServerEventStore.builder()
+				.messageMonitor(configuration.messageMonitor(AxonServerEventStore.class, "eventStore"))
+				.configuration(axonServerConfiguration)
+				.platformConnectionManager(axonServerConnectionManager)
+				.snapshotSerializer(eventSerializer)
+				.eventSerializer(eventSerializer)
+				.snapshotFilter(configuration.snapshotFilter())
+				.upcasterChain(configuration.upcasterChain())
+				.build();
+	}
+}
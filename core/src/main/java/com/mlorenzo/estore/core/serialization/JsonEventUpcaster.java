@@ -0,0 +1,70 @@
+package com.mlorenzo.estore.core.serialization;
+
+import java.util.Objects;
+import java.util.Set;
+
+import org.axonframework.serialization.SerializedObject;
+import org.axonframework.serialization.SimpleSerializedType;
+import org.axonframework.serialization.upcasting.event.InitialEventRepresentation;
+import org.axonframework.serialization.upcasting.event.IntermediateEventRepresentation;
+import org.axonframework.serialization.upcasting.event.SingleEventUpcaster;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+// Clase base de los upcasters de eventos serializados con el serializador CompactSerializer. Un upcaster convierte los eventos guardados con una revisión antigua de su clase a la revisión actual
+// cuando se leen del Event Store, de forma que las clases de los eventos pueden cambiar de forma(Por ejemplo, renombrar o añadir campos) sin modificar los eventos ya guardados.
+// El upcaster trabaja sobre la representación intermedia del evento(un árbol JSON de Jackson obtenido a partir de los datos en formato Smile), no sobre la clase del evento, y el framework Axon sólo
+// hace la conversión cuando el evento llega a deserializarse, así que los eventos que ningún manejador llega a usar(ver clase PayloadTypeFilteringEventSource) no pagan el coste del upcasting.
+// Cada upcaster convierte un tipo de evento de la revisión "revision" a la revisión "upcastedRevision", que debe ser la indicada con la anotación @Revision en la clase del evento(o la siguiente revisión
+// de otro upcaster del mismo tipo). La revisión de las clases sin la anotación @Revision es null.
+// Los eventos se reconocen tanto por el nombre completo de la clase como por el nombre simple, que es el identificador con el que se registran con el método "SerializedTypeAliases.of".
+// Los upcasters se registran como beans de Spring en una cadena de upcasters(EventUpcasterChain) por microservicio, en el orden en el que deben aplicarse(ver bean "coreEventUpcasters" de la
+// clase CompactSerializerConfiguration).
+// Nota: Los eventos guardados en XML antes de usar este serializador no se modifican. Esos eventos deben convertirse con upcasters sobre su representación XML.
+//
+// Por ejemplo, para renombrar el campo "quantity" del evento ProductReservedEvent a "units":
+//   @Revision("1") en la clase ProductReservedEvent y el upcaster
+//   new JsonEventUpcaster(ProductReservedEvent.class, null, "1") {
+//       protected void upcastPayload(ObjectNode event) { event.set("units", event.remove("quantity")); }
+//   }
+public abstract class JsonEventUpcaster extends SingleEventUpcaster {
+	private final Set<String> typeNames;
+	private final String revision;
+	private final String upcastedRevision;
+
+	protected JsonEventUpcaster(Class<?> eventType, String revision, String upcastedRevision) {
+		this.typeNames = Set.of(eventType.getName(), eventType.getSimpleName());
+		this.revision = revision;
+		this.upcastedRevision = upcastedRevision;
+	}
+
+	// Modifica el evento. El árbol JSON es una copia propia de cada lectura del evento, así que puede modificarse directamente
+	protected abstract void upcastPayload(ObjectNode event);
+
+	@Override
+	protected boolean canUpcast(IntermediateEventRepresentation intermediateRepresentation) {
+		return typeNames.contains(intermediateRepresentation.getType().getName())
+				&& Objects.equals(revision, intermediateRepresentation.getType().getRevision())
+				&& isSmile(intermediateRepresentation);
+	}
+
+	@Override
+	protected IntermediateEventRepresentation doUpcast(IntermediateEventRepresentation intermediateRepresentation) {
+		// Se mantiene el nombre del tipo(identificador o nombre completo de la clase) y sólo cambia la revisión
+		return intermediateRepresentation.upcastPayload(new SimpleSerializedType(intermediateRepresentation.getType().getName(), upcastedRevision), JsonNode.class,
+				event -> {
+					upcastPayload((ObjectNode) event);
+					return event;
+				});
+	}
+
+	// Los datos originales sólo se pueden convertir si están en formato Smile. Los datos de un evento ya convertido por otro upcaster de la cadena no se comprueban, porque obtenerlos
+	// vuelve a ejecutar la conversión
+	private static boolean isSmile(IntermediateEventRepresentation intermediateRepresentation) {
+		if(!(intermediateRepresentation instanceof InitialEventRepresentation))
+			return true;
+		SerializedObject<?> data = intermediateRepresentation.getData();
+		return !byte[].class.equals(data.getContentType()) || CompactSerializer.isSmile((byte[]) data.getData());
+	}
+}
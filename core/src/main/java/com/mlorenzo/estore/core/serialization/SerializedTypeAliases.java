@@ -0,0 +1,58 @@
+package com.mlorenzo.estore.core.serialization;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Tabla de identificadores de tipo que usa el serializador CompactSerializer en lugar del nombre completo de la clase de cada mensaje(Commands, eventos, Queries y snapshots).
+// Cada microservicio registra sus propios tipos mediante un bean de esta clase y el serializador combina todas las tablas registradas(ver clase CompactSerializerConfiguration).
+// Los identificadores se guardan junto a cada evento en el Event Store, así que, una vez publicados, no deben cambiarse aunque se renombre o se mueva la clase.
+public class SerializedTypeAliases {
+	private final Map<String, Class<?>> classesByAlias;
+	
+	private SerializedTypeAliases(Map<String, Class<?>> classesByAlias) {
+		this.classesByAlias = Collections.unmodifiableMap(classesByAlias);
+	}
+	
+	// Usa como identificador de cada tipo el nombre simple de su clase
+	public static SerializedTypeAliases of(Class<?>... types) {
+		SerializedTypeAliases.Builder builder = builder();
+		for(Class<?> type : types)
+			builder.alias(type.getSimpleName(), type);
+		return builder.build();
+	}
+	
+	public static Builder builder() {
+		return new Builder();
+	}
+	
+	public Map<String, Class<?>> getClassesByAlias() {
+		return classesByAlias;
+	}
+	
+	// Combina varias tablas en una sola. Un mismo identificador no puede estar asociado a dos clases distintas
+	public static SerializedTypeAliases combine(Iterable<SerializedTypeAliases> tables) {
+		SerializedTypeAliases.Builder builder = builder();
+		for(SerializedTypeAliases table : tables)
+			table.classesByAlias.forEach(builder::alias);
+		return builder.build();
+	}
+	
+	public static class Builder {
+		private final Map<String, Class<?>> classesByAlias = new LinkedHashMap<>();
+		
+		public Builder alias(String alias, Class<?> type) {
+			Class<?> previous = classesByAlias.get(alias);
+			if(previous != null && !previous.equals(type))
+				throw new IllegalArgumentException("The serialized type alias " + alias + " is already registered for " + previous.getName());
+			if(previous == null && classesByAlias.containsValue(type))
+				throw new IllegalArgumentException("The type " + type.getName() + " already has a serialized type alias");
+			classesByAlias.put(alias, type);
+			return this;
+		}
+		
+		public SerializedTypeAliases build() {
+			return new SerializedTypeAliases(new LinkedHashMap<>(classesByAlias));
+		}
+	}
+}
@@ -0,0 +1,208 @@
+package com.mlorenzo.estore.core.snapshotting;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.axonframework.eventhandling.DomainEventMessage;
+import org.axonframework.eventhandling.EventMessage;
+import org.axonframework.eventsourcing.SnapshotTrigger;
+import org.axonframework.eventsourcing.SnapshotTriggerDefinition;
+import org.axonframework.eventsourcing.Snapshotter;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+// Definición de disparador de snapshots que, en lugar de crear un snapshot cada N eventos(EventCountSnapshotTriggerDefinition), decide en función de lo que cuesta cargar el Aggregate
+// y de la frecuencia con la que recibe eventos:
+// - Cada carga de un Aggregate se mide desde que el framework Axon prepara el disparador(justo después de abrir el flujo de eventos del Aggregate) hasta que se terminan de aplicar sus eventos. Se pide un snapshot cuando la carga supera "loadTimeThreshold"
+//   o cuando el tiempo de carga multiplicado por los eventos por segundo del Aggregate(una estimación de cuántas veces por segundo se carga) supera "replayBudgetPerSecond".
+//   Así, un Aggregate muy activo se optimiza aunque su carga sea rápida y un Aggregate poco activo no se optimiza hasta que su carga es realmente lenta.
+// - Para los Aggregates que siguen en memoria(Por ejemplo, en una caché de Aggregates) y reciben eventos sin volver a cargarse, el tiempo de carga se estima a partir del coste medio
+//   de aplicar un evento medido en las cargas anteriores.
+// - Nunca se pide un snapshot si desde el último snapshot hay menos de "minEvents" eventos, para que los Aggregates muy activos no se optimicen en cada evento.
+// La frecuencia de eventos de cada Aggregate se calcula con una media móvil exponencial sobre la ventana "rateWindow" y sólo se guarda para los "trackedAggregates" Aggregates más recientes.
+// Los snapshots se piden al Snapshotter indicado(Por ejemplo, un CoalescingSnapshotter para crearlos de forma asíncrona).
+// Como bean de Spring, Spring Boot lo registra en Micrometer(interfaz MeterBinder) y cada carga también se publica en la métrica "estore.aggregate.load", con el Aggregate en la etiqueta "aggregate"
+// y si la carga ha partido de un snapshot en la etiqueta "snapshot".
+public class AdaptiveSnapshotTriggerDefinition implements SnapshotTriggerDefinition, MeterBinder {
+	private final Snapshotter snapshotter;
+	private final long loadTimeThresholdNanos;
+	private final long replayBudgetNanosPerSecond;
+	private final int minEvents;
+	private final double rateWindowNanos;
+	private final Cache<String, EventRate> eventRates;
+	private final LoadTimer loadsWithSnapshot = new LoadTimer();
+	private final LoadTimer loadsWithoutSnapshot = new LoadTimer();
+	private final AtomicLong snapshotsRequested = new AtomicLong();
+	// Coste medio(media móvil exponencial) de aplicar un evento durante la carga de un Aggregate
+	private volatile double eventReplayNanos;
+	private volatile MeterRegistry meterRegistry;
+
+	public AdaptiveSnapshotTriggerDefinition(Snapshotter snapshotter, Duration loadTimeThreshold, Duration replayBudgetPerSecond, int minEvents, Duration rateWindow, int trackedAggregates) {
+		this.snapshotter = snapshotter;
+		this.loadTimeThresholdNanos = loadTimeThreshold.toNanos();
+		this.replayBudgetNanosPerSecond = replayBudgetPerSecond.toNanos();
+		this.minEvents = minEvents;
+		this.rateWindowNanos = rateWindow.toNanos();
+		this.eventRates = Caffeine.newBuilder().maximumSize(trackedAggregates).build();
+	}
+
+	@Override
+	public SnapshotTrigger prepareTrigger(Class<?> aggregateType) {
+		return new AdaptiveSnapshotTrigger(aggregateType);
+	}
+
+	@Override
+	public SnapshotTrigger reconfigure(Class<?> aggregateType, SnapshotTrigger trigger) {
+		return trigger instanceof AdaptiveSnapshotTrigger ? trigger : prepareTrigger(aggregateType);
+	}
+
+	@Override
+	public void bindTo(MeterRegistry meterRegistry) {
+		this.meterRegistry = meterRegistry;
+	}
+
+	public AggregateLoadStats stats() {
+		return new AggregateLoadStats(loadsWithSnapshot.count(), loadsWithSnapshot.averageMillis(), loadsWithSnapshot.maxMillis(),
+				loadsWithoutSnapshot.count(), loadsWithoutSnapshot.averageMillis(), loadsWithoutSnapshot.maxMillis(),
+				snapshotsRequested.get(), eventRates.estimatedSize());
+	}
+
+	private void recordLoad(Class<?> aggregateType, boolean snapshotLoaded, long loadNanos) {
+		(snapshotLoaded ? loadsWithSnapshot : loadsWithoutSnapshot).record(loadNanos);
+		MeterRegistry registry = meterRegistry;
+		if(registry != null)
+			Timer.builder("estore.aggregate.load")
+					.tag("aggregate", aggregateType.getSimpleName())
+					.tag("snapshot", String.valueOf(snapshotLoaded))
+					.description("Time to load an aggregate from the event store")
+					.publishPercentileHistogram()
+					.register(registry)
+					.record(loadNanos, TimeUnit.NANOSECONDS);
+	}
+
+	private boolean shouldSnapshot(long eventsSinceSnapshot, long loadNanos, double eventsPerSecond) {
+		if(eventsSinceSnapshot < minEvents)
+			return false;
+		return loadNanos >= loadTimeThresholdNanos || loadNanos * eventsPerSecond >= replayBudgetNanosPerSecond;
+	}
+
+	private double eventsPerSecond(String aggregateIdentifier) {
+		EventRate eventRate = eventRates.getIfPresent(aggregateIdentifier);
+		return eventRate == null ? 0 : eventRate.current(System.nanoTime(), rateWindowNanos);
+	}
+
+	// Disparador de una carga concreta de un Aggregate. El framework Axon lo crea justo antes de aplicar los eventos del Aggregate, le notifica cada evento aplicado durante
+	// la carga(incluido el snapshot, que siempre es el primero) y cada evento aplicado después por los Commands, y lo usa desde un único hilo a la vez
+	private class AdaptiveSnapshotTrigger implements SnapshotTrigger {
+		private final Class<?> aggregateType;
+		private final long startTime = System.nanoTime();
+		private String aggregateIdentifier;
+		private boolean initialized;
+		private boolean snapshotLoaded;
+		private long eventsSinceSnapshot;
+		private long loadNanos;
+
+		AdaptiveSnapshotTrigger(Class<?> aggregateType) {
+			this.aggregateType = aggregateType;
+		}
+
+		@Override
+		public void eventHandled(EventMessage<?> message) {
+			if(message instanceof DomainEventMessage)
+				aggregateIdentifier = ((DomainEventMessage<?>) message).getAggregateIdentifier();
+			if(!initialized) {
+				if(!snapshotLoaded && eventsSinceSnapshot == 0 && aggregateType.isAssignableFrom(message.getPayloadType()))
+					snapshotLoaded = true;
+				else
+					eventsSinceSnapshot++;
+				return;
+			}
+			eventsSinceSnapshot++;
+			if(aggregateIdentifier == null)
+				return;
+			double eventsPerSecond = eventRates.get(aggregateIdentifier, id -> new EventRate()).record(System.nanoTime(), rateWindowNanos);
+			long estimatedLoadNanos = Math.max(loadNanos, (long) (eventsSinceSnapshot * eventReplayNanos));
+			if(shouldSnapshot(eventsSinceSnapshot, estimatedLoadNanos, eventsPerSecond))
+				requestSnapshot();
+		}
+
+		@Override
+		public void initializationFinished() {
+			initialized = true;
+			// Un Aggregate recién creado por un Command no se ha cargado desde el Event Store
+			if(!snapshotLoaded && eventsSinceSnapshot == 0)
+				return;
+			loadNanos = System.nanoTime() - startTime;
+			recordLoad(aggregateType, snapshotLoaded, loadNanos);
+			if(eventsSinceSnapshot > 0) {
+				double replayNanos = (double) loadNanos / eventsSinceSnapshot;
+				eventReplayNanos = eventReplayNanos == 0 ? replayNanos : eventReplayNanos * 0.9 + replayNanos * 0.1;
+			}
+			if(aggregateIdentifier != null && shouldSnapshot(eventsSinceSnapshot, loadNanos, eventsPerSecond(aggregateIdentifier)))
+				requestSnapshot();
+		}
+
+		private void requestSnapshot() {
+			snapshotter.scheduleSnapshot(aggregateType, aggregateIdentifier);
+			snapshotsRequested.incrementAndGet();
+			eventsSinceSnapshot = 0;
+			loadNanos = 0;
+		}
+	}
+
+	// Media móvil exponencial de los eventos por segundo de un Aggregate: cada evento suma 1/ventana y el valor decae exponencialmente con el tiempo,
+	// de forma que, con una frecuencia constante, el valor converge a esa frecuencia
+	private static class EventRate {
+		private double rate;
+		private long lastUpdate;
+		private boolean updated;
+
+		synchronized double record(long now, double windowNanos) {
+			rate = decayed(now, windowNanos) + 1_000_000_000.0 / windowNanos;
+			lastUpdate = now;
+			updated = true;
+			return rate;
+		}
+
+		synchronized double current(long now, double windowNanos) {
+			return decayed(now, windowNanos);
+		}
+
+		private double decayed(long now, double windowNanos) {
+			return !updated ? 0 : rate * Math.exp(-(now - lastUpdate) / windowNanos);
+		}
+	}
+
+	private static class LoadTimer {
+		private final LongAdder count = new LongAdder();
+		private final LongAdder totalNanos = new LongAdder();
+		private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+		void record(long nanos) {
+			count.increment();
+			totalNanos.add(nanos);
+			maxNanos.accumulate(nanos);
+		}
+
+		long count() {
+			return count.sum();
+		}
+
+		double averageMillis() {
+			long loads = count.sum();
+			return loads == 0 ? 0 : totalNanos.sum() / 1_000_000.0 / loads;
+		}
+
+		double maxMillis() {
+			return maxNanos.get() / 1_000_000.0;
+		}
+	}
+}
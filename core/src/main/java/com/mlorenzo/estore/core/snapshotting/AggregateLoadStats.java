@@ -0,0 +1,18 @@
+package com.mlorenzo.estore.core.snapshotting;
+
+import lombok.Value;
+
+@Value
+public class AggregateLoadStats {
+	// Cargas de Aggregates que han partido de un snapshot
+	private long loadsWithSnapshot;
+	private double averageLoadMillisWithSnapshot;
+	private double maxLoadMillisWithSnapshot;
+	// Cargas de Aggregates que han tenido que aplicar todos sus eventos
+	private long loadsWithoutSnapshot;
+	private double averageLoadMillisWithoutSnapshot;
+	private double maxLoadMillisWithoutSnapshot;
+	private long snapshotsRequested;
+	// Aggregates de los que se está calculando la frecuencia de eventos
+	private long trackedAggregates;
+}
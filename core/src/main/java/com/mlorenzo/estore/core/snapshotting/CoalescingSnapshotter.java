@@ -0,0 +1,89 @@
+package com.mlorenzo.estore.core.snapshotting;
+
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.axonframework.eventsourcing.Snapshotter;
+import org.axonframework.messaging.unitofwork.CurrentUnitOfWork;
+import org.axonframework.messaging.unitofwork.UnitOfWork;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Snapshotter que crea los snapshots de forma asíncrona en un pool de hilos con una cola acotada, delegando la creación de cada snapshot en otro Snapshotter
+// (Por ejemplo, el SpringAggregateSnapshotter del framework Axon, que por defecto crea los snapshots en el mismo hilo que confirma la unidad de trabajo del Command).
+// Las peticiones para un Aggregate que ya tiene un snapshot pendiente o en curso se agrupan en esa misma petición, y las peticiones que no caben en la cola se descartan,
+// ya que un snapshot que no se crea sólo retrasa la optimización hasta la siguiente petición.
+public class CoalescingSnapshotter implements Snapshotter {
+	private static final Logger LOGGER = LoggerFactory.getLogger(CoalescingSnapshotter.class);
+
+	private final Snapshotter delegate;
+	private final ThreadPoolExecutor executor;
+	private final Set<String> pending = ConcurrentHashMap.newKeySet();
+	private final AtomicLong scheduled = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong completed = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+
+	public CoalescingSnapshotter(Snapshotter delegate, int threadCount, int queueCapacity) {
+		this.delegate = delegate;
+		AtomicInteger threadNumber = new AtomicInteger();
+		this.executor = new ThreadPoolExecutor(threadCount, threadCount, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueCapacity), runnable -> {
+			Thread thread = new Thread(runnable, "snapshotter-" + threadNumber.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	// Igual que los Snapshotters del framework Axon, si hay una unidad de trabajo en curso la petición se encola cuando se confirma, para que el snapshot incluya sus eventos
+	@Override
+	public void scheduleSnapshot(Class<?> aggregateType, String aggregateIdentifier) {
+		if(CurrentUnitOfWork.isStarted() && CurrentUnitOfWork.get().phase().isBefore(UnitOfWork.Phase.AFTER_COMMIT))
+			CurrentUnitOfWork.get().afterCommit(unitOfWork -> enqueue(aggregateType, aggregateIdentifier));
+		else
+			enqueue(aggregateType, aggregateIdentifier);
+	}
+
+	public SnapshotterStats stats() {
+		return new SnapshotterStats(scheduled.get(), coalesced.get(), rejected.get(), completed.get(), failed.get(), executor.getQueue().size());
+	}
+
+	public void shutDown() {
+		executor.shutdownNow();
+	}
+
+	private void enqueue(Class<?> aggregateType, String aggregateIdentifier) {
+		String key = aggregateType.getName() + ":" + aggregateIdentifier;
+		if(!pending.add(key)) {
+			coalesced.incrementAndGet();
+			return;
+		}
+		try {
+			executor.execute(() -> createSnapshot(key, aggregateType, aggregateIdentifier));
+			scheduled.incrementAndGet();
+		}
+		catch(RejectedExecutionException ex) {
+			pending.remove(key);
+			rejected.incrementAndGet();
+		}
+	}
+
+	// La petición deja de estar pendiente antes de crear el snapshot para que una petición posterior, que puede incluir eventos más recientes, no se agrupe en ésta
+	private void createSnapshot(String key, Class<?> aggregateType, String aggregateIdentifier) {
+		pending.remove(key);
+		try {
+			delegate.scheduleSnapshot(aggregateType, aggregateIdentifier);
+			completed.incrementAndGet();
+		}
+		catch(Exception ex) {
+			failed.incrementAndGet();
+			LOGGER.warn("Could not create a snapshot of the aggregate {} {}: {}", aggregateType.getSimpleName(), aggregateIdentifier, ex.getMessage());
+		}
+	}
+}
@@ -0,0 +1,17 @@
+package com.mlorenzo.estore.core.snapshotting;
+
+import lombok.Value;
+
+@Value
+public class SnapshotterStats {
+	// Peticiones de snapshot encoladas
+	private long scheduled;
+	// Peticiones agrupadas en otra petición pendiente del mismo Aggregate
+	private long coalesced;
+	// Peticiones descartadas por tener la cola llena
+	private long rejected;
+	// Peticiones procesadas por el Snapshotter delegado
+	private long completed;
+	private long failed;
+	private int queued;
+}